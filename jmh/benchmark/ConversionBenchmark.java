@@ -0,0 +1,89 @@
+package benchmark;
+
+import device.BlockConverter;
+import device.Scale;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw to physical conversion of sample blocks: {@link BlockConverter} against the scalar path of drivers
+ * (factor looked up per axis and per sample, as Magnetometer.update does).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+    /** Samples of a block */
+    @Param({"16", "256", "4096"})
+    public int block;
+
+    private Scale scale;
+    private final double[] bias = {12.5, -40.25, 3.0};
+    private final double[] sensitivity = {1.1875, 1.19921875, 1.1484375};
+    private BlockConverter converter;
+    private short[] raw;
+    private byte[] bytes;
+    private double[] out;
+    private float[] outF;
+
+    @Setup
+    public void setup(){
+        scale = new Scale(Scale.AccScale.AFS_4G, Scale.GyroScale.GFS_250DPS, Scale.MagScale.MFS_16BIT);
+        converter = BlockConverter.ofMag(scale.getMag(), sensitivity, bias);
+
+        raw = new short[block * BlockConverter.AXES];
+        bytes = new byte[raw.length * 2];
+        Random random = new Random(42);
+        for(int i = 0; i < raw.length; ++i){
+            raw[i] = (short)random.nextInt();
+            bytes[2 * i] = (byte)(raw[i] >> 8);
+            bytes[2 * i + 1] = (byte)raw[i];
+        }
+        out = new double[raw.length];
+        outF = new float[raw.length];
+    }
+
+    @Benchmark
+    public double scalarPerSample(){
+        for(int i = 0; i < block; ++i){
+            int base = i * 3;
+            out[base]     = raw[base]     * scale.getMag().getResolution() * sensitivity[0] - bias[0];
+            out[base + 1] = raw[base + 1] * scale.getMag().getResolution() * sensitivity[1] - bias[1];
+            out[base + 2] = raw[base + 2] * scale.getMag().getResolution() * sensitivity[2] - bias[2];
+        }
+        return out[out.length - 1];
+    }
+
+    @Benchmark
+    public double blockDouble(){
+        converter.convert(raw, 0, out, 0, block);
+        return out[out.length - 1];
+    }
+
+    @Benchmark
+    public float blockFloat(){
+        converter.convert(raw, 0, outF, 0, block);
+        return outF[outF.length - 1];
+    }
+
+    @Benchmark
+    public double blockBigEndianBytes(){
+        converter.convertBigEndian(bytes, 0, out, 0, block);
+        return out[out.length - 1];
+    }
+}
@@ -0,0 +1,124 @@
+package benchmark;
+
+import device.Magnetometer;
+import device.Mpu9250;
+import device.bus.SimulatedMpu9250;
+import module.AHRS;
+import module.fusion.MadgwickFilter;
+import module.fusion.MahonyFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of driver decode and fusion hot paths on {@link SimulatedMpu9250}, no Pi needed.
+ * Bus cost is not simulated in wall time, so results are CPU cost of drivers (plus simulator bookkeeping).
+ * Allocation rate is reported by the gc profiler: gradle jmh -Pjmh='DriverBenchmarks -prof gc'
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DriverBenchmarks {
+    private SimulatedMpu9250 sim;
+    private Mpu9250 mpu9250;
+    private final int[] group = new int[3];
+    /** Magnetometer in bypass mode, every op steps the simulator to the next mag sample (100 Hz at 1 kHz) */
+    private SimulatedMpu9250 bypassSim;
+    private Magnetometer magnetometer;
+    private MadgwickFilter madgwick;
+    private MahonyFilter mahony;
+    private AHRS ahrs;
+
+    @Setup
+    public void setup(){
+        sim = new SimulatedMpu9250();
+        sim.setMotionAmplitude(0);
+        mpu9250 = new Mpu9250(sim.getMpuBus());
+        mpu9250.enableMagnetometer(Mpu9250.MagMode.MAG_MODE_100HZ);
+        sim.setAutoStep(false);
+        sim.setMotionAmplitude(30);
+        sim.step(1);
+
+        bypassSim = new SimulatedMpu9250();
+        bypassSim.setMotionAmplitude(0);
+        Mpu9250 bypassMpu = new Mpu9250(bypassSim.getMpuBus());
+        bypassMpu.write(Mpu9250.Registers.SMPLRT_DIV.getAddress(), 0);
+        magnetometer = new Magnetometer(bypassSim.getMagBus(), bypassMpu.getScale(), Magnetometer.MagMode.MAG_MODE_100HZ);
+        bypassSim.setAutoStep(false);
+
+        madgwick = new MadgwickFilter();
+        mahony = new MahonyFilter(0.5, 0.01);
+        ahrs = new AHRS(mpu9250);
+    }
+
+    @Benchmark
+    public int read16BitInto(){
+        mpu9250.read16Bit(Mpu9250.Registers.GYRO_XOUT_H.getAddress(), 3, group, 0);
+        return group[0];
+    }
+
+    @Benchmark
+    public int read16BitAllocating(){
+        return mpu9250.read16Bit(Mpu9250.Registers.GYRO_XOUT_H.getAddress(), 3)[0];
+    }
+
+    /** 21 byte burst, accel, temperature, gyro and EXT_SENS_DATA of AK8963 */
+    @Benchmark
+    public int updateMotion(){
+        mpu9250.updateMotion();
+        return mpu9250.getGyroData()[0];
+    }
+
+    /** 400 reads */
+    @Benchmark
+    public int calibrate(){
+        return mpu9250.calibrate((byte)Mpu9250.Registers.GYRO_XOUT_H.getAddress(), 4)[0];
+    }
+
+    /** Baseline of {@link #magnetometerUpdate()} */
+    @Benchmark
+    public void simulatorStep(){
+        bypassSim.step(10);
+    }
+
+    @Benchmark
+    public double magnetometerUpdate(){
+        bypassSim.step(10);
+        magnetometer.update();
+        return magnetometer.getMag()[0];
+    }
+
+    /** 9 DOF */
+    @Benchmark
+    public MadgwickFilter madgwickUpdate(){
+        madgwick.update(0.01, -0.02, 0.03, 0.01, 0.02, 0.99, 210, 30, -410, 0.001);
+        return madgwick;
+    }
+
+    /** 9 DOF */
+    @Benchmark
+    public MahonyFilter mahonyUpdate(){
+        mahony.update(0.01, -0.02, 0.03, 0.01, 0.02, 0.99, 210, 30, -410, 0.001);
+        return mahony;
+    }
+
+    /** Burst read, fusion and publish of orientation */
+    @Benchmark
+    public AHRS ahrsUpdate(){
+        sim.step(1);
+        ahrs.update();
+        return ahrs;
+    }
+}
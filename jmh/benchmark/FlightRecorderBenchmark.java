@@ -0,0 +1,99 @@
+package benchmark;
+
+import device.ImuSample;
+import device.record.FlightRecorder;
+import device.record.RecordHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time added to the acquisition loop by {@link FlightRecorder#record(ImuSample)} at 8 kHz.
+ * Calls are paced at 125 µs outside of the measured time, so segments rotate and flushes run
+ * at the rate of a real flight. Look at the high percentiles, they include rotations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlightRecorderBenchmark {
+    private static final long PERIOD = 125000L;
+
+    /** Interval of forcing mapped data to storage (ms), 0 to disable */
+    @Param({"0", "100"})
+    public long flushInterval;
+
+    private File directory;
+    private FlightRecorder recorder;
+    private final ImuSample sample = new ImuSample();
+    private long due;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("flight-record").toFile();
+        RecordHeader header = new RecordHeader();
+        //A segment per second, so every iteration rotates at least once
+        recorder = new FlightRecorder(directory, "bench", 8000, 3, header, flushInterval);
+        for(int i = 0; i < 3; ++i){
+            sample.accel[i] = 1000 * (i + 1);
+            sample.gyro[i] = -100 * (i + 1);
+            sample.mag[i] = 200 + i;
+        }
+        sample.temperature = 3000;
+        due = System.nanoTime();
+    }
+
+    /** Wait for the next 8 kHz tick, not measured */
+    @Setup(Level.Invocation)
+    public void pace(){
+        due += PERIOD;
+        long now;
+        while((now = System.nanoTime()) - due < 0){
+            Thread.yield();
+        }
+        if(now - due > PERIOD){
+            due = now;
+        }
+        sample.timestamp = now;
+    }
+
+    @Benchmark
+    public void record(){
+        recorder.record(sample);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        recorder.close();
+        System.out.println();
+        System.out.println("frames " + recorder.getFrameCount() + ", dropped " + recorder.getDroppedCount());
+        File[] files = directory.listFiles();
+        if(files != null){
+            for(File file : files){
+                if(!file.delete()){
+                    System.err.println("Couldn't delete " + file);
+                }
+            }
+        }
+        if(!directory.delete()){
+            System.err.println("Couldn't delete " + directory);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package benchmark;
+
+import device.ImuArray;
+import device.Mpu9250;
+import device.bus.BusSpeed;
+import device.bus.SimulatedMpu9250;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How sweep time of {@link ImuArray} scales with units, on simulated devices which take the modeled bus time
+ * of every transaction. Gyro noise and timestamp skew of the combined output are printed after every trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class ImuArrayBenchmark {
+    @Param({"1", "2", "3", "4"})
+    public int units;
+
+    /** Fixed cost of every transaction (us), driver and kernel */
+    @Param({"20"})
+    public long overheadMicros;
+
+    private ImuArray array;
+
+    @Setup
+    public void setup(){
+        List<Mpu9250> list = new ArrayList<>();
+        for(int i = 0; i < units; ++i){
+            SimulatedMpu9250 sim = new SimulatedMpu9250(BusSpeed.FAST_400KHZ, overheadMicros * 1000L, true);
+            sim.setNoiseSeed(9250 + i);
+            sim.setMotionAmplitude(0);
+            list.add(new Mpu9250(sim.getMpuBus()));
+        }
+        array = new ImuArray(list, ImuArray.Combine.MEAN);
+    }
+
+    /** Sweeps per second */
+    @Benchmark
+    public int sweep(){
+        array.updateMotion();
+        return array.getGyroData()[0];
+    }
+
+    /**
+     * Noise of combined gyro x on a stationary device.
+     */
+    @TearDown(Level.Trial)
+    public void report(){
+        int samples = 2000;
+        double sum = 0, squares = 0;
+        long skew = 0;
+        for(int i = 0; i < samples; ++i){
+            array.updateMotion();
+            double x = array.getGyroData()[0];
+            sum += x;
+            squares += x * x;
+            skew = Math.max(skew, array.getTimestampSkew());
+        }
+        double mean = sum / samples;
+        double noise = Math.sqrt(Math.max(0, squares / samples - mean * mean)) * array.getGyroResolution();
+        System.out.printf("%n  %d unit(s): gyro noise %.4f dps, max skew %.1f us, healthy %d%n",
+                units, noise, skew / 1e3, array.getHealthyCount());
+    }
+}
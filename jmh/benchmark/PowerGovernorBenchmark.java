@@ -0,0 +1,90 @@
+package benchmark;
+
+import device.ImuSample;
+import device.Mpu9250;
+import device.PowerGovernor;
+import device.bus.SimulatedMpu9250;
+import device.gpio.SimulatedPin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Wake-up latency of {@link PowerGovernor} against {@link SimulatedMpu9250} running on its own clock:
+ * every invocation parks the unit until the governor is in low power, then measures from the start of motion
+ * to the first full rate sample. States, bound of latency, bus and CPU savings are printed after the trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PowerGovernorBenchmark {
+    private SimulatedMpu9250 sim;
+    private PowerGovernor governor;
+    private final AtomicLong samples = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup(){
+        sim = new SimulatedMpu9250();
+        sim.setMotionAmplitude(0);
+        Mpu9250 mpu9250 = new Mpu9250(sim.getMpuBus());
+        mpu9250.enableDataReadyInterrupt();
+        SimulatedPin pin = new SimulatedPin();
+        sim.connectInterrupt(pin);
+        sim.startClock();
+
+        governor = new PowerGovernor(mpu9250, pin, new Consumer<ImuSample>() {
+            @Override
+            public void accept(ImuSample sample) {
+                samples.incrementAndGet();
+            }
+        });
+        governor.setIdleTime(300000000L);
+        governor.start();
+    }
+
+    /**
+     * Park the unit until governor is in low power.
+     */
+    @Setup(Level.Invocation)
+    public void park() throws InterruptedException {
+        sim.setMotionAmplitude(0);
+        while(governor.getState() != PowerGovernor.State.LOW_POWER){
+            Thread.sleep(1);
+        }
+    }
+
+    /** Motion to first full rate sample */
+    @Benchmark
+    public long wake(){
+        long count = samples.get();
+        sim.setMotionAmplitude(30);
+        while(samples.get() == count){
+            Thread.yield();
+        }
+        return samples.get();
+    }
+
+    @TearDown(Level.Trial)
+    public void report(){
+        governor.stop();
+        sim.stopClock();
+        System.out.println();
+        System.out.print(governor);
+    }
+}
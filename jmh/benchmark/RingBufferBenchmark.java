@@ -0,0 +1,94 @@
+package benchmark;
+
+import device.ImuSample;
+import device.Mpu9250;
+import device.SampleRingBuffer;
+import device.bus.SimulatedMpu9250;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link SampleRingBuffer}: one producer fed by a simulated sensor, two consumers reading in batches.
+ * Samples read and lost by consumers are reported as secondary results.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingBufferBenchmark {
+    private static final int BATCH = 64;
+
+    @State(Scope.Group)
+    public static class Ring {
+        final SampleRingBuffer ring = new SampleRingBuffer(4096);
+        SimulatedMpu9250 sim;
+        Mpu9250 mpu9250;
+        final ImuSample sample = new ImuSample();
+
+        @Setup
+        public void setup(){
+            sim = new SimulatedMpu9250();
+            sim.setMotionAmplitude(0);
+            mpu9250 = new Mpu9250(sim.getMpuBus());
+            sim.setAutoStep(false);
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Consumer {
+        SampleRingBuffer.Cursor cursor;
+        final long[] timestamps = new long[BATCH];
+        final short[] values = new short[BATCH * SampleRingBuffer.VALUES];
+        /** Samples read */
+        public long read;
+        /** Samples overwritten before they were read */
+        public long lost;
+
+        @Setup(Level.Iteration)
+        public void setup(Ring ring){
+            cursor = ring.ring.newCursor();
+            read = 0;
+        }
+    }
+
+    /** Read a sample from the simulated sensor and publish it */
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public void publish(Ring ring){
+        ring.sim.step(1);
+        ring.mpu9250.readSample(ring.sample);
+        ring.ring.publish(ring.sample);
+    }
+
+    /** Read a batch of waiting samples */
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(2)
+    public long consume(Consumer consumer){
+        int n = consumer.cursor.read(consumer.timestamps, consumer.values, BATCH);
+        long sum = 0;
+        for(int j = 0; j < n * SampleRingBuffer.VALUES; ++j){
+            sum += consumer.values[j];
+        }
+        consumer.read += n;
+        consumer.lost = consumer.cursor.getLostCount();
+        return sum;
+    }
+}
@@ -3,29 +3,69 @@ package Main;
 import com.pi4j.io.i2c.I2CBus;
 import com.pi4j.io.i2c.I2CDevice;
 import com.pi4j.io.i2c.I2CFactory;
+import device.CalibrationCache;
 import device.Magnetometer;
 import device.Mpu9250;
+import device.Scale;
+import device.StartupPipeline;
+import device.bus.BusManager;
+import metrics.Metrics;
+import metrics.MetricsServer;
 import module.AHRS;
-import module.tool.Timer;
+import module.tool.LoopScheduler;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 
 public class Main {
 
     public static void main(String[] args) {
-        Mpu9250 mpu9250 = new Mpu9250();
-        Magnetometer mag = new Magnetometer(0x0c, mpu9250.getScale(), Magnetometer.MagMode.MAG_MODE_100HZ);
-        Timer t = new Timer();
+        StartupPipeline startup;
+        CalibrationCache cache = new CalibrationCache(new File(
+                System.getProperty("philae.calibration", "/var/lib/philae/calibration.properties")));
+        try {
+            BusManager bus = new BusManager(1);
+            startup = StartupPipeline.open(bus, 1, false,
+                    new Scale(Scale.AccScale.AFS_4G, Scale.GyroScale.GFS_250DPS, Scale.MagScale.MFS_16BIT),
+                    Magnetometer.MagMode.MAG_MODE_100HZ, cache);
+            if(Metrics.ENABLED){
+                bus.publish();
+                Metrics.registerMBeans();
+                MetricsServer server = new MetricsServer(Integer.getInteger("philae.metrics.port", 9100));
+                server.start();
+                System.out.println("Metrics on http://127.0.0.1:" + server.getPort() + "/metrics");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        startup.run();
+        System.out.print(startup.getTiming());
+        final Mpu9250 mpu9250 = startup.getMpu9250();
+        mpu9250.enableTemperatureCompensation();
+        final Magnetometer magnetometer = startup.getMagnetometer();
+        //Keep what was learned while running for the next boot
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mpu9250.saveTemperatureCompensation();
+                mpu9250.saveMagCalibration();
+                if(magnetometer != null){
+                    magnetometer.saveCalibration();
+                }
+            }
+        }, "save-calibration"));
+        LoopScheduler scheduler = new LoopScheduler(100000000);
 //        System.out.println(Arrays.toString(mpu9250.read16Bit((byte)Mpu9250.Registers.SELF_TEST_X_GYRO.getAddress(), 3)));
 
 
         while(true){
 //            mpu9250.updateGyroscope();
 //            System.out.println(mpu9250.getGyro_z());
-            mag.update();
-            t.spinLock(100000000);
-            System.out.println(Arrays.toString(mag.getMag()));
+            mpu9250.updateMotion(); // AK8963 is polled by internal I2C master, its data comes in the same read
+            scheduler.await();
+            System.out.println(Arrays.toString(mpu9250.getMagData()));
         }
 //        AHRS ahrs = new AHRS(mpu9250);
 //        mpu9250.sleep(200);
@@ -0,0 +1,210 @@
+package device;
+
+/**
+ * Converts blocks of raw int16 triplets (x, y, z, x, y, z, ...) into physical values: out = raw * factor - bias.
+ * Factors and biases of the three axes are expanded once into a pattern of {@link #PERIOD} values,
+ * so the inner loop runs with unit stride and no index arithmetic (i % 3), which lets JIT vectorize it.
+ * Used for blocks of samples (FIFO batches, replayed logs), a single sample is cheaper with plain code.
+ * Immutable and thread safe, conversion doesn't allocate memory.
+ */
+public final class BlockConverter {
+    /** Values of a triplet */
+    public static final int AXES = 3;
+    /** Length of the repeated pattern, multiple of 3 and of common vector lengths (4, 8, 16 lanes) */
+    public static final int PERIOD = 48;
+
+    private final double[] factors = new double[AXES];
+    private final double[] biases = new double[AXES];
+    private final double[] factorPattern = new double[PERIOD];
+    private final double[] biasPattern = new double[PERIOD];
+    private final float[] factorPatternF = new float[PERIOD];
+    private final float[] biasPatternF = new float[PERIOD];
+
+    /**
+     * @param factors Physical value of one LSB of every axis
+     * @param biases  Bias of every axis in physical unit, subtracted after scaling
+     */
+    public BlockConverter(double[] factors, double[] biases){
+        for(int i = 0; i < AXES; ++i){
+            this.factors[i] = factors[i];
+            this.biases[i] = biases[i];
+        }
+        for(int i = 0; i < PERIOD; ++i){
+            factorPattern[i] = factors[i % AXES];
+            biasPattern[i] = biases[i % AXES];
+            factorPatternF[i] = (float)factors[i % AXES];
+            biasPatternF[i] = (float)biases[i % AXES];
+        }
+    }
+
+    /**
+     * Same factor for every axis, no bias.
+     * @param factor Physical value of one LSB
+     */
+    public BlockConverter(double factor){
+        this(new double[]{factor, factor, factor}, new double[AXES]);
+    }
+
+    /**
+     * Accelerometer of a sensor, to g.
+     */
+    public static BlockConverter ofAccel(NineDOF sensor){
+        return new BlockConverter(sensor.getAccelResolution());
+    }
+
+    /**
+     * Gyroscope of a sensor, to dps (offset is already removed by the sensor).
+     */
+    public static BlockConverter ofGyro(NineDOF sensor){
+        return new BlockConverter(sensor.getGyroResolution());
+    }
+
+    /**
+     * Magnetometer of a sensor, to mG with sensitivity adjustment of every axis.
+     * @param sensor Sensor
+     * @param bias   Hard iron bias (mG), null for none
+     */
+    public static BlockConverter ofMag(NineDOF sensor, double[] bias){
+        double[] factors = new double[AXES];
+        for(int i = 0; i < AXES; ++i){
+            factors[i] = sensor.getMagResolution(i);
+        }
+        return new BlockConverter(factors, (bias != null) ? bias : new double[AXES]);
+    }
+
+    /**
+     * Magnetometer scale, to mG with sensitivity adjustment of every axis.
+     * @param scale       Magnetometer scale
+     * @param sensitivity Sensitivity adjustment of the AK8963 (e.g. {@link Magnetometer#getSensitivity()})
+     * @param bias        Hard iron bias (mG), null for none
+     */
+    public static BlockConverter ofMag(Scale.MagScale scale, double[] sensitivity, double[] bias){
+        double[] factors = new double[AXES];
+        for(int i = 0; i < AXES; ++i){
+            factors[i] = scale.getResolution() * sensitivity[i];
+        }
+        return new BlockConverter(factors, (bias != null) ? bias : new double[AXES]);
+    }
+
+    public double getFactor(int axis){
+        return factors[axis];
+    }
+
+    public double getBias(int axis){
+        return biases[axis];
+    }
+
+    /**
+     * Convert triplets to double.
+     * @param raw       Raw values, x, y, z of every triplet
+     * @param rawOffset Index of first value in raw
+     * @param out       Destination
+     * @param outOffset Index of first value in out
+     * @param count     How many triplets
+     */
+    public void convert(short[] raw, int rawOffset, double[] out, int outOffset, int count){
+        int length = count * AXES;
+        check(raw.length, rawOffset, length, out.length, outOffset, length);
+        double[] f = factorPattern;
+        double[] b = biasPattern;
+        int i = 0;
+        for(; i + PERIOD <= length; i += PERIOD){
+            int r = rawOffset + i;
+            int o = outOffset + i;
+            for(int j = 0; j < PERIOD; ++j){
+                out[o + j] = raw[r + j] * f[j] - b[j];
+            }
+        }
+        for(int j = 0; i < length; ++i, ++j){
+            out[outOffset + i] = raw[rawOffset + i] * f[j] - b[j];
+        }
+    }
+
+    /**
+     * Convert triplets to float, twice the lanes of double in a vector.
+     * @param raw       Raw values, x, y, z of every triplet
+     * @param rawOffset Index of first value in raw
+     * @param out       Destination
+     * @param outOffset Index of first value in out
+     * @param count     How many triplets
+     */
+    public void convert(short[] raw, int rawOffset, float[] out, int outOffset, int count){
+        int length = count * AXES;
+        check(raw.length, rawOffset, length, out.length, outOffset, length);
+        float[] f = factorPatternF;
+        float[] b = biasPatternF;
+        int i = 0;
+        for(; i + PERIOD <= length; i += PERIOD){
+            int r = rawOffset + i;
+            int o = outOffset + i;
+            for(int j = 0; j < PERIOD; ++j){
+                out[o + j] = raw[r + j] * f[j] - b[j];
+            }
+        }
+        for(int j = 0; i < length; ++i, ++j){
+            out[outOffset + i] = raw[rawOffset + i] * f[j] - b[j];
+        }
+    }
+
+    /**
+     * Convert triplets of int (e.g. {@link NineDOF#getAccelData()} copied into a block) to double.
+     * @param raw       Raw values, x, y, z of every triplet
+     * @param rawOffset Index of first value in raw
+     * @param out       Destination
+     * @param outOffset Index of first value in out
+     * @param count     How many triplets
+     */
+    public void convert(int[] raw, int rawOffset, double[] out, int outOffset, int count){
+        int length = count * AXES;
+        check(raw.length, rawOffset, length, out.length, outOffset, length);
+        double[] f = factorPattern;
+        double[] b = biasPattern;
+        int i = 0;
+        for(; i + PERIOD <= length; i += PERIOD){
+            int r = rawOffset + i;
+            int o = outOffset + i;
+            for(int j = 0; j < PERIOD; ++j){
+                out[o + j] = raw[r + j] * f[j] - b[j];
+            }
+        }
+        for(int j = 0; i < length; ++i, ++j){
+            out[outOffset + i] = raw[rawOffset + i] * f[j] - b[j];
+        }
+    }
+
+    /**
+     * Convert big endian int16 triplets as read from registers (e.g. a FIFO burst) to double.
+     * @param raw       Raw bytes, high and low byte of x, y, z of every triplet
+     * @param rawOffset Index of first byte in raw
+     * @param out       Destination
+     * @param outOffset Index of first value in out
+     * @param count     How many triplets
+     */
+    public void convertBigEndian(byte[] raw, int rawOffset, double[] out, int outOffset, int count){
+        int length = count * AXES;
+        check(raw.length, rawOffset, length * 2, out.length, outOffset, length);
+        double[] f = factorPattern;
+        double[] b = biasPattern;
+        int i = 0;
+        for(; i + PERIOD <= length; i += PERIOD){
+            int r = rawOffset + i * 2;
+            int o = outOffset + i;
+            for(int j = 0; j < PERIOD; ++j){
+                out[o + j] = (short)((raw[r + 2 * j] << 8) | (raw[r + 2 * j + 1] & 0xff)) * f[j] - b[j];
+            }
+        }
+        for(int j = 0; i < length; ++i, ++j){
+            int r = rawOffset + i * 2;
+            out[outOffset + i] = (short)((raw[r] << 8) | (raw[r + 1] & 0xff)) * f[j] - b[j];
+        }
+    }
+
+    /**
+     * Bounds are checked once, so JIT can drop checks in the inner loop.
+     */
+    private static void check(int rawLength, int rawOffset, int rawCount, int outLength, int outOffset, int outCount){
+        if(rawOffset < 0 || outOffset < 0 || rawOffset + rawCount > rawLength || outOffset + outCount > outLength){
+            throw new ArrayIndexOutOfBoundsException("Block of " + outCount + " values doesn't fit");
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package device;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Calibration results kept in a properties file between boots, so a warm start doesn't need to calibrate again.
+ * Every device has an entry keyed by bus, address and WHO_AM_I (e.g. bus1.0x68.0x71),
+ * which keeps the time and temperature of calibration, gyro offset, gyro bias versus temperature,
+ * AK8963 sensitivity adjustment (ASA), mag bias and soft iron matrix.
+ */
+public class CalibrationCache {
+    /** Default max age of gyro offset (ms), 30 days */
+    public static final long DEFAULT_MAX_AGE = 30L * 24 * 3600 * 1000;
+    /** Default max temperature difference from calibration (degree C) */
+    public static final double DEFAULT_MAX_TEMPERATURE_DRIFT = 5.0;
+
+    private final File file;
+    private final Properties properties = new Properties();
+    private long maxAge = DEFAULT_MAX_AGE;
+    private double maxTemperatureDrift = DEFAULT_MAX_TEMPERATURE_DRIFT;
+
+    /**
+     * Load the file if it exists.
+     * @param file Cache file (e.g. /var/lib/philae/calibration.properties)
+     */
+    public CalibrationCache(File file){
+        this.file = file;
+        if(file.isFile()){
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @param busNumber I2C bus number
+     * @param address   Device address
+     * @param whoAmI    Value of WHO_AM_I (WIA) register
+     * @return          Key of the device
+     */
+    public static String key(int busNumber, int address, int whoAmI){
+        return String.format("bus%d.0x%02x.0x%02x", busNumber, address, whoAmI);
+    }
+
+    /**
+     * Key of a device behind the auxiliary I2C master of another device (e.g. AK8963 of a MPU-9250),
+     * every master has its own, so the key of master is a part of it (e.g. bus1.0x68.0x71.aux0x0c.0x48).
+     * @param masterKey Key of the master device
+     * @param address   Device address on the auxiliary bus
+     * @param whoAmI    Value of WHO_AM_I (WIA) register
+     * @return          Key of the device
+     */
+    public static String auxiliaryKey(String masterKey, int address, int whoAmI){
+        return String.format("%s.aux0x%02x.0x%02x", masterKey, address, whoAmI);
+    }
+
+    public void setMaxAge(long maxAge){
+        this.maxAge = maxAge;
+    }
+
+    public void setMaxTemperatureDrift(double maxTemperatureDrift){
+        this.maxTemperatureDrift = maxTemperatureDrift;
+    }
+
+    /**
+     * Whether gyro offset of an entry could still be used.
+     * @param entry       Entry, could be null
+     * @param temperature Temperature now (degree C)
+     * @return            False if there is no offset, it is older than max age or temperature drifted too much
+     */
+    public boolean isFresh(Entry entry, double temperature){
+        if(entry == null || entry.gyroOffset == null){
+            return false;
+        }
+        long age = System.currentTimeMillis() - entry.time;
+        return age >= 0 && age <= maxAge && Math.abs(temperature - entry.temperature) <= maxTemperatureDrift;
+    }
+
+    /**
+     * @param key Key of device
+     * @return    Entry, null if the device was never saved
+     */
+    public synchronized Entry get(String key){
+        if(properties.getProperty(key + ".time") == null){
+            return null;
+        }
+        Entry entry = new Entry();
+        entry.time = Long.parseLong(properties.getProperty(key + ".time"));
+        entry.temperature = Double.parseDouble(properties.getProperty(key + ".temperature", "NaN"));
+        String gyroOffset = properties.getProperty(key + ".gyroOffset");
+        if(gyroOffset != null){
+            double[] values = parse(gyroOffset);
+            entry.gyroOffset = new int[values.length];
+            for(int i = 0; i < values.length; ++i){
+                entry.gyroOffset[i] = (int)values[i];
+            }
+        }
+        String gyroTemperatureBias = properties.getProperty(key + ".gyroTemperatureBias");
+        if(gyroTemperatureBias != null){
+            entry.gyroTemperatureBias = parse(gyroTemperatureBias);
+        }
+        String sensitivity = properties.getProperty(key + ".sensitivity");
+        if(sensitivity != null){
+            entry.sensitivity = parse(sensitivity);
+        }
+        String magBias = properties.getProperty(key + ".magBias");
+        if(magBias != null){
+            entry.magBias = parse(magBias);
+        }
+        String magSoftIron = properties.getProperty(key + ".magSoftIron");
+        if(magSoftIron != null){
+            entry.magSoftIron = parse(magSoftIron);
+        }
+        return entry;
+    }
+
+    /**
+     * Replace entry of a device and write the file.
+     * @param key   Key of device
+     * @param entry Entry, null fields are not saved
+     */
+    public synchronized void put(String key, Entry entry){
+        properties.remove(key + ".gyroOffset");
+        properties.remove(key + ".gyroTemperatureBias");
+        properties.remove(key + ".sensitivity");
+        properties.remove(key + ".magBias");
+        properties.remove(key + ".magSoftIron");
+        properties.setProperty(key + ".time", Long.toString(entry.time));
+        properties.setProperty(key + ".temperature", Double.toString(entry.temperature));
+        if(entry.gyroOffset != null){
+            StringBuilder builder = new StringBuilder();
+            for(int i = 0; i < entry.gyroOffset.length; ++i){
+                builder.append(i == 0 ? "" : ",").append(entry.gyroOffset[i]);
+            }
+            properties.setProperty(key + ".gyroOffset", builder.toString());
+        }
+        if(entry.gyroTemperatureBias != null){
+            properties.setProperty(key + ".gyroTemperatureBias", format(entry.gyroTemperatureBias));
+        }
+        if(entry.sensitivity != null){
+            properties.setProperty(key + ".sensitivity", format(entry.sensitivity));
+        }
+        if(entry.magBias != null){
+            properties.setProperty(key + ".magBias", format(entry.magBias));
+        }
+        if(entry.magSoftIron != null){
+            properties.setProperty(key + ".magSoftIron", format(entry.magSoftIron));
+        }
+        save();
+    }
+
+    /**
+     * Write to a temporary file then rename it, a power cut never leaves half a file.
+     */
+    private void save(){
+        File parent = file.getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.isDirectory() && !parent.mkdirs()){
+            System.err.println("Can't create directory of calibration cache " + parent);
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, "Philae calibration cache");
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String format(double[] values){
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < values.length; ++i){
+            builder.append(i == 0 ? "" : ",").append(values[i]);
+        }
+        return builder.toString();
+    }
+
+    private static double[] parse(String text){
+        String[] parts = text.split(",");
+        double[] values = new double[parts.length];
+        for(int i = 0; i < parts.length; ++i){
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    /**
+     * Calibration of a device.
+     */
+    public static class Entry {
+        /** When it was calibrated (ms since epoch) */
+        public long time = System.currentTimeMillis();
+        /** Temperature at calibration (degree C), NaN if unknown */
+        public double temperature = Double.NaN;
+        /** Gyro offset registers (XG_OFFSET ~ ZG_OFFSET) */
+        public int[] gyroOffset;
+        /** Gyro bias versus temperature, relative to gyro offset, see {@link TemperatureBiasTable#toArray()} */
+        public double[] gyroTemperatureBias;
+        /** AK8963 sensitivity adjustment from Fuse ROM, (ASA - 128) / 256 + 1 */
+        public double[] sensitivity;
+        /** Hard iron bias of magnetometer (mG) */
+        public double[] magBias;
+        /** Soft iron matrix of magnetometer (3x3, row major) */
+        public double[] magSoftIron;
+    }
+}
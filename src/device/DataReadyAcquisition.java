@@ -0,0 +1,136 @@
+package device;
+
+import device.gpio.DataReadyPin;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Read one sample for every data ready edge of INT pin, instead of polling the sensor.
+ * Edge callback only wakes the acquisition thread, so the GPIO event thread is never blocked by bus reads.
+ */
+public class DataReadyAcquisition {
+    private final NineDOF sensor;
+    private final DataReadyPin pin;
+    private final Consumer<ImuSample> listener;
+    private final ImuSample sample = new ImuSample();
+    /** Edges which are not handled yet */
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile long lastEdge;
+    private volatile Thread thread;
+
+    private volatile long sampleCount = 0;
+    private volatile long missedCount = 0;
+    private volatile long maxLatency = 0;
+    private volatile long latencySum = 0;
+
+    /**
+     * @param sensor   Sensor, data ready interrupt should be enabled (see {@link Mpu9250#enableDataReadyInterrupt()})
+     * @param pin      Pin connected to INT of sensor
+     * @param listener Called on acquisition thread for every sample, the sample is reused after it returns
+     */
+    public DataReadyAcquisition(NineDOF sensor, DataReadyPin pin, Consumer<ImuSample> listener){
+        this.sensor = sensor;
+        this.pin = pin;
+        this.listener = listener;
+    }
+
+    public synchronized void start(){
+        if(thread != null){
+            return;
+        }
+        pending.set(0);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acquire();
+            }
+        }, "imu-acquisition");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+        pin.setListener(new Runnable() {
+            @Override
+            public void run() {
+                onEdge();
+            }
+        });
+    }
+
+    /**
+     * Stop acquisition, returns after the acquisition thread has finished, so listener is not called any more.
+     */
+    public synchronized void stop(){
+        pin.setListener(null);
+        Thread t = thread;
+        thread = null;
+        if(t != null){
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void onEdge(){
+        lastEdge = System.nanoTime();
+        pending.incrementAndGet();
+        Thread t = thread;
+        if(t != null){
+            LockSupport.unpark(t);
+        }
+    }
+
+    private void acquire(){
+        Thread self = Thread.currentThread();
+        while(!self.isInterrupted()){
+            int edges = pending.getAndSet(0);
+            if(edges == 0){
+                LockSupport.park(this);
+                continue;
+            }
+            long edge = lastEdge;
+            //Data registers only hold the newest sample, older edges are lost
+            missedCount += edges - 1;
+            sensor.readSample(sample);
+            long latency = sample.timestamp - edge;
+            latencySum += latency;
+            if(latency > maxLatency){
+                maxLatency = latency;
+            }
+            ++sampleCount;
+            listener.accept(sample);
+        }
+    }
+
+    public long getSampleCount(){
+        return sampleCount;
+    }
+
+    /**
+     * Getter for edges which came before last one was handled, their samples were overwritten.
+     * @return Missed samples
+     */
+    public long getMissedCount(){
+        return missedCount;
+    }
+
+    /**
+     * Getter for max time from edge to the start of sample read.
+     * @return Max latency (ns)
+     */
+    public long getMaxLatency(){
+        return maxLatency;
+    }
+
+    /**
+     * Getter for mean time from edge to the start of sample read.
+     * @return Mean latency (ns)
+     */
+    public double getMeanLatency(){
+        long count = sampleCount;
+        return count == 0 ? 0 : (double)latencySum / count;
+    }
+}
@@ -0,0 +1,189 @@
+package device;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Keeps refining gyro bias whenever a {@link StationarityDetector} says the sensor is still,
+ * so drift of a long run is removed without stopping acquisition for {@link Mpu9250#calibrate(byte, int)}.
+ * Bias is a running mean of still samples which turns into an exponential mean of time constant tau.
+ * The latest bias is published under a StampedLock, readers on other threads copy it optimistically and
+ * never block the acquisition thread.
+ * With hardware write back, whole steps of XG_OFFSET are moved from the software bias to the
+ * offset registers, see {@link #getWriteback(int[], int)}; the rest stays in software.
+ */
+public class GyroBiasEstimator {
+    /** Default time constant of bias (samples) */
+    public static final int DEFAULT_TAU = 2000;
+
+    private final StationarityDetector detector;
+    private int tau = DEFAULT_TAU;
+    /** Bias (LSB), written by acquisition thread only */
+    private final double[] bias = new double[3];
+    private long learned = 0;
+
+    private boolean writeback = false;
+    /** Still samples between two write backs */
+    private long writebackInterval = 10 * DEFAULT_TAU;
+    private long sinceWriteback = 0;
+    private long writebackCount = 0;
+
+    /** Guards published bias */
+    private final StampedLock lock = new StampedLock();
+    private double published0, published1, published2;
+    private long publishedLearned;
+    private boolean publishedStationary;
+
+    /**
+     * @param detector Detector of still periods
+     */
+    public GyroBiasEstimator(StationarityDetector detector){
+        this.detector = detector;
+    }
+
+    /**
+     * Detector with a window of half a second at sample rate of a sensor, tau is 10 seconds.
+     * @param sensor Sensor
+     */
+    public GyroBiasEstimator(NineDOF sensor){
+        this(new StationarityDetector(Math.max(2, sensor.getGyroSampleRate() / 2),
+                sensor.getGyroResolution(), sensor.getAccelResolution()));
+        setTau(10 * sensor.getGyroSampleRate());
+    }
+
+    public StationarityDetector getDetector(){
+        return detector;
+    }
+
+    /**
+     * @param tau Time constant of bias once converged (samples)
+     */
+    public void setTau(int tau){
+        this.tau = Math.max(1, tau);
+        this.writebackInterval = 10L * this.tau;
+    }
+
+    /**
+     * Move whole steps of bias to XG_OFFSET registers, see {@link Mpu9250#getGyroOffsetStep()}.
+     * Mpu9250 skips write back while temperature compensation is enabled, its table is relative to the offset.
+     * @param writeback Whether to write back
+     */
+    public void setHardwareWriteback(boolean writeback){
+        this.writeback = writeback;
+    }
+
+    /**
+     * @param interval Still samples between two write backs
+     */
+    public void setWritebackInterval(long interval){
+        this.writebackInterval = interval;
+    }
+
+    public long getWritebackCount(){
+        return writebackCount;
+    }
+
+    /**
+     * Feed a raw sample before bias correction, O(1).
+     * @param gyro  Raw gyro (x, y, z)
+     * @param accel Raw accel (x, y, z)
+     * @return      Whether the sensor is still
+     */
+    public boolean add(int[] gyro, int[] accel){
+        boolean still = detector.add(gyro, accel, bias);
+        if(still){
+            ++learned;
+            ++sinceWriteback;
+            double gain = 1.0 / Math.min(learned, tau);
+            for(int i = 0; i < 3; ++i){
+                bias[i] += (gyro[i] - bias[i]) * gain;
+            }
+        }
+        publish(still);
+        return still;
+    }
+
+    /**
+     * Subtract bias from raw gyro in place.
+     * @param gyro Raw gyro (x, y, z)
+     */
+    public void correct(int[] gyro){
+        for(int i = 0; i < 3; ++i){
+            gyro[i] -= (int)Math.round(bias[i]);
+        }
+    }
+
+    /**
+     * Whether whole offset steps should be written back now, only after bias converged and the sensor is still.
+     * @param offsetChange Destination of change of gyro offset (raw LSB, multiple of step)
+     * @param step         Raw LSB of gyro output one offset step can move
+     * @return             Whether a write back is due
+     */
+    public boolean getWriteback(int[] offsetChange, int step){
+        if(!writeback || !detector.isStationary() || learned < tau || sinceWriteback < writebackInterval){
+            return false;
+        }
+        boolean due = false;
+        for(int i = 0; i < 3; ++i){
+            offsetChange[i] = (int)Math.round(bias[i] / step) * step;
+            due |= offsetChange[i] != 0;
+        }
+        return due;
+    }
+
+    /**
+     * Gyro output changed because offset registers were written, bias and window follow it.
+     * @param outputShift Change of raw gyro output (x, y, z)
+     */
+    public void onOffsetWritten(int[] outputShift){
+        for(int i = 0; i < 3; ++i){
+            bias[i] += outputShift[i];
+        }
+        detector.shiftGyro(outputShift);
+        sinceWriteback = 0;
+        ++writebackCount;
+        publish(detector.isStationary());
+    }
+
+    private void publish(boolean stationary){
+        long stamp = lock.writeLock();
+        published0 = bias[0];
+        published1 = bias[1];
+        published2 = bias[2];
+        publishedLearned = learned;
+        publishedStationary = stationary;
+        lock.unlockWrite(stamp);
+    }
+
+    /**
+     * Copy latest bias, safe to call from any thread, never blocks acquisition.
+     * @param out Destination of bias (x, y, z) in raw LSB
+     * @return    How many still samples it was learned from
+     */
+    public long getBias(double[] out){
+        while(true){
+            long stamp = lock.tryOptimisticRead();
+            out[0] = published0;
+            out[1] = published1;
+            out[2] = published2;
+            long count = publishedLearned;
+            if(stamp != 0 && lock.validate(stamp)){
+                return count;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Whether the last sample was still, safe to call from any thread.
+     */
+    public boolean isStationary(){
+        while(true){
+            long stamp = lock.tryOptimisticRead();
+            boolean stationary = publishedStationary;
+            if(stamp != 0 && lock.validate(stamp)){
+                return stationary;
+            }
+            Thread.yield();
+        }
+    }
+}
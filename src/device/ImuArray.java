@@ -0,0 +1,522 @@
+package device;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Several IMUs (e.g. Mpu9250 at 0x68 and 0x69 on one or more buses) as one virtual NineDOF.
+ * Every update reads all units back to back in one sweep, converts them to the scale of the first unit
+ * and combines them by mean or by per-axis median (vote).
+ * Units are read one after another, so gyro and accel of every unit are linearly interpolated between
+ * its previous and current sample to a common instant, the earliest read of the healthy units,
+ * which is the time stamp of the sweep.
+ * A unit is left out of a sweep when its read failed, its data stopped changing (stuck)
+ * or it disagrees with the median of the others (needs at least 3 units), every unit keeps its health.
+ * Doesn't allocate memory per sweep. Not thread safe, like other NineDOF.
+ */
+public class ImuArray implements NineDOF {
+    /** Gyro x3, accel x3, temperature */
+    private static final int VALUES = 7;
+    /** Groups of values which are read on their own: gyro (0 ~ 2) and accel (3 ~ 5) */
+    private static final int GYRO = 0, ACCEL = 1;
+
+    public enum Combine {
+        /** Mean of healthy units, noise drops with sqrt(units) */
+        MEAN,
+        /** Per-axis median of healthy units, one bad unit of three can't pull the result */
+        MEDIAN
+    }
+
+    public enum Health {
+        OK,
+        /** Read failed in the last sweep */
+        ERROR,
+        /** Data didn't change for many sweeps */
+        STUCK,
+        /** Disagreed with the other units in the last sweep */
+        OUTLIER
+    }
+
+    private final NineDOF[] units;
+    private final Combine combine;
+    private final boolean magnetometer;
+
+    /** Sweeps with identical data before a unit is stuck */
+    private int stuckLimit = 20;
+    /** Max difference from median before a unit is an outlier (deg / sec, g) */
+    private double gyroTolerance = 10.0;
+    private double accelTolerance = 0.2;
+
+    /** Values of every unit in scale of the first unit */
+    private final double[][] values;
+    private final double[][] magValues;
+    /** Gyro and accel of the previous sample of every unit, and read time of it per group (-1 if none) */
+    private final double[][] previous;
+    private final long[][] previousTime;
+    private final long[] times;
+    private final int[][] lastRaw;
+    private final long[] lastErrors;
+    private final int[] unchanged;
+    private final Health[] health;
+    private final long[] errorSweeps;
+    private final long[] stuckSweeps;
+    private final long[] outlierSweeps;
+    private final boolean[] used;
+    private final double[] column;
+    private int usedCount = 0;
+
+    private final int[] gyro = new int[3];
+    private final int[] accel = new int[3];
+    private final int[] mag = new int[3];
+    private int temperature;
+    private long timestamp;
+    private long timestampSkew;
+    private long sweeps = 0;
+    private long emptySweeps = 0;
+
+    /**
+     * @param units   IMUs, the first one gives scale of output (resolutions, sample rate)
+     * @param combine How to combine units
+     */
+    public ImuArray(List<? extends NineDOF> units, Combine combine){
+        if(units.isEmpty()){
+            throw new IllegalArgumentException("ImuArray needs at least one unit");
+        }
+        this.units = units.toArray(new NineDOF[0]);
+        this.combine = combine;
+        int n = this.units.length;
+        boolean mag = true;
+        for(NineDOF unit : this.units){
+            mag &= unit.hasMagnetometer();
+        }
+        this.magnetometer = mag;
+        values = new double[n][VALUES];
+        magValues = new double[n][3];
+        previous = new double[n][6];
+        previousTime = new long[n][2];
+        for(long[] time : previousTime){
+            Arrays.fill(time, -1);
+        }
+        times = new long[n];
+        lastRaw = new int[n][VALUES];
+        lastErrors = new long[n];
+        unchanged = new int[n];
+        health = new Health[n];
+        Arrays.fill(health, Health.OK);
+        errorSweeps = new long[n];
+        stuckSweeps = new long[n];
+        outlierSweeps = new long[n];
+        used = new boolean[n];
+        column = new double[n];
+        for(int i = 0; i < n; ++i){
+            lastErrors[i] = this.units[i].getErrorCount();
+        }
+    }
+
+    /**
+     * Set how many sweeps with identical data make a unit stuck.
+     */
+    public void setStuckLimit(int stuckLimit){
+        this.stuckLimit = stuckLimit;
+    }
+
+    /**
+     * Set max difference from median of other units before a unit is left out.
+     * @param gyroTolerance  Gyro (deg / sec)
+     * @param accelTolerance Accel (g)
+     */
+    public void setOutlierTolerance(double gyroTolerance, double accelTolerance){
+        this.gyroTolerance = gyroTolerance;
+        this.accelTolerance = accelTolerance;
+    }
+
+    public int getUnitCount(){
+        return units.length;
+    }
+
+    public NineDOF getUnit(int unit){
+        return units[unit];
+    }
+
+    /**
+     * Getter for health of a unit in the last sweep.
+     */
+    public Health getHealth(int unit){
+        return health[unit];
+    }
+
+    /**
+     * Getter for sweeps in which a unit was left out because of the health.
+     * @param unit   Unit
+     * @param reason {@link Health#ERROR}, {@link Health#STUCK} or {@link Health#OUTLIER}
+     * @return       Sweeps
+     */
+    public long getFaultCount(int unit, Health reason){
+        switch(reason){
+            case ERROR:
+                return errorSweeps[unit];
+            case STUCK:
+                return stuckSweeps[unit];
+            case OUTLIER:
+                return outlierSweeps[unit];
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return Units combined in the last sweep
+     */
+    public int getHealthyCount(){
+        return usedCount;
+    }
+
+    /**
+     * Getter for spread of unit time stamps in the last sweep, how far apart their reads were
+     * before they were interpolated to the same instant.
+     * @return Max - min time stamp (ns)
+     */
+    public long getTimestampSkew(){
+        return timestampSkew;
+    }
+
+    public long getSweepCount(){
+        return sweeps;
+    }
+
+    /**
+     * Getter for sweeps without any healthy unit, output kept the previous values.
+     */
+    public long getEmptySweepCount(){
+        return emptySweeps;
+    }
+
+    /**
+     * Read gyro, accel, temperature (and mag if delivered in the same read) of every unit.
+     */
+    @Override
+    public void updateMotion(){
+        for(NineDOF unit : units){
+            unit.updateMotion();
+        }
+        sweep(true, true);
+    }
+
+    /**
+     * Read gyro of every unit, accel and temperature keep their values.
+     */
+    @Override
+    public void updateGyroscope(){
+        for(NineDOF unit : units){
+            unit.updateGyroscope();
+        }
+        sweep(true, false);
+    }
+
+    /**
+     * Read accel of every unit, gyro and temperature keep their values.
+     */
+    @Override
+    public void updateAccelerometer(){
+        for(NineDOF unit : units){
+            unit.updateAccelerometer();
+        }
+        sweep(false, true);
+    }
+
+    /**
+     * Read mag of every unit and combine units which were healthy in the last sweep.
+     */
+    @Override
+    public void updateMagnetometer(){
+        if(!magnetometer){
+            return;
+        }
+        for(NineDOF unit : units){
+            unit.updateMagnetometer();
+        }
+        convertMag();
+        if(usedCount > 0){
+            for(int k = 0; k < 3; ++k){
+                mag[k] = (int)Math.round(combine(magValues, k));
+            }
+        }
+    }
+
+    /**
+     * Check and combine data which units just read, every unit was read back to back.
+     * Stuck units are only found when both gyro and accel were read.
+     */
+    private void sweep(boolean withGyro, boolean withAccel){
+        boolean motion = withGyro && withAccel;
+        int n = units.length;
+        ++sweeps;
+
+        NineDOF first = units[0];
+        double gyroRes = first.getGyroResolution();
+        double accelRes = first.getAccelResolution();
+        long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+        usedCount = 0;
+        for(int i = 0; i < n; ++i){
+            NineDOF unit = units[i];
+            int[] g = unit.getGyroData();
+            int[] a = unit.getAccelData();
+            int t = unit.getTemperatureData();
+
+            long errors = unit.getErrorCount();
+            boolean failed = errors != lastErrors[i];
+            lastErrors[i] = errors;
+            if(motion){
+                boolean same = g[0] == lastRaw[i][0] && g[1] == lastRaw[i][1] && g[2] == lastRaw[i][2]
+                        && a[0] == lastRaw[i][3] && a[1] == lastRaw[i][4] && a[2] == lastRaw[i][5];
+                unchanged[i] = same ? unchanged[i] + 1 : 0;
+                lastRaw[i][0] = g[0]; lastRaw[i][1] = g[1]; lastRaw[i][2] = g[2];
+                lastRaw[i][3] = a[0]; lastRaw[i][4] = a[1]; lastRaw[i][5] = a[2];
+                lastRaw[i][6] = t;
+            }
+
+            if(failed){
+                health[i] = Health.ERROR;
+                ++errorSweeps[i];
+            }else if(unchanged[i] >= stuckLimit){
+                health[i] = Health.STUCK;
+                ++stuckSweeps[i];
+            }else{
+                health[i] = Health.OK;
+            }
+            used[i] = health[i] == Health.OK;
+
+            double[] v = values[i];
+            if(withGyro){
+                double gyroFactor = unit.getGyroResolution() / gyroRes;
+                v[0] = g[0] * gyroFactor;
+                v[1] = g[1] * gyroFactor;
+                v[2] = g[2] * gyroFactor;
+            }
+            if(withAccel){
+                double accelFactor = unit.getAccelResolution() / accelRes;
+                v[3] = a[0] * accelFactor;
+                v[4] = a[1] * accelFactor;
+                v[5] = a[2] * accelFactor;
+            }
+            if(motion){
+                v[6] = t;
+            }
+            times[i] = unit.getSampleTimestamp();
+            if(used[i]){
+                ++usedCount;
+                minTime = Math.min(minTime, times[i]);
+                maxTime = Math.max(maxTime, times[i]);
+            }
+        }
+        if(motion && magnetometer){
+            convertMag();
+        }
+
+        if(usedCount == 0){
+            ++emptySweeps;
+            return;
+        }
+        //Samples of every unit at the time of the earliest read, so no unit is extrapolated
+        if(withGyro){
+            align(GYRO, minTime);
+        }
+        if(withAccel){
+            align(ACCEL, minTime);
+        }
+        timestamp = minTime;
+        timestampSkew = maxTime - minTime;
+
+        if(usedCount >= 3){
+            if(withGyro){
+                rejectOutliers(gyroTolerance / gyroRes, 0, 3);
+            }
+            if(withAccel){
+                rejectOutliers(accelTolerance / accelRes, 3, 6);
+            }
+        }
+        if(usedCount == 0){
+            ++emptySweeps;
+            return;
+        }
+
+        for(int k = 0; k < 3; ++k){
+            if(withGyro){
+                gyro[k] = (int)Math.round(combine(values, k));
+            }
+            if(withAccel){
+                accel[k] = (int)Math.round(combine(values, k + 3));
+            }
+            if(motion && magnetometer){
+                mag[k] = (int)Math.round(combine(magValues, k));
+            }
+        }
+        if(motion){
+            temperature = (int)Math.round(combine(values, 6));
+        }
+    }
+
+    /**
+     * Interpolate a group of values of every unit between its previous and current sample to an instant,
+     * the current sample becomes the previous one.
+     * @param group   {@link #GYRO} or {@link #ACCEL}
+     * @param instant Time (ns), not after current samples of healthy units
+     */
+    private void align(int group, long instant){
+        for(int i = 0; i < units.length; ++i){
+            long t0 = previousTime[i][group];
+            long t1 = times[i];
+            double fraction = 1;
+            if(t0 >= 0 && t1 > t0){
+                fraction = Math.max(0, Math.min(1, (double)(instant - t0) / (t1 - t0)));
+            }
+            double[] v = values[i];
+            double[] p = previous[i];
+            for(int k = group * 3; k < group * 3 + 3; ++k){
+                double current = v[k];
+                v[k] = p[k] + (current - p[k]) * fraction;
+                p[k] = current;
+            }
+            previousTime[i][group] = t1;
+        }
+    }
+
+    private void convertMag(){
+        NineDOF first = units[0];
+        for(int i = 0; i < units.length; ++i){
+            int[] m = units[i].getMagData();
+            for(int k = 0; k < 3; ++k){
+                magValues[i][k] = m[k] * units[i].getMagResolution(k) / first.getMagResolution(k);
+            }
+        }
+    }
+
+    /**
+     * Leave out units which are farther than tolerance from median on any axis of [from, to).
+     */
+    private void rejectOutliers(double tolerance, int from, int to){
+        int n = units.length;
+        for(int k = from; k < to; ++k){
+            double median = median(values, k);
+            for(int i = 0; i < n; ++i){
+                if(used[i] && Math.abs(values[i][k] - median) > tolerance){
+                    used[i] = false;
+                    health[i] = Health.OUTLIER;
+                    ++outlierSweeps[i];
+                    --usedCount;
+                }
+            }
+        }
+    }
+
+    private double combine(double[][] source, int k){
+        if(combine == Combine.MEDIAN){
+            return median(source, k);
+        }
+        double sum = 0;
+        int count = 0;
+        for(int i = 0; i < units.length; ++i){
+            if(used[i]){
+                sum += source[i][k];
+                ++count;
+            }
+        }
+        return sum / count;
+    }
+
+    /**
+     * Median of used units on one axis, insertion sort on a preallocated column (few units).
+     */
+    private double median(double[][] source, int k){
+        int count = 0;
+        for(int i = 0; i < units.length; ++i){
+            if(used[i]){
+                double value = source[i][k];
+                int j = count++;
+                while(j > 0 && column[j - 1] > value){
+                    column[j] = column[j - 1];
+                    --j;
+                }
+                column[j] = value;
+            }
+        }
+        if(count == 0){
+            return 0;
+        }
+        return (count % 2 == 1) ? column[count / 2] : (column[count / 2 - 1] + column[count / 2]) / 2;
+    }
+
+    @Override
+    public int[] getGyroData(){
+        return gyro;
+    }
+
+    @Override
+    public int[] getAccelData(){
+        return accel;
+    }
+
+    @Override
+    public int[] getMagData(){
+        return mag;
+    }
+
+    @Override
+    public boolean hasMagnetometer(){
+        return magnetometer;
+    }
+
+    @Override
+    public long getSampleTimestamp(){
+        return timestamp;
+    }
+
+    @Override
+    public int getTemperatureData(){
+        return temperature;
+    }
+
+    @Override
+    public double getTemperature(){
+        return temperature / 333.87 + 21.0;
+    }
+
+    @Override
+    public int getGyroSampleRate(){
+        return units[0].getGyroSampleRate();
+    }
+
+    @Override
+    public double getGyroResolution(){
+        return units[0].getGyroResolution();
+    }
+
+    @Override
+    public double getAccelResolution(){
+        return units[0].getAccelResolution();
+    }
+
+    @Override
+    public double getMagResolution(int axis){
+        return units[0].getMagResolution(axis);
+    }
+
+    @Override
+    public long getErrorCount(){
+        long errors = 0;
+        for(NineDOF unit : units){
+            errors += unit.getErrorCount();
+        }
+        return errors;
+    }
+
+    @Override
+    public boolean isLive(){
+        for(NineDOF unit : units){
+            if(!unit.isLive()){
+                return false;
+            }
+        }
+        return true;
+    }
+}
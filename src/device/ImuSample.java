@@ -0,0 +1,29 @@
+package device;
+
+/**
+ * Mutable raw sample, allocate once and reuse it for every read.
+ */
+public class ImuSample {
+    /** Time stamp (System.nanoTime) */
+    public long timestamp;
+    /** Accel data */
+    public final int[] accel = new int[3];
+    /** Gyro data */
+    public final int[] gyro = new int[3];
+    /** Mag data */
+    public final int[] mag = new int[3];
+    /** Temperature data */
+    public int temperature;
+
+    public void set(long timestamp, int[] accel, int temperature, int[] gyro){
+        this.timestamp = timestamp;
+        this.temperature = temperature;
+        System.arraycopy(accel, 0, this.accel, 0, 3);
+        System.arraycopy(gyro, 0, this.gyro, 0, 3);
+    }
+
+    public void copyFrom(ImuSample other){
+        set(other.timestamp, other.accel, other.temperature, other.gyro);
+        System.arraycopy(other.mag, 0, mag, 0, 3);
+    }
+}
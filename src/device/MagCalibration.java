@@ -0,0 +1,81 @@
+package device;
+
+/**
+ * Hard and soft iron calibration of a magnetometer, immutable so it could be swapped atomically.
+ * Corrected field = softIron * (raw - bias).
+ */
+public class MagCalibration {
+    private final double[] bias = new double[3];
+    private final double[] softIron = new double[9];
+    private final double fieldStrength;
+    private final double residual;
+    private final long sampleCount;
+
+    /**
+     * @param bias          Hard iron bias (mG)
+     * @param softIron      Soft iron matrix (3x3, row major), identity if there is no soft iron distortion
+     * @param fieldStrength Radius of fitted sphere after correction (mG), NaN if unknown
+     * @param residual      RMS of fit error (normalized), NaN if unknown
+     * @param sampleCount   Samples used by the fit
+     */
+    public MagCalibration(double[] bias, double[] softIron, double fieldStrength, double residual, long sampleCount){
+        System.arraycopy(bias, 0, this.bias, 0, 3);
+        System.arraycopy(softIron, 0, this.softIron, 0, 9);
+        this.fieldStrength = fieldStrength;
+        this.residual = residual;
+        this.sampleCount = sampleCount;
+    }
+
+    /**
+     * Calibration with hard iron bias only.
+     * @param bias Hard iron bias (mG)
+     */
+    public static MagCalibration ofBias(double[] bias){
+        return new MagCalibration(bias, new double[]{1, 0, 0, 0, 1, 0, 0, 0, 1}, Double.NaN, Double.NaN, 0);
+    }
+
+    /**
+     * Correct a measurement, doesn't allocate.
+     * @param x   Raw x (mG)
+     * @param y   Raw y (mG)
+     * @param z   Raw z (mG)
+     * @param out Destination of corrected x, y, z
+     */
+    public void apply(double x, double y, double z, double[] out){
+        x -= bias[0];
+        y -= bias[1];
+        z -= bias[2];
+        out[0] = softIron[0] * x + softIron[1] * y + softIron[2] * z;
+        out[1] = softIron[3] * x + softIron[4] * y + softIron[5] * z;
+        out[2] = softIron[6] * x + softIron[7] * y + softIron[8] * z;
+    }
+
+    public double[] getBias(){
+        return bias.clone();
+    }
+
+    /**
+     * @return Soft iron matrix (3x3, row major)
+     */
+    public double[] getSoftIron(){
+        return softIron.clone();
+    }
+
+    public double getFieldStrength(){
+        return fieldStrength;
+    }
+
+    public double getResidual(){
+        return residual;
+    }
+
+    public long getSampleCount(){
+        return sampleCount;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("bias=(%.1f, %.1f, %.1f) field=%.1f residual=%.4f samples=%d",
+                bias[0], bias[1], bias[2], fieldStrength, residual, sampleCount);
+    }
+}
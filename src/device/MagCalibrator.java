@@ -0,0 +1,299 @@
+package device;
+
+/**
+ * Online hard and soft iron calibration, fits an ellipsoid to the magnetometer stream.
+ * Ellipsoid is the quadric a*x^2 + b*y^2 + c*z^2 + 2d*xy + 2e*xz + 2f*yz + 2g*x + 2h*y + 2i*z = 1,
+ * fitted by least squares: every sample only adds to a 9x9 normal equation (O(1), no allocation),
+ * the equation is solved every few samples by Cholesky decomposition, then the ellipsoid is turned into
+ * bias (center) and soft iron matrix (inverse square root of its shape by Jacobi eigen decomposition).
+ * A solution is only published if it is a real ellipsoid which is not too flat (too little rotation covered).
+ * Not thread safe, should be fed by one thread.
+ */
+public class MagCalibrator {
+    private static final int N = 9;
+
+    private final int minSamples;
+    private final int solveInterval;
+    private final double forgetting;
+    private double maxAxisRatio = 3.0;
+
+    /** Upper triangle of D'D */
+    private final double[] normal = new double[N * N];
+    /** D'1 */
+    private final double[] rhs = new double[N];
+    /** Sum of weights of samples */
+    private double weight = 0;
+    private long count = 0;
+    /** Samples are divided by it to keep normal equation well conditioned */
+    private double scale = 0;
+
+    private final double[] row = new double[N];
+    private final double[] cholesky = new double[N * N];
+    private final double[] solution = new double[N];
+    private final double[] shape = new double[9];
+    private final double[] eigenVectors = new double[9];
+    private final double[] eigenValues = new double[3];
+    private final double[] center = new double[3];
+    private final double[] softIron = new double[9];
+
+    private volatile MagCalibration calibration = null;
+
+    /**
+     * Calibrator which never forgets, solves every 50 samples after 200 samples.
+     */
+    public MagCalibrator(){
+        this(200, 50, 1.0);
+    }
+
+    /**
+     * @param minSamples    Samples before first solve
+     * @param solveInterval Solve every n samples
+     * @param forgetting    Weight of old samples after every sample (0 ~ 1), 1 never forgets.
+     *                      e.g. 0.999 forgets in about 1000 samples, for a changing environment
+     */
+    public MagCalibrator(int minSamples, int solveInterval, double forgetting){
+        this.minSamples = Math.max(N, minSamples);
+        this.solveInterval = Math.max(1, solveInterval);
+        this.forgetting = Math.min(1.0, Math.max(0.0, forgetting));
+    }
+
+    /**
+     * Set max ratio of longest to shortest axis of ellipsoid, a flatter fit is rejected.
+     */
+    public void setMaxAxisRatio(double maxAxisRatio){
+        this.maxAxisRatio = maxAxisRatio;
+    }
+
+    /**
+     * Add a measurement (bias not removed).
+     * @return Whether a new calibration was published
+     */
+    public boolean add(double x, double y, double z){
+        if(scale == 0){
+            double norm = Math.sqrt(x * x + y * y + z * z);
+            scale = norm > 0 ? norm : 1;
+        }
+        x /= scale;
+        y /= scale;
+        z /= scale;
+        row[0] = x * x;
+        row[1] = y * y;
+        row[2] = z * z;
+        row[3] = 2 * x * y;
+        row[4] = 2 * x * z;
+        row[5] = 2 * y * z;
+        row[6] = 2 * x;
+        row[7] = 2 * y;
+        row[8] = 2 * z;
+        if(forgetting < 1.0){
+            for(int i = 0; i < N; ++i){
+                for(int j = i; j < N; ++j){
+                    normal[i * N + j] *= forgetting;
+                }
+                rhs[i] *= forgetting;
+            }
+            weight *= forgetting;
+        }
+        for(int i = 0; i < N; ++i){
+            double r = row[i];
+            for(int j = i; j < N; ++j){
+                normal[i * N + j] += r * row[j];
+            }
+            rhs[i] += r;
+        }
+        weight += 1;
+        ++count;
+        return count >= minSamples && count % solveInterval == 0 && solve();
+    }
+
+    /**
+     * Solve the fit now.
+     * @return Whether a new calibration was published
+     */
+    public boolean solve(){
+        if(count < N || !choleskySolve()){
+            return false;
+        }
+        double[] v = solution;
+        // Shape A and linear part of quadric
+        shape[0] = v[0]; shape[1] = v[3]; shape[2] = v[4];
+        shape[3] = v[3]; shape[4] = v[1]; shape[5] = v[5];
+        shape[6] = v[4]; shape[7] = v[5]; shape[8] = v[2];
+        // Center = -A^-1 * (g, h, i)
+        double c00 = shape[4] * shape[8] - shape[5] * shape[7];
+        double c01 = shape[2] * shape[7] - shape[1] * shape[8];
+        double c02 = shape[1] * shape[5] - shape[2] * shape[4];
+        double c11 = shape[0] * shape[8] - shape[2] * shape[6];
+        double c12 = shape[2] * shape[3] - shape[0] * shape[5];
+        double c22 = shape[0] * shape[4] - shape[1] * shape[3];
+        double det = shape[0] * c00 + shape[1] * (shape[5] * shape[6] - shape[3] * shape[8]) + shape[2] * (shape[3] * shape[7] - shape[4] * shape[6]);
+        if(!(Math.abs(det) > 1e-300)){
+            return false;
+        }
+        center[0] = -(c00 * v[6] + c01 * v[7] + c02 * v[8]) / det;
+        center[1] = -(c01 * v[6] + c11 * v[7] + c12 * v[8]) / det;
+        center[2] = -(c02 * v[6] + c12 * v[7] + c22 * v[8]) / det;
+        // (p - c)' A (p - c) = 1 + c' A c
+        double k = 1;
+        for(int i = 0; i < 3; ++i){
+            for(int j = 0; j < 3; ++j){
+                k += center[i] * shape[i * 3 + j] * center[j];
+            }
+        }
+        if(!(k > 0)){
+            return false;
+        }
+        for(int i = 0; i < 9; ++i){
+            shape[i] /= k;
+        }
+        jacobi(shape, eigenValues, eigenVectors);
+        double min = Math.min(eigenValues[0], Math.min(eigenValues[1], eigenValues[2]));
+        double max = Math.max(eigenValues[0], Math.max(eigenValues[1], eigenValues[2]));
+        if(!(min > 0) || Math.sqrt(max / min) > maxAxisRatio){
+            return false;
+        }
+        // Radius of sphere with the same volume, soft iron = radius * shape^(1/2) keeps field strength
+        double radius = Math.pow(eigenValues[0] * eigenValues[1] * eigenValues[2], -1.0 / 6);
+        for(int i = 0; i < 3; ++i){
+            for(int j = 0; j < 3; ++j){
+                double sum = 0;
+                for(int e = 0; e < 3; ++e){
+                    sum += eigenVectors[i * 3 + e] * Math.sqrt(eigenValues[e]) * eigenVectors[j * 3 + e];
+                }
+                softIron[i * 3 + j] = sum * radius;
+            }
+        }
+        // RMS of (v'd - 1) from the normal equation: v'(D'D)v - 2v'(D'1) + n
+        double quadratic = 0;
+        for(int i = 0; i < N; ++i){
+            for(int j = 0; j < N; ++j){
+                quadratic += v[i] * normal[i <= j ? i * N + j : j * N + i] * v[j];
+            }
+            quadratic -= 2 * v[i] * rhs[i];
+        }
+        double residual = Math.sqrt(Math.max(0, (quadratic + weight) / weight));
+
+        for(int i = 0; i < 3; ++i){
+            center[i] *= scale;
+        }
+        calibration = new MagCalibration(center, softIron, radius * scale, residual, count);
+        return true;
+    }
+
+    /**
+     * Getter for last published calibration.
+     * @return Calibration, null before first successful solve
+     */
+    public MagCalibration getCalibration(){
+        return calibration;
+    }
+
+    public long getSampleCount(){
+        return count;
+    }
+
+    /**
+     * Forget every sample.
+     */
+    public void reset(){
+        java.util.Arrays.fill(normal, 0);
+        java.util.Arrays.fill(rhs, 0);
+        weight = 0;
+        count = 0;
+        scale = 0;
+        calibration = null;
+    }
+
+    /**
+     * Solve normal * solution = rhs, normal is symmetric positive definite.
+     * @return False if it is not positive definite (e.g. samples are on a plane)
+     */
+    private boolean choleskySolve(){
+        double[] l = cholesky;
+        for(int j = 0; j < N; ++j){
+            double sum = normal[j * N + j];
+            for(int k = 0; k < j; ++k){
+                sum -= l[j * N + k] * l[j * N + k];
+            }
+            if(!(sum > 0)){
+                return false;
+            }
+            double diagonal = Math.sqrt(sum);
+            l[j * N + j] = diagonal;
+            for(int i = j + 1; i < N; ++i){
+                double s = normal[j * N + i];
+                for(int k = 0; k < j; ++k){
+                    s -= l[i * N + k] * l[j * N + k];
+                }
+                l[i * N + j] = s / diagonal;
+            }
+        }
+        for(int i = 0; i < N; ++i){
+            double s = rhs[i];
+            for(int k = 0; k < i; ++k){
+                s -= l[i * N + k] * solution[k];
+            }
+            solution[i] = s / l[i * N + i];
+        }
+        for(int i = N - 1; i >= 0; --i){
+            double s = solution[i];
+            for(int k = i + 1; k < N; ++k){
+                s -= l[k * N + i] * solution[k];
+            }
+            solution[i] = s / l[i * N + i];
+        }
+        return true;
+    }
+
+    /**
+     * Eigen decomposition of a symmetric 3x3 matrix by cyclic Jacobi rotations.
+     * @param matrix  Matrix (row major), destroyed
+     * @param values  Destination of eigen values
+     * @param vectors Destination of eigen vectors (columns, row major)
+     */
+    static void jacobi(double[] matrix, double[] values, double[] vectors){
+        double[] a = matrix;
+        for(int i = 0; i < 9; ++i){
+            vectors[i] = (i % 4 == 0) ? 1 : 0;
+        }
+        for(int sweep = 0; sweep < 50; ++sweep){
+            double off = a[1] * a[1] + a[2] * a[2] + a[5] * a[5];
+            if(off < 1e-30 * (a[0] * a[0] + a[4] * a[4] + a[8] * a[8])){
+                break;
+            }
+            for(int p = 0; p < 2; ++p){
+                for(int q = p + 1; q < 3; ++q){
+                    double apq = a[p * 3 + q];
+                    if(apq == 0){
+                        continue;
+                    }
+                    double theta = (a[q * 3 + q] - a[p * 3 + p]) / (2 * apq);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if(theta == 0){
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for(int k = 0; k < 3; ++k){
+                        double akp = a[k * 3 + p], akq = a[k * 3 + q];
+                        a[k * 3 + p] = c * akp - s * akq;
+                        a[k * 3 + q] = s * akp + c * akq;
+                    }
+                    for(int k = 0; k < 3; ++k){
+                        double apk = a[p * 3 + k], aqk = a[q * 3 + k];
+                        a[p * 3 + k] = c * apk - s * aqk;
+                        a[q * 3 + k] = s * apk + c * aqk;
+                    }
+                    for(int k = 0; k < 3; ++k){
+                        double vkp = vectors[k * 3 + p], vkq = vectors[k * 3 + q];
+                        vectors[k * 3 + p] = c * vkp - s * vkq;
+                        vectors[k * 3 + q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        values[0] = a[0];
+        values[1] = a[4];
+        values[2] = a[8];
+    }
+}
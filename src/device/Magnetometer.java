@@ -1,33 +1,93 @@
 package device;
 
-import com.pi4j.io.i2c.I2CBus;
-import com.pi4j.io.i2c.I2CDevice;
-import com.pi4j.io.i2c.I2CFactory;
+import device.bus.I2CRegisterBus;
+import device.bus.ReadPlan;
+import device.bus.RegisterBus;
+import device.bus.TimedRegisterBus;
+import metrics.Telemetry;
 
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
 
 public class Magnetometer {
-    I2CDevice magnetometer;
+    RegisterBus magnetometer;
+    private static final Telemetry.Channel SCALING_TELEMETRY =
+            Telemetry.getDefault().channel("mag sensitivity adjustment: %f %f %f");
+    /** Raw values, at most 10 records per second by default */
+    private volatile Telemetry.Channel telemetry =
+            Telemetry.getDefault().channel("mag raw: %.0f %.0f %.0f", 1, 100000000L);
     double mag[] = new double[3];
     float lastRawMagX, lastRawMagY, lastRawMagZ;
     Scale scale;
     MagMode magMode;
+    /** Sensitivity adjustment of this AK8963 from Fuse ROM, (ASA - 128) / 256 + 1 */
+    private final double[] sensitivity = {1, 1, 1};
     double[] bias = new double[3];
+    /** Hard and soft iron calibration, replaces bias when it is set */
+    private volatile MagCalibration calibration = null;
+    /** Online calibration fed by every update, null if not used */
+    private MagCalibrator calibrator = null;
+    /** Reusable buffer of register read */
+    private final byte[] readBuffer = new byte[8];
+    /** ST1, data and ST2 in one transaction, reading ST2 also tells AK8963 the end of data read */
+    private final ReadPlan dataPlan;
+    /** Where sensitivity adjustment and bias are kept between boots, null if not used */
+    private CalibrationCache calibrationCache = null;
+    private String calibrationKey = null;
+    private int busNumber = 1;
+    private int address = Mpu9250.Registers.AK8963_ADDRESS.getAddress();
+    /** Interval of status polling during init (ns) */
+    private static final long POLL_INTERVAL = 100000L;
+    /** Time of every init phase */
+    private StartupTiming startupTiming = new StartupTiming();
 
     public Magnetometer(int address, Scale scale, MagMode mode){
+        this(openBus(address), scale, mode);
+    }
+
+    /**
+     * Magnetometer on any register bus (e.g. {@link device.bus.SimulatedMpu9250#getMagBus()}).
+     * @param bus   Register bus of AK8963
+     * @param scale Scale
+     * @param mode  Continuous measurement mode
+     */
+    public Magnetometer(RegisterBus bus, Scale scale, MagMode mode){
+        this(bus, scale, mode, null, 1, Mpu9250.Registers.AK8963_ADDRESS.getAddress());
+    }
+
+    /**
+     * Magnetometer which takes sensitivity adjustment and bias from calibration cache,
+     * Fuse ROM is only read when the cache doesn't have it.
+     * @param bus       Register bus of AK8963
+     * @param scale     Scale
+     * @param mode      Continuous measurement mode
+     * @param cache     Calibration cache, null if not used
+     * @param busNumber I2C bus number of AK8963 (key of cache)
+     * @param address   Address of AK8963 (key of cache)
+     */
+    public Magnetometer(RegisterBus bus, Scale scale, MagMode mode, CalibrationCache cache, int busNumber, int address){
+        this.magnetometer = TimedRegisterBus.instrument(bus);
+        this.dataPlan = new ReadPlan(magnetometer, 0)
+                .add(Mpu9250.Registers.AK8963_ST1.getAddress(), 1, readBuffer, 0)
+                .add(Mpu9250.Registers.AK8963_XOUT_L.getAddress(), 6, readBuffer, 1)
+                .add(Mpu9250.Registers.AK8963_ST2.getAddress(), 1, readBuffer, 7);
         this.scale = scale;
         this.magMode = mode;
+        this.calibrationCache = cache;
+        this.busNumber = busNumber;
+        this.address = address;
+        init();
+    }
+
+    private static RegisterBus openBus(int address){
         try {
-            I2CBus i2c = I2CFactory.getInstance(1);
-            magnetometer = i2c.getDevice(address);
-        } catch (I2CFactory.UnsupportedBusNumberException e) {
-            e.printStackTrace();
+            return I2CRegisterBus.open(1, address);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        init();
+        return null;
     }
     public void sleep(long mills){
         try{
@@ -36,43 +96,136 @@ public class Magnetometer {
             e.printStackTrace();
         }
     }
+    /**
+     * Init AK8963, every step waits for status of the device (with a deadline) instead of a fixed sleep.
+     */
     public void init() {
-        write(Mpu9250.Registers.AK8963_CNTL.getAddress(),(byte) 0x00); // Power down magnetometer
-        sleep(10);
-        write(Mpu9250.Registers.AK8963_CNTL.getAddress(), (byte)0x0F); // Enter Fuse ROM access mode
-        sleep(10);
-        short rawData[] = read(Mpu9250.Registers.AK8963_ASAX.getAddress(), 3);  // Read the x-, y-, and z-axis calibration values
-        scale.getMag().getScaling()[0] =  (float)(rawData[0] - 128)/256f + 1f;   // Return x-axis sensitivity adjustment values, etc.
-        scale.getMag().getScaling()[1] =  (float)(rawData[1] - 128)/256f + 1f;
-        scale.getMag().getScaling()[2] =  (float)(rawData[2] - 128)/256f + 1f;
-        write(Mpu9250.Registers.AK8963_CNTL.getAddress(), (byte)0x00); // Power down magnetometer
-        sleep(10);
+        startupTiming = new StartupTiming();
+        long start = System.nanoTime();
+        write(Mpu9250.Registers.AK8963_CNTL2.getAddress(), (byte)0x01); // Soft reset, AK8963 is in power-down after it
+        timed("ak8963 reset", start, poll(Mpu9250.Registers.AK8963_CNTL2.getAddress(), 0x01, 0x00, 10000000L));
+
+        start = System.nanoTime();
+        CalibrationCache.Entry entry = null;
+        if(calibrationCache != null){
+            int whoAmI = read(Mpu9250.Registers.WHO_AM_I_AK8963.getAddress());
+            if(whoAmI == 0x48){ // Never cache values of a device which didn't answer
+                calibrationKey = CalibrationCache.key(busNumber, address, whoAmI);
+                entry = calibrationCache.get(calibrationKey);
+            }
+        }
+        if(entry != null && entry.magBias != null && entry.magBias.length == 3){
+            System.arraycopy(entry.magBias, 0, bias, 0, 3);
+            if(entry.magSoftIron != null && entry.magSoftIron.length == 9){
+                calibration = new MagCalibration(entry.magBias, entry.magSoftIron, Double.NaN, Double.NaN, 0);
+            }
+        }
+        if(entry != null && entry.sensitivity != null && entry.sensitivity.length == 3){
+            // Fuse ROM never changes, no need to read it again
+            System.arraycopy(entry.sensitivity, 0, sensitivity, 0, 3);
+        }else{
+            Mpu9250.pause(Mpu9250.MAG_MODE_CHANGE_NANOS);
+            write(Mpu9250.Registers.AK8963_CNTL.getAddress(), (byte)0x0F); // Enter Fuse ROM access mode
+            short rawData[] = read(Mpu9250.Registers.AK8963_ASAX.getAddress(), 3);  // Read the x-, y-, and z-axis calibration values
+            sensitivity[0] =  (float)(rawData[0] - 128)/256f + 1f;   // Return x-axis sensitivity adjustment values, etc.
+            sensitivity[1] =  (float)(rawData[1] - 128)/256f + 1f;
+            sensitivity[2] =  (float)(rawData[2] - 128)/256f + 1f;
+            write(Mpu9250.Registers.AK8963_CNTL.getAddress(), (byte)0x00); // Power down magnetometer
+            saveCalibration();
+        }
+        timed("ak8963 sensitivity adjustment", start, true);
+
+        start = System.nanoTime();
+        Mpu9250.pause(Mpu9250.MAG_MODE_CHANGE_NANOS);
         // Configure the magnetometer for continuous read and highest resolution
         // set Mscale bit 4 to 1 (0) to enable 16 (14) bit resolution in CNTL register,
         // and enable continuous mode data acquisition Mmode (bits [3:0]), 0010 for 8 Hz and 0110 for 100 Hz sample rates
-        write(Mpu9250.Registers.AK8963_CNTL.getAddress(), (byte)(scale.getMag().MFS_16BIT.getValue() << 4 | magMode.getMode())); // Set magnetometer data resolution and sample ODR
-        sleep(10);
-        System.out.println(Arrays.toString(scale.getMag().getScaling()));
+        int cntl = scale.getMag().MFS_16BIT.getValue() << 4 | magMode.getMode();
+        write(Mpu9250.Registers.AK8963_CNTL.getAddress(), (byte)cntl); // Set magnetometer data resolution and sample ODR
+        timed("ak8963 mode", start, poll(Mpu9250.Registers.AK8963_CNTL.getAddress(), 0xff, cntl, 10000000L));
+        SCALING_TELEMETRY.offer(sensitivity);
+    }
+
+    /**
+     * Getter for time of every phase of last init.
+     */
+    public StartupTiming getStartupTiming(){
+        return startupTiming;
+    }
+
+    private void timed(String phase, long start, boolean ok){
+        startupTiming.record(phase, start, ok);
+        if(!ok){
+            System.err.println("Magnetometer " + phase + " timeout");
+        }
+    }
+
+    /**
+     * Poll a register until (data & mask) == expected, a NACK is retried.
+     * @param address Register address
+     * @param timeout Deadline from now (ns)
+     * @return        Whether it matched before deadline
+     */
+    private boolean poll(int address, int mask, int expected, long timeout){
+        long deadline = System.nanoTime() + timeout;
+        while(true){
+            try {
+                if((magnetometer.read(address) & mask) == expected){
+                    return true;
+                }
+            } catch (IOException e) {
+                // Not ready yet
+            }
+            if(System.nanoTime() - deadline >= 0){
+                return false;
+            }
+            LockSupport.parkNanos(POLL_INTERVAL);
+        }
+    }
+
+    /**
+     * Set where raw values are reported, every update offers one record.
+     * @param telemetry Channel of 3 values (x, y, z), null to disable
+     */
+    public void setTelemetry(Telemetry.Channel telemetry){
+        this.telemetry = telemetry;
     }
 
     public void update(){
-        byte newMagData = (byte) (read(Mpu9250.Registers.AK8963_ST1.getAddress()) & 0x01);
-        if (newMagData == 0) return;
-        System.out.println("data update");
-        short[] buffer = read(Mpu9250.Registers.AK8963_ST1.getAddress(), 7);
+        byte[] buffer = readBuffer;
+        try{
+            dataPlan.execute();
+        }catch(IOException e){
+            e.printStackTrace();
+            return;
+        }
+        if ((buffer[0] & 0x01) == 0) return;
 
-        short c = buffer[6];
+        byte c = buffer[7];
         if((c & 0x08) == 0)
         { // Check if magnetic sensor overflow set, if not then report data
-            lastRawMagX = (short) ((buffer[1] << 8) | buffer[0]); // Turn the MSB and LSB into a signed 16-bit value
-            lastRawMagY = (short) ((buffer[3] << 8) | buffer[2]); // Data stored as little Endian
-            lastRawMagZ = (short) ((buffer[5] << 8) | buffer[4]);
+            lastRawMagX = (short) ((buffer[2] << 8) | (buffer[1] & 0xff)); // Turn the MSB and LSB into a signed 16-bit value
+            lastRawMagY = (short) ((buffer[4] << 8) | (buffer[3] & 0xff)); // Data stored as little Endian
+            lastRawMagZ = (short) ((buffer[6] << 8) | (buffer[5] & 0xff));
             float x=lastRawMagX,y=lastRawMagY,z=lastRawMagZ;
-            System.out.println(lastRawMagX + " " + lastRawMagY + " " +  lastRawMagZ);
+            Telemetry.Channel telemetry = this.telemetry;
+            if(telemetry != null){
+                telemetry.offer(lastRawMagX, lastRawMagY, lastRawMagZ);
+            }
+
+            x *= scale.getMag().getResolution()* sensitivity[0];
+            y *= scale.getMag().getResolution()* sensitivity[1];
+            z *= scale.getMag().getResolution()* sensitivity[2];
 
-            x *= scale.getMag().getResolution()* scale.getMag().getScaling()[0];
-            y *= scale.getMag().getResolution()* scale.getMag().getScaling()[1];
-            z *= scale.getMag().getResolution()* scale.getMag().getScaling()[2];
+            MagCalibrator calibrator = this.calibrator;
+            if(calibrator != null && calibrator.add(x, y, z)){
+                calibration = calibrator.getCalibration();
+            }
+            MagCalibration calibration = this.calibration;
+            if(calibration != null){
+                calibration.apply(x, y, z, mag);
+                return;
+            }
 
             x -= bias[0];
             y -= bias[1];
@@ -82,13 +235,64 @@ public class Magnetometer {
             mag[1] = y;
             mag[2] = z;
         }
-        read(0x09);
+    }
+
+    /**
+     * Set hard and soft iron calibration, it replaces {@link #getBias()}. Safe to call from any thread.
+     * @param calibration Calibration, null to only subtract bias
+     */
+    public void setCalibration(MagCalibration calibration){
+        this.calibration = calibration;
+    }
+
+    public MagCalibration getCalibration(){
+        return calibration;
+    }
+
+    /**
+     * Calibrate online, every update feeds the calibrator and its new solutions are used at once.
+     * Rotate the device through as many orientations as possible until {@link MagCalibration#getResidual()} is small.
+     * @param calibrator Calibrator, null to stop
+     */
+    public void setCalibrator(MagCalibrator calibrator){
+        this.calibrator = calibrator;
     }
 
     public double[] getMag(){
         return mag;
     }
 
+    /**
+     * Getter for sensitivity adjustment of this AK8963, read from Fuse ROM or calibration cache by init.
+     * @return Sensitivity adjustment (x, y, z)
+     */
+    public double[] getSensitivity(){
+        return sensitivity;
+    }
+
+    public double[] getBias(){
+        return bias;
+    }
+
+    /**
+     * Save sensitivity adjustment and bias or calibration (e.g. after calibration) to calibration cache.
+     */
+    public void saveCalibration(){
+        if(calibrationCache == null || calibrationKey == null){
+            return;
+        }
+        CalibrationCache.Entry entry = new CalibrationCache.Entry();
+        entry.sensitivity = sensitivity.clone();
+        MagCalibration calibration = this.calibration;
+        if(calibration != null){
+            entry.magBias = calibration.getBias();
+            entry.magSoftIron = calibration.getSoftIron();
+        }else{
+            entry.magBias = bias.clone();
+        }
+        calibrationCache.put(calibrationKey, entry);
+    }
+
     /**
      * Write byte(8 bit) to mpu9250's register
      * @param address Register address
@@ -114,12 +318,10 @@ public class Magnetometer {
             System.err.println("Couldn't match! Mpu9250 write multiple register");
             return;
         }
-        for(int i = 0; i < registerCount; ++i){
-            try {
-                magnetometer.write((address + i), data[i]);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        try {
+            magnetometer.write(address, data, 0, registerCount);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -135,13 +337,15 @@ public class Magnetometer {
 
     public short[] read(int address, int count) {
         short[] data = new short[count];
+        byte[] raw = new byte[count];
         try{
-            for(int i = 0; i < count; ++i){
-                data[i] = (short)magnetometer.read(address + i);
-            }
+            magnetometer.read(address, raw, 0, count);
         }catch(IOException ex){
             ex.printStackTrace();
         }
+        for(int i = 0; i < count; ++i){
+            data[i] = (short)(raw[i] & 0xff);
+        }
         return data;
     }
 
@@ -152,21 +356,30 @@ public class Magnetometer {
      * @return            Short array that contain data.
      */
     public int[] read16Bit(int address, int groupCount){
-        byte[] raw = new byte[groupCount * 2]; //16 bit is two registers.
-        try{
-            magnetometer.read(address, raw, 0, groupCount * 2);
+        int[] group = new int[groupCount];
+        read16Bit(address, groupCount, group, 0);
+        return group;
+    }
 
+    /**
+     * Read 16 bit data into caller's array, doesn't allocate memory if groupCount is not more than 4.
+     * @param address     Register address
+     * @param groupCount  How many group you want to read.(group = how much bit / 16 bit)
+     * @param group       Destination
+     * @param offset      Offset of destination
+     */
+    public void read16Bit(int address, int groupCount, int[] group, int offset){
+        int size = groupCount * 2; //16 bit is two registers.
+        byte[] raw = (size <= readBuffer.length) ? readBuffer : new byte[size];
+        try{
+            magnetometer.read(address, raw, 0, size);
         } catch (IOException e) {
+            Arrays.fill(raw, 0, size, (byte)0);
             e.printStackTrace();
         }
-        int[] group = new int[groupCount];
         for(int i = 0; i < groupCount; ++i){
-            group[i] =((Byte.toUnsignedInt(raw[i * 2]) & 0xff) << 8 | (Byte.toUnsignedInt(raw[i * 2 + 1]) & 0xff));
-            if(group[i] >= 32768){
-                group[i] -= 65536;
-            }
+            group[offset + i] = (short)((raw[i * 2] << 8) | (raw[i * 2 + 1] & 0xff));
         }
-        return group;
     }
     public enum MagMode
     {
@@ -1,31 +1,104 @@
 package device;
 
-import com.pi4j.io.i2c.I2CBus;
-import com.pi4j.io.i2c.I2CDevice;
-import com.pi4j.io.i2c.I2CFactory;
-
 import device.Scale.*;
+import device.bus.CountingRegisterBus;
+import device.bus.I2CRegisterBus;
+import device.bus.ReadPlan;
+import device.bus.RegisterBus;
+import device.bus.TimedRegisterBus;
+import metrics.Telemetry;
 
 
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.locks.LockSupport;
 
 public class Mpu9250 implements NineDOF{
     private static final byte[] MPU9250_ADDRESS = {
             (byte)0x68,
             (byte)0x69
     };
+    private static final Telemetry.Channel CALIBRATION_TELEMETRY =
+            Telemetry.getDefault().channel("gyro offset: %.0f %.0f %.0f");
+    /** Bytes of one FIFO frame, accel(6) + temperature(2) + gyro(6) */
+    public static final int FIFO_FRAME_SIZE = 14;
+    /** Values of one decoded FIFO frame, accel(x, y, z), temperature, gyro(x, y, z) */
+    public static final int FIFO_FRAME_VALUES = 7;
+    /** Size of hardware FIFO (bytes) */
+    public static final int FIFO_SIZE = 512;
+    /** Interval of status polling during init (ns) */
+    private static final long POLL_INTERVAL = 100000L;
+    /** AK8963 should stay in power-down at least 100 us before another mode (ns) */
+    static final long MAG_MODE_CHANGE_NANOS = 100000L;
     /** Sensor reference */
-    private I2CDevice mpu9250 = null;
+    private RegisterBus mpu9250 = null;
+    /** Counts every transaction of mpu9250 */
+    private final CountingRegisterBus counter;
     /** scale */
     private Scale scale;
     /** Gyro data */
-    private int[] gyro = new int[3];
+    private final int[] gyro = new int[3];
     /** Accel data */
-    private int[] accel = new int[3];
+    private final int[] accel = new int[3];
     /** Mag data */
-    private int[] mag = new int[3];
+    private final int[] mag = new int[3];
+    /** Reusable buffer of register read */
+    private final byte[] readBuffer = new byte[32];
+    /** Registers of a sample: accel, temperature, gyro and EXT_SENS_DATA_00 ~ 06 if magnetometer is enabled */
+    private final byte[] sampleBuffer = new byte[21];
+    private ReadPlan samplePlan;
+    /** Reusable buffer of 16 bit data read */
+    private final int[] groupBuffer = new int[7];
+    /** Temperature data */
+    private int temperature;
+    /** Time stamp of last sample (ns) */
+    private long timestamp;
+    /** Gyro offset wrote to XG_OFFSET registers */
+    private final int[] gyroOffset = new int[3];
+    /** Is AK8963 polled by internal I2C master */
+    private boolean magEnabled = false;
+    /** Sensitivity adjustment of this AK8963 from Fuse ROM, (ASA - 128) / 256 + 1 */
+    private final double[] magSensitivity = {1, 1, 1};
+    /** Hard and soft iron calibration of AK8963, applied in {@link #decodeMag(byte[], int)}, null if not used */
+    private volatile MagCalibration magCalibration = null;
+    /** Online calibration fed by every mag sample, null if not used */
+    private MagCalibrator magCalibrator = null;
+    /** Reusable buffer of calibrated mag (mG) */
+    private final double[] magCorrected = new double[3];
+    /** Key of AK8963 in calibration cache, null if it is not cached */
+    private String magKey = null;
+    /** Reusable buffer of FIFO block read */
+    private final byte[] fifoBuffer = new byte[FIFO_SIZE];
+    /** Is FIFO streaming mode enabled */
+    private boolean fifoEnabled = false;
+    /** Times of FIFO overflow */
+    private long fifoOverflowCount = 0;
+    /** Where calibration is kept between boots, null to always calibrate */
+    private CalibrationCache calibrationCache = null;
+    /** I2C bus number and address, key of calibration cache */
+    private int busNumber = 1;
+    private int address = MPU9250_ADDRESS[0];
+    /** Time of every init phase */
+    private StartupTiming startupTiming = new StartupTiming();
+    /** Failed bus transactions */
+    private volatile long errorCount = 0;
+    /** Output data rate of configuration (Hz) */
+    private volatile int sampleRate = 200;
+    /** Digital low pass filter of configuration */
+    private Dlpf dlpf = Dlpf.DLPF_41HZ;
+    /** Is low power accel mode with wake-on-motion enabled */
+    private volatile boolean wakeOnMotion = false;
+    /** INT_ENABLE before wake-on-motion */
+    private byte savedIntEnable = 0x01;
+    /** Gyro bias versus temperature, learned and applied in {@link #updateMotion()}, null if disabled (default) */
+    private volatile TemperatureBiasTable temperatureCompensation = null;
+    /** Online gyro bias of still periods, applied in {@link #updateMotion()}, null if disabled */
+    private volatile GyroBiasEstimator biasEstimator = null;
+    /** Reusable buffers of offset write back */
+    private final int[] offsetChange = new int[3];
+    private final int[] newOffset = new int[3];
+    private final int[] outputShift = new int[3];
 
     public Mpu9250() {
         this(false);
@@ -37,61 +110,236 @@ public class Mpu9250 implements NineDOF{
     }
 
     public Mpu9250(Scale scale, boolean isAD0High) {
+        this(openBus(isAD0High ? MPU9250_ADDRESS[1] : MPU9250_ADDRESS[0]), scale);
+    }
+
+    /**
+     * Mpu9250 on any register bus (e.g. {@link device.bus.SimulatedMpu9250}).
+     * @param bus   Register bus of the device
+     */
+    public Mpu9250(RegisterBus bus) {
+        this(bus, new Scale(Scale.AccScale.AFS_4G, GyroScale.GFS_250DPS, Scale.MagScale.MFS_16BIT));
+    }
+
+    public Mpu9250(RegisterBus bus, Scale scale) {
+        this(bus, scale, null, 1, MPU9250_ADDRESS[0]);
+    }
+
+    /**
+     * Mpu9250 which takes gyro offset from calibration cache, calibrates only when the cached one is stale.
+     * @param scale     Scale
+     * @param isAD0High Is AD0 pin high
+     * @param cache     Calibration cache
+     */
+    public Mpu9250(Scale scale, boolean isAD0High, CalibrationCache cache) {
+        this(openBus(isAD0High ? MPU9250_ADDRESS[1] : MPU9250_ADDRESS[0]), scale, cache, 1,
+                isAD0High ? MPU9250_ADDRESS[1] : MPU9250_ADDRESS[0]);
+    }
+
+    /**
+     * Mpu9250 on any I2C bus, e.g. several IMUs on several buses of Raspberry Pi (see {@link ImuArray}).
+     * @param busNumber I2C bus number
+     * @param isAD0High Is AD0 pin high
+     * @param scale     Scale
+     * @param cache     Calibration cache, null to always calibrate
+     */
+    public Mpu9250(int busNumber, boolean isAD0High, Scale scale, CalibrationCache cache) {
+        this(openBus(busNumber, isAD0High ? MPU9250_ADDRESS[1] : MPU9250_ADDRESS[0]), scale, cache, busNumber,
+                isAD0High ? MPU9250_ADDRESS[1] : MPU9250_ADDRESS[0]);
+    }
+
+    /**
+     * @param bus       Register bus of the device
+     * @param scale     Scale
+     * @param cache     Calibration cache, null to always calibrate
+     * @param busNumber I2C bus number of the device (key of cache)
+     * @param address   Address of the device (key of cache)
+     */
+    public Mpu9250(RegisterBus bus, Scale scale, CalibrationCache cache, int busNumber, int address) {
+        this(bus, scale, cache, busNumber, address, true);
+    }
+
+    /**
+     * @param init Run {@link #init()}, {@link StartupPipeline} runs the phases by itself
+     */
+    Mpu9250(RegisterBus bus, Scale scale, CalibrationCache cache, int busNumber, int address, boolean init) {
+        this.counter = new CountingRegisterBus(bus);
+        this.mpu9250 = TimedRegisterBus.instrument(counter);
+        this.samplePlan = newSamplePlan(false);
+        this.scale = scale;
+        this.calibrationCache = cache;
+        this.busNumber = busNumber;
+        this.address = address;
+        if(init){
+            init();
+        }
+    }
+
+    private static RegisterBus openBus(int address){
+        return openBus(1, address);
+    }
+
+    private static RegisterBus openBus(int busNumber, int address){
         try{
-            I2CBus i2c = I2CFactory.getInstance(1);
-            if(isAD0High){
-                mpu9250 = i2c.getDevice(MPU9250_ADDRESS[1]);
-            }else{
-                mpu9250 = i2c.getDevice(MPU9250_ADDRESS[0]);
-            }
+            return I2CRegisterBus.open(busNumber, address);
         }catch (IOException e) {
             e.printStackTrace();
-        } catch (I2CFactory.UnsupportedBusNumberException e) {
-            e.printStackTrace();
         }
-
-        this.scale = scale;
-        init();
+        return null;
     }
 
     /**
      * Init Gyroscope and Accelerometer.
+     * Every step waits for status of the device (with a deadline) instead of a fixed sleep.
      */
     public void init(){
-        short temp = read(Mpu9250.Registers.PWR_MGMT_1.getAddress());
+        startupTiming = new StartupTiming();
+        powerUp();
+        configure();
+        startGyro();
+    }
 
-        temp = (byte)(temp & 0x06);  //clear [6](sleep mode), set [1](auto select clock source)
-        write(Mpu9250.Registers.PWR_MGMT_1.getAddress(), temp);
-        sleep(150);
+    /**
+     * Getter for time of every phase of last init.
+     */
+    public StartupTiming getStartupTiming(){
+        return startupTiming;
+    }
+
+    /**
+     * Wait until device ACKs, reset it and wake it up.
+     */
+    void powerUp(){
+        long start = System.nanoTime();
+        boolean ok = poll(Registers.WHO_AM_I_MPU9250.getAddress(), 0x00, 0x00, 100000000L); // Any answer
+        timed("mpu9250 power on", start, ok);
 
-        temp = (byte)(temp | 0x01);
-        write(Mpu9250.Registers.PWR_MGMT_1.getAddress(), temp);
-        sleep(200);
+        start = System.nanoTime();
+        write(Registers.PWR_MGMT_1.getAddress(), (byte)0x80); // H_RESET, clears itself after reset
+        ok = poll(Registers.PWR_MGMT_1.getAddress(), 0x80, 0x00, 100000000L);
+        timed("mpu9250 reset", start, ok);
 
+        start = System.nanoTime();
+        write(Registers.PWR_MGMT_1.getAddress(), (byte)0x01); // clear [6](sleep mode), set [1](auto select clock source)
+        timed("mpu9250 wake up", start, true);
+    }
+
+    /**
+     * Write configuration, bypass mode is enabled after it (AK8963 is reachable).
+     */
+    void configure(){
+        long start = System.nanoTime();
         writeOffset((byte) Mpu9250.Registers.XG_OFFSET_H.getAddress(), new int[]{0, 0, 0});
 
-        write(Mpu9250.Registers.CONFIG.getAddress(), (byte)0x03); //Gyroscope 41kHz, Temperature 42kHz
+        write(Mpu9250.Registers.CONFIG.getAddress(), dlpf.getConfig()); //Gyroscope 41Hz, Temperature 42Hz by default
 
-        write(Mpu9250.Registers.SMPLRT_DIV.getAddress(), (byte)0x04); //Gyroscope 41k * 1 / (1 + SMPLRT_DIV) = 8k(Hz)
+        write(Mpu9250.Registers.SMPLRT_DIV.getAddress(), divider(sampleRate)); //Gyroscope 1k * 1 / (1 + SMPLRT_DIV) = 200(Hz) by default
 
-        temp = (byte)0;
+        short temp = (byte)0;
         write(Mpu9250.Registers.GYRO_CONFIG.getAddress(), (byte)(temp | scale.getGyro().getValue())); //Gyroscope default 250 (deg / sec)
 
         write(Mpu9250.Registers.ACCEL_CONFIG.getAddress(), (byte)(temp | scale.getAcc().getValue())); //Accelerometer default 4g
 
         temp = read(Mpu9250.Registers.ACCEL_CONFIG.address);
         temp = (byte)(temp & ~0x0F);
-        temp = (byte)(temp | 0x03);
+        temp = (byte)(temp | dlpf.getAccelConfig());
         write(Mpu9250.Registers.ACCEL_CONFIG2.getAddress(), temp);
 
         write(Mpu9250.Registers.INT_PIN_CFG.getAddress(), (byte)0x22);  // INT is 50 microsecond pulse and any read to clear - as per MPUBASICAHRS_T3
         write(Mpu9250.Registers.INT_ENABLE.getAddress(), (byte)0x01);  // Enable data ready (bit 0) interrupt
-        sleep(100);
+        timed("mpu9250 configure", start, true);
+    }
+
+    /**
+     * Wait for first gyro data, then write gyro offset from calibration cache or calibrate.
+     */
+    void startGyro(){
+        long start = System.nanoTime();
+        read(Registers.INT_STATUS.getAddress()); // Clear stale status
+        boolean ok = poll(Registers.INT_STATUS.getAddress(), 0x01, 0x01, 200000000L); // Data ready
+        timed("mpu9250 gyro start-up", start, ok);
 
-        int[] offset = calibrate((byte) Mpu9250.Registers.GYRO_XOUT_H.getAddress(), 4);
-        System.out.println(Arrays.toString(offset));
+        start = System.nanoTime();
+        int[] offset = null;
+        String key = null;
+        double temperatureNow = Double.NaN;
+        if(calibrationCache != null){
+            key = CalibrationCache.key(busNumber, address, read(Registers.WHO_AM_I_MPU9250.getAddress()));
+            temperatureNow = read16Bit(Registers.TEMP_OUT_H.getAddress(), 1)[0] / 333.87 + 21.0;
+            CalibrationCache.Entry entry = calibrationCache.get(key);
+            if(calibrationCache.isFresh(entry, temperatureNow) && entry.gyroOffset.length == 3){
+                offset = entry.gyroOffset;
+            }
+        }
+        boolean cached = offset != null;
+        if(!cached){
+            offset = calibrate((byte) Mpu9250.Registers.GYRO_XOUT_H.getAddress(), 4);
+            if(calibrationCache != null){
+                CalibrationCache.Entry old = calibrationCache.get(key);
+                CalibrationCache.Entry entry = new CalibrationCache.Entry();
+                entry.temperature = temperatureNow;
+                entry.gyroOffset = offset.clone();
+                if(old != null){
+                    entry.sensitivity = old.sensitivity;
+                    entry.magBias = old.magBias;
+                    entry.magSoftIron = old.magSoftIron;
+                }
+                TemperatureBiasTable table = (old != null)
+                        ? TemperatureBiasTable.fromArray(old.gyroTemperatureBias, getGyroResolution()) : null;
+                if(table != null){
+                    //New offset removes the whole bias at this temperature
+                    table.anchor(temperatureNow);
+                    entry.gyroTemperatureBias = table.toArray();
+                }
+                calibrationCache.put(key, entry);
+            }
+        }
+        CALIBRATION_TELEMETRY.offer(offset);
         writeOffset((byte) Mpu9250.Registers.XG_OFFSET_H.getAddress(), offset);
+        System.arraycopy(offset, 0, gyroOffset, 0, 3);
+        timed(cached ? "mpu9250 gyro offset (cached)" : "mpu9250 gyro calibration", start, true);
+    }
+
+    private void timed(String phase, long start, boolean ok){
+        startupTiming.record(phase, start, ok);
+        if(!ok){
+            System.err.println("Mpu9250 " + phase + " timeout");
+        }
+    }
+
+    /**
+     * Poll a register until (data & mask) == expected, a NACK (e.g. powering up) is retried.
+     * @param address Register address
+     * @param timeout Deadline from now (ns)
+     * @return        Whether it matched before deadline
+     */
+    private boolean poll(int address, int mask, int expected, long timeout){
+        long deadline = System.nanoTime() + timeout;
+        while(true){
+            try {
+                if((mpu9250.read(address) & mask) == expected){
+                    return true;
+                }
+            } catch (IOException e) {
+                // Not ready yet
+            }
+            if(System.nanoTime() - deadline >= 0){
+                return false;
+            }
+            LockSupport.parkNanos(POLL_INTERVAL);
+        }
+    }
 
+    /**
+     * Wait at least a time, for delays which have no status bit.
+     * @param nanos Time (ns)
+     */
+    static void pause(long nanos){
+        long deadline = System.nanoTime() + nanos;
+        long remain;
+        while((remain = deadline - System.nanoTime()) > 0){
+            LockSupport.parkNanos(remain);
+        }
     }
 
     public int[] getAccelData(){
@@ -125,25 +373,628 @@ public class Mpu9250 implements NineDOF{
         return gyro[2];
     }
 
+    @Override
+    public int getTemperatureData(){
+        return temperature;
+    }
+
+    @Override
+    public double getTemperature(){
+        return temperature / 333.87 + 21.0;
+    }
+
+    @Override
+    public long getSampleTimestamp(){
+        return timestamp;
+    }
+
     @Override
     public void updateGyroscope() {
-        gyro = read16Bit(Registers.GYRO_XOUT_H.getAddress(), 3);
+        long start = System.nanoTime();
+        read16Bit(Registers.GYRO_XOUT_H.getAddress(), 3, gyro, 0);
+        timestamp = start;
     }
 
     @Override
     public void updateAccelerometer() {
-        accel = read16Bit(Registers.ACCEL_XOUT_H.getAddress(), 3);
+        long start = System.nanoTime();
+        read16Bit(Registers.ACCEL_XOUT_H.getAddress(), 3, accel, 0);
+        timestamp = start;
+    }
+
+    /**
+     * Plan of a sample read, accel, temperature and gyro registers are adjacent,
+     * so are EXT_SENS_DATA_00 ~ 06 after them: the plan is one transaction of 14 (21) bytes.
+     */
+    private ReadPlan newSamplePlan(boolean withMag){
+        ReadPlan plan = new ReadPlan(mpu9250, 0)
+                .add(Registers.ACCEL_XOUT_H.getAddress(), 6, sampleBuffer, 0)
+                .add(Registers.TEMP_OUT_H.getAddress(), 2, sampleBuffer, 6)
+                .add(Registers.GYRO_XOUT_H.getAddress(), 6, sampleBuffer, 8);
+        if(withMag){
+            plan.add(Registers.EXT_SENS_DATA_00.getAddress(), 7, sampleBuffer, 14);
+        }
+        return plan;
+    }
+
+    /**
+     * Read accel, temperature and gyro in one transaction, so they are from the same sample.
+     * If magnetometer is enabled, EXT_SENS_DATA_00 ~ 06 (7 bytes) are read in the same transaction.
+     */
+    @Override
+    public void updateMotion() {
+        //Data registers are latched when the read starts, the time stamp shouldn't include the transfer
+        long start = System.nanoTime();
+        try{
+            samplePlan.execute();
+        } catch (IOException e) {
+            ++errorCount;
+            e.printStackTrace();
+            return;
+        }
+        timestamp = start;
+        byte[] raw = sampleBuffer;
+        for(int i = 0; i < 3; ++i){
+            accel[i] = (short)((raw[i * 2] << 8) | (raw[i * 2 + 1] & 0xff));
+            gyro[i] = (short)((raw[i * 2 + 8] << 8) | (raw[i * 2 + 9] & 0xff));
+        }
+        temperature = (short)((raw[6] << 8) | (raw[7] & 0xff));
+        if(magEnabled){
+            decodeMag(raw, 14);
+        }
+        correct(gyro, accel, temperature, true);
+    }
+
+    /**
+     * Software corrections of a sample which didn't come from {@link #updateMotion()}, e.g. a frame of
+     * {@link #readFifo(int[])}: temperature compensation and online bias, gyro is corrected in place.
+     * Offset registers are never written back here, frames waiting in FIFO were made with the old offset.
+     * @param gyro        Raw gyro (x, y, z)
+     * @param accel       Raw accel (x, y, z)
+     * @param temperature Raw temperature
+     */
+    public void correct(int[] gyro, int[] accel, int temperature){
+        correct(gyro, accel, temperature, false);
+    }
+
+    private void correct(int[] gyro, int[] accel, int temperature, boolean writeback){
+        TemperatureBiasTable table = temperatureCompensation;
+        if(table != null){
+            double celsius = temperature / 333.87 + 21.0;
+            table.add(gyro, celsius);
+            table.correct(gyro, celsius);
+        }
+        GyroBiasEstimator estimator = biasEstimator;
+        if(estimator != null){
+            estimator.add(gyro, accel);
+            //Table is relative to the offset it was learned with, so the offset stays put while it is used
+            if(writeback && table == null && estimator.getWriteback(offsetChange, getGyroOffsetStep())){
+                writeBack(estimator);
+            }
+            estimator.correct(gyro);
+        }
+    }
+
+    /**
+     * Move whole steps of online bias to XG_OFFSET registers, between two samples on acquisition thread,
+     * so the change of gyro output and of software bias happen at the same sample.
+     */
+    private void writeBack(GyroBiasEstimator estimator){
+        for(int i = 0; i < 3; ++i){
+            newOffset[i] = gyroOffset[i] + offsetChange[i];
+            //Every register step is 4 >> FS_SEL LSB of output
+            outputShift[i] = (offsetRegister(newOffset[i]) - offsetRegister(gyroOffset[i])) * 4 / (1 << gyroScaleShift());
+        }
+        long errors = errorCount;
+        writeOffset((byte) Registers.XG_OFFSET_H.getAddress(), newOffset);
+        if(errorCount != errors){
+            return;
+        }
+        System.arraycopy(newOffset, 0, gyroOffset, 0, 3);
+        estimator.onOffsetWritten(outputShift);
+    }
+
+    /**
+     * Set online gyro bias estimation, every sample of {@link #updateMotion()} feeds it and is corrected by it
+     * (after temperature compensation). Set before acquisition starts or from acquisition thread.
+     * Its hardware write back is skipped while temperature compensation is enabled.
+     * @param estimator Estimator (e.g. new GyroBiasEstimator(mpu9250)), null to disable
+     */
+    public void setBiasEstimator(GyroBiasEstimator estimator){
+        this.biasEstimator = estimator;
+    }
+
+    public GyroBiasEstimator getBiasEstimator(){
+        return biasEstimator;
+    }
+
+    /**
+     * Learn gyro bias versus temperature and correct it, the table is restored from calibration cache if it has one.
+     * Disabled by default: the table is relative to the gyro offset, so online bias of
+     * {@link #setBiasEstimator(GyroBiasEstimator)} is not written back to offset registers while it is enabled.
+     */
+    public void enableTemperatureCompensation(){
+        TemperatureBiasTable table = null;
+        if(calibrationCache != null){
+            CalibrationCache.Entry entry = calibrationCache.get(
+                    CalibrationCache.key(busNumber, address, read(Registers.WHO_AM_I_MPU9250.getAddress())));
+            if(entry != null){
+                table = TemperatureBiasTable.fromArray(entry.gyroTemperatureBias, getGyroResolution());
+            }
+        }
+        if(table == null){
+            table = new TemperatureBiasTable(getGyroResolution());
+        }
+        table.setBlockSize(sampleRate);
+        temperatureCompensation = table;
+    }
+
+    /**
+     * Set gyro bias versus temperature, every sample of {@link #updateMotion()} feeds it while the sensor is still
+     * and is corrected by it. Disabled by default, see {@link #enableTemperatureCompensation()}.
+     * Online bias is not written back to offset registers while it is set.
+     * @param table Table, null to disable
+     */
+    public void setTemperatureCompensation(TemperatureBiasTable table){
+        this.temperatureCompensation = table;
+    }
+
+    public TemperatureBiasTable getTemperatureCompensation(){
+        return temperatureCompensation;
+    }
+
+    /**
+     * Write learned gyro bias versus temperature to calibration cache, e.g. before shutdown.
+     */
+    public void saveTemperatureCompensation(){
+        TemperatureBiasTable table = temperatureCompensation;
+        if(calibrationCache == null || table == null){
+            return;
+        }
+        String key = CalibrationCache.key(busNumber, address, read(Registers.WHO_AM_I_MPU9250.getAddress()));
+        CalibrationCache.Entry entry = calibrationCache.get(key);
+        if(entry == null){
+            return;
+        }
+        entry.gyroTemperatureBias = table.toArray();
+        calibrationCache.put(key, entry);
     }
 
+    /**
+     * Read magnetometer data which internal I2C master copied to EXT_SENS_DATA_00 ~ 06.
+     * Not needed if {@link #updateMotion()} is used, it already contains magnetometer data.
+     */
     @Override
     public void updateMagnetometer() {
+        if(!magEnabled){
+            return;
+        }
+        try{
+            mpu9250.read(Registers.EXT_SENS_DATA_00.getAddress(), readBuffer, 0, 7);
+        } catch (IOException e) {
+            ++errorCount;
+            e.printStackTrace();
+            return;
+        }
+        decodeMag(readBuffer, 0);
+    }
+
+    /**
+     * Decode HXL ~ ST2 of AK8963, then apply hard and soft iron calibration if there is one.
+     * Calibrated values are converted back to LSB, so {@link #getMagData()} keeps its unit.
+     * @param raw    Buffer
+     * @param offset Position of HXL
+     */
+    private void decodeMag(byte[] raw, int offset){
+        if((raw[offset + 6] & 0x08) != 0){ //Magnetic sensor overflow
+            return;
+        }
+        for(int i = 0; i < 3; ++i){
+            mag[i] = (short)((raw[offset + i * 2 + 1] << 8) | (raw[offset + i * 2] & 0xff)); //Little endian
+        }
+        MagCalibrator calibrator = magCalibrator;
+        MagCalibration calibration = magCalibration;
+        if(calibrator == null && calibration == null){
+            return;
+        }
+        double x = mag[0] * getMagResolution(0);
+        double y = mag[1] * getMagResolution(1);
+        double z = mag[2] * getMagResolution(2);
+        if(calibrator != null && calibrator.add(x, y, z)){
+            calibration = calibrator.getCalibration();
+            magCalibration = calibration;
+        }
+        if(calibration != null){
+            calibration.apply(x, y, z, magCorrected);
+            for(int i = 0; i < 3; ++i){
+                mag[i] = (int)Math.round(magCorrected[i] / getMagResolution(i));
+            }
+        }
+    }
+
+    /**
+     * Set hard and soft iron calibration of AK8963, {@link #getMagData()} is calibrated from next sample.
+     * Safe to call from any thread.
+     * @param calibration Calibration, null for raw data
+     */
+    public void setMagCalibration(MagCalibration calibration){
+        this.magCalibration = calibration;
+    }
+
+    public MagCalibration getMagCalibration(){
+        return magCalibration;
+    }
+
+    /**
+     * Calibrate AK8963 online, every mag sample feeds the calibrator and its new solutions are used at once.
+     * Set before acquisition starts or from acquisition thread.
+     * @param calibrator Calibrator, null to stop
+     */
+    public void setMagCalibrator(MagCalibrator calibrator){
+        this.magCalibrator = calibrator;
+    }
+
+    /**
+     * Write mag calibration to calibration cache, next boot starts with it.
+     */
+    public void saveMagCalibration(){
+        MagCalibration calibration = magCalibration;
+        if(calibrationCache == null || magKey == null || calibration == null){
+            return;
+        }
+        CalibrationCache.Entry entry = calibrationCache.get(magKey);
+        if(entry == null){
+            entry = new CalibrationCache.Entry();
+        }
+        entry.magBias = calibration.getBias();
+        entry.magSoftIron = calibration.getSoftIron();
+        calibrationCache.put(magKey, entry);
+    }
+
+    @Override
+    public boolean hasMagnetometer(){
+        return magEnabled;
+    }
+
+    @Override
+    public int[] getMagData(){
+        return mag;
+    }
+
+    /**
+     * Getter for sensitivity adjustment of the AK8963 behind this MPU-9250, read by {@link #enableMagnetometer(MagMode)}.
+     * @return Sensitivity adjustment (x, y, z)
+     */
+    public double[] getMagSensitivity(){
+        return magSensitivity;
+    }
+
+    @Override
+    public double getMagResolution(int axis){
+        return scale.getMag().getResolution() * magSensitivity[axis];
+    }
+
+    /**
+     * Let INT pin output a 50 us pulse for every new sample (data ready),
+     * host could read a sample on every rising edge instead of polling.
+     */
+    public void enableDataReadyInterrupt(){
+        short intPinCfg = read(Registers.INT_PIN_CFG.getAddress());
+        write(Registers.INT_PIN_CFG.getAddress(), (byte)(intPinCfg & 0x02)); //Active high, push-pull, 50 us pulse, keep bypass
+        short intEnable = read(Registers.INT_ENABLE.getAddress());
+        write(Registers.INT_ENABLE.getAddress(), (byte)(intEnable | 0x01)); //Data ready interrupt
+    }
+
+    /**
+     * Enter low power accel mode with wake-on-motion: gyro goes to standby, accel is sampled at a low rate
+     * and WOM_INT (INT_STATUS bit 6, also on INT pin) is raised when accel of an axis changed more than threshold
+     * from the previous sample. Data registers are only updated at the low rate until {@link #disableWakeOnMotion()}.
+     * @param thresholdMg Threshold (mg), 4 ~ 1020
+     * @param odr         Rate of accel in low power mode
+     */
+    public void enableWakeOnMotion(int thresholdMg, LpAccelOdr odr){
+        write(Registers.PWR_MGMT_1.getAddress(), (byte)0x01); //Cycle, sleep and standby off
+        write(Registers.PWR_MGMT_2.getAddress(), (byte)0x07); //Accel on, gyro standby
+        int accelConfig2 = read(Registers.ACCEL_CONFIG2.getAddress());
+        write(Registers.ACCEL_CONFIG2.getAddress(), (byte)((accelConfig2 & ~0x0F) | 0x01)); //184 Hz bandwidth, fchoice_b = 0
+        savedIntEnable = (byte)read(Registers.INT_ENABLE.getAddress());
+        write(Registers.INT_ENABLE.getAddress(), (byte)0x40); //Wake-on-motion interrupt only
+        write(Registers.MOT_DETECT_CTRL.getAddress(), (byte)0xC0); //Accel intelligence on, compare with previous sample
+        write(Registers.WOM_THR.getAddress(), (byte)Math.max(1, Math.min(255, thresholdMg / 4)));
+        write(Registers.LP_ACCEL_ODR.getAddress(), odr.getValue());
+        read(Registers.INT_STATUS.getAddress()); //Clear stale status
+        write(Registers.PWR_MGMT_1.getAddress(), (byte)0x21); //Cycle between sleep and accel samples
+        wakeOnMotion = true;
+    }
+
+    /**
+     * Back to full rate accel and gyro from {@link #enableWakeOnMotion(int, LpAccelOdr)}.
+     * Gyro needs its start-up time (35 ms) before its data is valid again.
+     */
+    public void disableWakeOnMotion(){
+        write(Registers.PWR_MGMT_1.getAddress(), (byte)0x01); //Cycle off
+        write(Registers.MOT_DETECT_CTRL.getAddress(), (byte)0x00);
+        write(Registers.PWR_MGMT_2.getAddress(), (byte)0x00); //Gyro leaves standby
+        int accelConfig2 = read(Registers.ACCEL_CONFIG2.getAddress());
+        write(Registers.ACCEL_CONFIG2.getAddress(), (byte)((accelConfig2 & ~0x0F) | dlpf.getAccelConfig()));
+        write(Registers.INT_ENABLE.getAddress(), savedIntEnable);
+        wakeOnMotion = false;
+    }
+
+    public boolean isWakeOnMotion(){
+        return wakeOnMotion;
+    }
+
+    /**
+     * Read and clear INT_STATUS, bit 6 is wake-on-motion, bit 4 FIFO overflow, bit 0 raw data ready.
+     * @return INT_STATUS, 0 if read failed
+     */
+    public int readInterruptStatus(){
+        return read(Registers.INT_STATUS.getAddress()) & 0xff;
+    }
+
+    /**
+     * Let internal I2C master poll AK8963 every sample, data will be in EXT_SENS_DATA_00 ~ 06,
+     * host doesn't need to talk to AK8963 anymore. Bypass mode is disabled.
+     * @param mode Continuous measurement mode
+     * @return     Whether AK8963 answered
+     */
+    public boolean enableMagnetometer(MagMode mode){
+        short intPinCfg = read(Registers.INT_PIN_CFG.getAddress());
+        write(Registers.INT_PIN_CFG.getAddress(), (byte)(intPinCfg & ~0x02)); //Disable bypass
+        short userCtrl = read(Registers.USER_CTRL.getAddress());
+        write(Registers.USER_CTRL.getAddress(), (byte)(userCtrl | 0x20)); //Enable I2C master
+        write(Registers.I2C_MST_CTRL.getAddress(), (byte)0x0D); //I2C master clock 400 kHz
+
+        if(readMagRegister(Registers.WHO_AM_I_AK8963.getAddress()) != 0x48){
+            System.err.println("AK8963 not found on internal I2C master");
+            return false;
+        }
+        long start = System.nanoTime();
+        writeMagRegister(Registers.AK8963_CNTL2.getAddress(), 0x01); // Soft reset, AK8963 is in power-down after it
+        boolean ok = false;
+        long deadline = start + 10000000L;
+        while(!ok && System.nanoTime() - deadline < 0){
+            ok = (readMagRegister(Registers.AK8963_CNTL2.getAddress()) & 0x01) == 0;
+        }
+        timed("ak8963 reset", start, ok);
+
+        start = System.nanoTime();
+        ok = true;
+        String key = null;
+        CalibrationCache.Entry entry = null;
+        if(calibrationCache != null){
+            key = CalibrationCache.auxiliaryKey(
+                    CalibrationCache.key(busNumber, address, read(Registers.WHO_AM_I_MPU9250.getAddress())),
+                    Registers.AK8963_ADDRESS.getAddress(), 0x48);
+            entry = calibrationCache.get(key);
+            magKey = key;
+        }
+        if(entry != null && entry.magBias != null && entry.magBias.length == 3){
+            magCalibration = (entry.magSoftIron != null && entry.magSoftIron.length == 9)
+                    ? new MagCalibration(entry.magBias, entry.magSoftIron, Double.NaN, Double.NaN, 0)
+                    : MagCalibration.ofBias(entry.magBias);
+        }
+        if(entry != null && entry.sensitivity != null && entry.sensitivity.length == 3){
+            // Fuse ROM never changes, no need to read it again
+            System.arraycopy(entry.sensitivity, 0, magSensitivity, 0, 3);
+        }else{
+            pause(MAG_MODE_CHANGE_NANOS);
+            writeMagRegister(Registers.AK8963_CNTL.getAddress(), 0x0F); // Enter Fuse ROM access mode
+            int[] asa = new int[3];
+            for(int i = 0; i < 3 && ok; ++i){ // Sensitivity adjustment values
+                asa[i] = readMagRegister(Registers.AK8963_ASAX.getAddress() + i);
+                ok = asa[i] >= 0;
+            }
+            writeMagRegister(Registers.AK8963_CNTL.getAddress(), 0x00); // Power down magnetometer
+            if(ok){
+                for(int i = 0; i < 3; ++i){
+                    magSensitivity[i] = (float)(asa[i] - 128) / 256f + 1f;
+                }
+            }
+            if(ok && calibrationCache != null){ // Never cache values of a transfer which failed
+                if(entry == null){
+                    entry = new CalibrationCache.Entry();
+                }
+                entry.sensitivity = magSensitivity.clone();
+                calibrationCache.put(key, entry);
+            }
+        }
+        timed("ak8963 sensitivity adjustment", start, ok);
+
+        start = System.nanoTime();
+        pause(MAG_MODE_CHANGE_NANOS);
+        writeMagRegister(Registers.AK8963_CNTL.getAddress(), scale.getMag().getValue() << 4 | mode.getMode());
+        ok = readMagRegister(Registers.AK8963_CNTL.getAddress()) == (scale.getMag().getValue() << 4 | mode.getMode());
+        timed("ak8963 mode", start, ok);
+
+        //Slave 0 read HXL ~ ST2 (7 bytes) every sample, reading ST2 let AK8963 update next data
+        write(Registers.I2C_SLV0_ADDR.getAddress(), (byte)(Registers.AK8963_ADDRESS.getAddress() | 0x80));
+        write(Registers.I2C_SLV0_REG.getAddress(), (byte)Registers.AK8963_XOUT_L.getAddress());
+        write(Registers.I2C_SLV0_CTRL.getAddress(), (byte)0x87);
+        magEnabled = true;
+        samplePlan = newSamplePlan(true);
+        return true;
+    }
+
+    /**
+     * Write a register of AK8963 by slave 4 of internal I2C master.
+     * @param address Register address of AK8963
+     * @param data    Data(8 bit)
+     * @return        Whether AK8963 ACKed the write in time
+     */
+    public boolean writeMagRegister(int address, int data){
+        write(Registers.I2C_SLV4_ADDR.getAddress(), (byte)Registers.AK8963_ADDRESS.getAddress());
+        write(Registers.I2C_SLV4_REG.getAddress(), (byte)address);
+        write(Registers.I2C_SLV4_DO.getAddress(), (byte)data);
+        write(Registers.I2C_SLV4_CTRL.getAddress(), (byte)0x80);
+        return waitSlave4();
+    }
+
+    /**
+     * Read a register of AK8963 by slave 4 of internal I2C master.
+     * @param address Register address of AK8963
+     * @return        Register data, -1 if AK8963 NACKed or slave 4 didn't finish
+     */
+    public int readMagRegister(int address){
+        write(Registers.I2C_SLV4_ADDR.getAddress(), (byte)(Registers.AK8963_ADDRESS.getAddress() | 0x80));
+        write(Registers.I2C_SLV4_REG.getAddress(), (byte)address);
+        write(Registers.I2C_SLV4_CTRL.getAddress(), (byte)0x80);
+        if(!waitSlave4()){
+            return -1;
+        }
+        return read(Registers.I2C_SLV4_DI.getAddress());
+    }
+
+    /**
+     * Poll I2C_SLV4_DONE of I2C_MST_STATUS, a transfer which AK8963 NACKed (I2C_SLV4_NACK) is done but failed.
+     * @return Whether slave 4 transfer done in 10 ms and was ACKed
+     */
+    private boolean waitSlave4(){
+        long deadline = System.nanoTime() + 10000000L;
+        while(System.nanoTime() - deadline < 0){
+            int status = read(Registers.I2C_MST_STATUS.getAddress()); //Status bits clear on read
+            if((status & 0x10) != 0){
+                ++errorCount;
+                return false;
+            }
+            if((status & 0x40) != 0){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long getErrorCount(){
+        return errorCount;
+    }
+
+    /**
+     * Getter for bus transactions since created, slave 4 polls included.
+     * Exact when one thread uses the sensor.
+     */
+    public long getTransactionCount(){
+        return counter.getTransactionCount();
+    }
 
+    public int getBusNumber(){
+        return busNumber;
+    }
+
+    public int getAddress(){
+        return address;
     }
 
     public Scale getScale(){
         return scale;
     }
 
+    /**
+     * Getter for gyro offset which calibration (or online bias write back) wrote to hardware.
+     * @return Gyro offset (x, y, z)
+     */
+    public int[] getGyroOffset(){
+        return gyroOffset;
+    }
+
+    /**
+     * Enable FIFO streaming mode, accel, temperature and gyro will be pushed to FIFO every sample.
+     */
+    public void enableFifo(){
+        short userCtrl = read(Registers.USER_CTRL.getAddress());
+        write(Registers.FIFO_EN.getAddress(), (byte)0x00);
+        write(Registers.USER_CTRL.getAddress(), (byte)((userCtrl & ~0x40) | 0x04)); //Disable and reset FIFO
+        write(Registers.USER_CTRL.getAddress(), (byte)((userCtrl & ~0x04) | 0x40)); //Enable FIFO
+
+        short intEnable = read(Registers.INT_ENABLE.getAddress());
+        write(Registers.INT_ENABLE.getAddress(), (byte)(intEnable | 0x10)); //Enable FIFO overflow interrupt
+
+        write(Registers.FIFO_EN.getAddress(), (byte)0xF8); //Temperature, gyro x, y, z and accel
+        fifoEnabled = true;
+    }
+
+    /**
+     * Disable FIFO streaming mode, back to polling data registers.
+     */
+    public void disableFifo(){
+        write(Registers.FIFO_EN.getAddress(), (byte)0x00);
+        short userCtrl = read(Registers.USER_CTRL.getAddress());
+        write(Registers.USER_CTRL.getAddress(), (byte)((userCtrl & ~0x40) | 0x04)); //Disable and reset FIFO
+        fifoEnabled = false;
+    }
+
+    /**
+     * Drop all data in FIFO and restart from a frame boundary.
+     */
+    public void resetFifo(){
+        short userCtrl = read(Registers.USER_CTRL.getAddress());
+        write(Registers.USER_CTRL.getAddress(), (byte)((userCtrl & ~0x40) | 0x04));
+        write(Registers.USER_CTRL.getAddress(), (byte)((userCtrl & ~0x04) | 0x40));
+    }
+
+    public boolean isFifoEnabled(){
+        return fifoEnabled;
+    }
+
+    /**
+     * Getter for times of FIFO overflow (every overflow drops a batch and resync FIFO).
+     * @return Times of FIFO overflow
+     */
+    public long getFifoOverflowCount(){
+        return fifoOverflowCount;
+    }
+
+    /**
+     * Read how many bytes are waiting in FIFO.
+     * @return Byte count of FIFO (0~512)
+     */
+    public int getFifoCount(){
+        read16Bit(Registers.FIFO_COUNTH.getAddress(), 1, groupBuffer, 0);
+        return groupBuffer[0] & 0x1FFF;
+    }
+
+    /**
+     * Drain complete frames in FIFO with block reads.
+     * Every frame is decoded to {@link #FIFO_FRAME_VALUES} values,
+     * accel(x, y, z), temperature, gyro(x, y, z).
+     * If FIFO overflowed, data in FIFO is not aligned to frame anymore, so drop it and resync.
+     * @param frames Destination of decoded frames, should be able to contain at least one frame.
+     * @return       How many frames were drained.
+     */
+    public int readFifo(int[] frames){
+        if(!fifoEnabled){
+            return 0;
+        }
+        int status = read(Registers.INT_STATUS.getAddress());
+        int count = getFifoCount();
+        if((status & 0x10) != 0 || count >= FIFO_SIZE){
+            ++fifoOverflowCount;
+            resetFifo();
+            return 0;
+        }
+
+        int frameCount = Math.min(count / FIFO_FRAME_SIZE, frames.length / FIFO_FRAME_VALUES);
+        if(frameCount == 0){
+            return 0;
+        }
+        try{
+            mpu9250.read(Registers.FIFO_R_W.getAddress(), fifoBuffer, 0, frameCount * FIFO_FRAME_SIZE);
+        } catch (IOException e) {
+            ++errorCount;
+            e.printStackTrace();
+            return 0;
+        }
+        for(int i = 0; i < frameCount; ++i){
+            int src = i * FIFO_FRAME_SIZE;
+            int dst = i * FIFO_FRAME_VALUES;
+            for(int j = 0; j < FIFO_FRAME_VALUES; ++j){
+                frames[dst + j] = (short)((fifoBuffer[src + j * 2] << 8) | (fifoBuffer[src + j * 2 + 1] & 0xff));
+            }
+        }
+        return frameCount;
+    }
+
     /**
      * Get bias of sensor (3 DOF)
      * @param startAddress Sensor data address
@@ -165,10 +1016,11 @@ public class Mpu9250 implements NineDOF{
         }
         kP *= rate;
         kI *= rate;
+        int[] err = new int[3];
         //run PID
         for(int i = 0; i < iteration; ++i){
             for(int j = 0; j < 100; ++j){
-                int[] err = read16Bit(startAddress, 3);
+                read16Bit(startAddress, 3, err, 0);
                 for(int k = 0; k < 3; ++k){
                     err[k] -= offset[k];
                     errorSum[k] += err[k];
@@ -188,21 +1040,37 @@ public class Mpu9250 implements NineDOF{
         return offset;
     }
 
+    /**
+     * Getter for raw LSB of gyro output one step of XG_OFFSET registers can move at current gyro scale.
+     * A register step is 4 LSB at 250 dps and half of it every doubling, at 2000 dps two steps make 1 LSB.
+     */
+    public int getGyroOffsetStep(){
+        return Math.max(1, 4 >> gyroScaleShift());
+    }
+
+    /** FS_SEL of gyro */
+    private int gyroScaleShift(){
+        return (scale.getGyro().getValue() >> 3) & 0x03;
+    }
+
+    /** Value of XG_OFFSET registers which removes an offset (raw LSB at current gyro scale) */
+    private int offsetRegister(int offset){
+        return -(offset << gyroScaleShift()) / 4;
+    }
+
     /**
      * Write offset to hardware register.
      * @param address First register address
-     * @param offset  Offset array, should contain three value(x, y, z)
+     * @param offset  Offset array (raw LSB at current gyro scale), should contain three value(x, y, z)
      */
     public void writeOffset(byte address, int[] offset){
         byte[] buffer = new byte[6];
         if(address == Mpu9250.Registers.XG_OFFSET_H.getAddress()){
-            //Divide 4 to match the registers of offset expect.
-            buffer[0] = (byte)(((-offset[0] / 4) >> 8) & 0xFF);
-            buffer[1] = (byte)((-offset[0] / 4) & 0xFF);
-            buffer[2] = (byte)(((-offset[1] / 4) >> 8) & 0xFF);
-            buffer[3] = (byte)((-offset[1] / 4) & 0xFF);
-            buffer[4] = (byte)(((-offset[2] / 4) >> 8) & 0xFF);
-            buffer[5] = (byte)((-offset[2] / 4) & 0xFF);
+            for(int i = 0; i < 3; ++i){
+                int register = offsetRegister(offset[i]);
+                buffer[i * 2] = (byte)((register >> 8) & 0xFF);
+                buffer[i * 2 + 1] = (byte)(register & 0xFF);
+            }
 
             write(Mpu9250.Registers.XG_OFFSET_H.getAddress(), 6, buffer);
         }
@@ -217,6 +1085,7 @@ public class Mpu9250 implements NineDOF{
         try{
             mpu9250.write(address, (byte)data);
         }catch(IOException e){
+            ++errorCount;
             e.printStackTrace();
         }
     }
@@ -233,12 +1102,11 @@ public class Mpu9250 implements NineDOF{
             System.err.println("Couldn't match! Mpu9250 write multiple register");
             return;
         }
-        for(int i = 0; i < registerCount; ++i){
-            try {
-                mpu9250.write((address + i), data[i]);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        try {
+            mpu9250.write(address, data, 0, registerCount);
+        } catch (IOException e) {
+            ++errorCount;
+            e.printStackTrace();
         }
     }
 
@@ -252,6 +1120,7 @@ public class Mpu9250 implements NineDOF{
         try {
             registerData = (short)mpu9250.read(address);
         } catch (IOException e) {
+            ++errorCount;
             e.printStackTrace();
         }
         return registerData;
@@ -264,29 +1133,79 @@ public class Mpu9250 implements NineDOF{
      * @return            Short array that contain data.
      */
     public int[] read16Bit(int address, int groupCount){
-        byte[] raw = new byte[groupCount * 2]; //16 bit is two registers.
-        try{
-            mpu9250.read(address, raw, 0, groupCount * 2);
+        int[] group = new int[groupCount];
+        read16Bit(address, groupCount, group, 0);
+        return group;
+    }
 
+    /**
+     * Read 16 bit data into caller's array, doesn't allocate memory if groupCount is not more than 16.
+     * @param address     Register address
+     * @param groupCount  How many group you want to read.(group = how much bit / 16 bit)
+     * @param group       Destination
+     * @param offset      Offset of destination
+     */
+    public void read16Bit(int address, int groupCount, int[] group, int offset){
+        int size = groupCount * 2; //16 bit is two registers.
+        byte[] raw = (size <= readBuffer.length) ? readBuffer : new byte[size];
+        try{
+            mpu9250.read(address, raw, 0, size);
         } catch (IOException e) {
+            ++errorCount;
+            Arrays.fill(raw, 0, size, (byte)0);
             e.printStackTrace();
         }
-        int[] group = new int[groupCount];
         for(int i = 0; i < groupCount; ++i){
-            group[i] =((Byte.toUnsignedInt(raw[i * 2]) & 0xff) << 8 | (Byte.toUnsignedInt(raw[i * 2 + 1]) & 0xff));
-            if(group[i] >= 32768){
-                group[i] -= 65536;
-            }
+            group[offset + i] = (short)((raw[i * 2] << 8) | (raw[i * 2 + 1] & 0xff));
         }
-        return group;
     }
 
     /**
-     * Get gyro sample rate
-     * @return 8000 (Hz)
+     * Get gyro sample rate, it depends on {@link #setDigitalLowPass(Dlpf)} and {@link #setSampleRate(int)}.
+     * @return Output data rate (Hz), 200 by default
      */
     public int getGyroSampleRate(){
-        return 8000;
+        return sampleRate;
+    }
+
+    public Dlpf getDigitalLowPass(){
+        return dlpf;
+    }
+
+    /**
+     * Set digital low pass filter of gyro (CONFIG) and accel (ACCEL_CONFIG2).
+     * {@link Dlpf#DLPF_250HZ} runs at 8 kHz, the others at 1 kHz divided by SMPLRT_DIV.
+     * @param dlpf Filter
+     */
+    public void setDigitalLowPass(Dlpf dlpf){
+        this.dlpf = dlpf;
+        write(Registers.CONFIG.getAddress(), dlpf.getConfig());
+        int accelConfig2 = read(Registers.ACCEL_CONFIG2.getAddress());
+        write(Registers.ACCEL_CONFIG2.getAddress(), (byte)((accelConfig2 & ~0x0F) | dlpf.getAccelConfig()));
+        if(dlpf.getInternalRate() != 1000){
+            sampleRate = dlpf.getInternalRate();
+        }else{
+            write(Registers.SMPLRT_DIV.getAddress(), divider(sampleRate));
+            sampleRate = 1000 / (1 + divider(sampleRate));
+        }
+    }
+
+    /**
+     * Set output data rate by SMPLRT_DIV, only works when internal rate is 1 kHz (not {@link Dlpf#DLPF_250HZ}).
+     * Rate is rounded to 1000 / (1 + SMPLRT_DIV).
+     * @param rate Output data rate (Hz), 4 ~ 1000
+     */
+    public void setSampleRate(int rate){
+        if(dlpf.getInternalRate() != 1000){
+            throw new IllegalStateException("Sample rate divider doesn't work with " + dlpf);
+        }
+        byte divider = divider(rate);
+        write(Registers.SMPLRT_DIV.getAddress(), divider);
+        sampleRate = 1000 / (1 + (divider & 0xff));
+    }
+
+    private static byte divider(int rate){
+        return (byte)Math.max(0, Math.min(255, Math.round(1000f / rate) - 1));
     }
 
     public double getGyroResolution(){
@@ -297,7 +1216,7 @@ public class Mpu9250 implements NineDOF{
     }
 
 
-    enum MagMode
+    public enum MagMode
     {
         MAG_MODE_100HZ   ((byte)0x06,1500), // 6 for 100 Hz continuous magnetometer data read
         MAG_MODE_8HZ	 ((byte)0x02,128); // 2 for 8 Hz, continuous magnetometer data read
@@ -321,6 +1240,94 @@ public class Mpu9250 implements NineDOF{
 
     }
 
+    /**
+     * Digital low pass filter of gyro (DLPF_CFG of CONFIG) and accel (A_DLPF_CFG of ACCEL_CONFIG2) of similar bandwidth.
+     */
+    public enum Dlpf
+    {
+        DLPF_250HZ (0, 1, 250, 8000),
+        DLPF_184HZ (1, 1, 184, 1000),
+        DLPF_92HZ  (2, 2, 92, 1000),
+        DLPF_41HZ  (3, 3, 41, 1000),
+        DLPF_20HZ  (4, 4, 20, 1000),
+        DLPF_10HZ  (5, 5, 10, 1000),
+        DLPF_5HZ   (6, 6, 5, 1000);
+
+        private final int config;
+        private final int accelConfig;
+        private final int bandwidth;
+        private final int internalRate;
+
+        Dlpf(int config, int accelConfig, int bandwidth, int internalRate)
+        {
+            this.config = config;
+            this.accelConfig = accelConfig;
+            this.bandwidth = bandwidth;
+            this.internalRate = internalRate;
+        }
+        public byte getConfig()
+        {
+            return (byte)config;
+        }
+        public byte getAccelConfig()
+        {
+            return (byte)accelConfig;
+        }
+        /**
+         * @return Gyro bandwidth (Hz)
+         */
+        public int getBandwidth()
+        {
+            return bandwidth;
+        }
+        /**
+         * @return Rate before SMPLRT_DIV (Hz)
+         */
+        public int getInternalRate()
+        {
+            return internalRate;
+        }
+    }
+
+    /**
+     * Accel rate in low power mode (LP_ACCEL_ODR).
+     */
+    public enum LpAccelOdr
+    {
+        ODR_0_24HZ (0, 0.24),
+        ODR_0_49HZ (1, 0.49),
+        ODR_0_98HZ (2, 0.98),
+        ODR_1_95HZ (3, 1.95),
+        ODR_3_91HZ (4, 3.91),
+        ODR_7_81HZ (5, 7.81),
+        ODR_15_63HZ(6, 15.63),
+        ODR_31_25HZ(7, 31.25),
+        ODR_62_5HZ (8, 62.5),
+        ODR_125HZ  (9, 125),
+        ODR_250HZ  (10, 250),
+        ODR_500HZ  (11, 500);
+
+        private final int value;
+        private final double rate;
+
+        LpAccelOdr(int value, double rate)
+        {
+            this.value = value;
+            this.rate = rate;
+        }
+        public byte getValue()
+        {
+            return (byte)value;
+        }
+        /**
+         * @return Rate (Hz)
+         */
+        public double getRate()
+        {
+            return rate;
+        }
+    }
+
     public enum Registers
     {
         AK8963_ADDRESS   (0x0C), // i2c bus address
@@ -336,6 +1343,7 @@ public class Mpu9250 implements NineDOF{
         AK8963_ZOUT_H    (0x08),
         AK8963_ST2       (0x09),  // Data overflow bit 3 and data read error status bit 2
         AK8963_CNTL      (0x0A),  // Power down (0000), single-measurement (0001), self-test (1000) and Fuse ROM (1111) modes on bits 3:0
+        AK8963_CNTL2     (0x0B),  // Soft reset (bit 0), clears itself after reset
         AK8963_ASTC      (0x0C),  // Self test control
         AK8963_I2CDIS    (0x0F),  // I2C disable
         AK8963_ASAX      (0x10),  // Fuse ROM x-axis sensitivity adjustment address
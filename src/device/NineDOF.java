@@ -3,15 +3,80 @@ package device;
 public interface NineDOF {
     public int[] getGyroData();
     public int[] getAccelData();
+    /**
+     * Mag data, only valid if {@link #hasMagnetometer()}.
+     * @return Raw mag data (x, y, z)
+     */
+    public int[] getMagData();
+    public boolean hasMagnetometer();
 
     public void updateGyroscope();
     public void updateAccelerometer();
     public void updateMagnetometer();
+    /**
+     * Update accel, temperature and gyro together, all of them come from the same sample.
+     * Mag data is updated as well if the sensor delivers it in the same read.
+     */
+    public void updateMotion();
+
+    /**
+     * Time stamp of the last updated sample.
+     * @return System.nanoTime() when reading of the sample started
+     */
+    public long getSampleTimestamp();
+
+    /**
+     * Whether samples are read from a sensor as they come, so their time stamps are System.nanoTime() of now.
+     * False for played back records, their time stamps are from another clock.
+     * @return True if time stamps can be compared with System.nanoTime()
+     */
+    public default boolean isLive(){
+        return true;
+    }
+
+    /**
+     * Raw die temperature of the last updated sample.
+     * @return Temperature data
+     */
+    public int getTemperatureData();
+
+    /**
+     * Die temperature of the last updated sample.
+     * @return Temperature (degrees Celsius)
+     */
+    public double getTemperature();
 
     public int getGyroSampleRate();
 
     public double getGyroResolution();
     public double getAccelResolution();
+    /**
+     * Resolution of magnetometer, sensitivity adjustment included.
+     * @param axis 0 ~ 2 (x, y, z)
+     * @return     Resolution (mG / LSB)
+     */
+    public double getMagResolution(int axis);
+
+    /**
+     * Getter for failed reads and writes, a growing count means the sensor is unhealthy.
+     * @return Errors since created
+     */
+    public default long getErrorCount(){
+        return 0;
+    }
+
+    /**
+     * Update accel, temperature and gyro, then copy them into caller's sample.
+     * Doesn't allocate memory, sample could be reused for every update.
+     * @param sample Destination
+     */
+    public default void readSample(ImuSample sample){
+        updateMotion();
+        sample.set(getSampleTimestamp(), getAccelData(), getTemperatureData(), getGyroData());
+        if(hasMagnetometer()){
+            System.arraycopy(getMagData(), 0, sample.mag, 0, 3);
+        }
+    }
     /**
      * Sleep specified length of time.
      * @param mills mills that will sleep
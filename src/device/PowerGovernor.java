@@ -0,0 +1,432 @@
+package device;
+
+import device.gpio.DataReadyPin;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Drops MPU-9250 to low power accel sampling with wake-on-motion while the unit is parked,
+ * and brings it back to full rate on motion.
+ * <pre>
+ *  ACTIVE    --(stationary for idle time)-->        LOW_POWER   gyro standby, accel at LP_ACCEL_ODR, host polls slowly
+ *  LOW_POWER --(WOM_INT in INT_STATUS or INT pin)--> WAKING      gyro restarting
+ *  WAKING    --(gyro start-up time, data ready)-->   ACTIVE      full rate samples to listener
+ * </pre>
+ * Latency from motion to full rate samples is bounded, see {@link #getMaxWakeLatencyNanos()}.
+ * Transactions (from {@link Mpu9250#getTransactionCount()}), loop iterations and busy time are counted
+ * in every state, so savings against
+ * full rate polling are reported. {@link #step()} runs one iteration, so the state machine can be driven
+ * by hand against {@link device.bus.SimulatedMpu9250}, {@link #start()} runs it on its own thread.
+ */
+public class PowerGovernor {
+    public enum State {
+        ACTIVE,
+        LOW_POWER,
+        WAKING
+    }
+
+    /** Default time without motion before low power (ns) */
+    public static final long DEFAULT_IDLE_NANOS = 10000000000L;
+    /** Default max gyro rate of a stationary sample (dps) */
+    public static final double DEFAULT_STATIONARY_RATE = 3.0;
+    /** Default accel change which counts as motion, also threshold of wake-on-motion (mg) */
+    public static final int DEFAULT_WAKE_THRESHOLD = 40;
+    /** Default interval of INT_STATUS polls in low power (ns) */
+    public static final long DEFAULT_WAKE_POLL_NANOS = 20000000L;
+    /** Gyro start-up time after standby (ns) */
+    public static final long GYRO_STARTUP_NANOS = 35000000L;
+
+    private final Mpu9250 mpu9250;
+    private final DataReadyPin pin;
+    private final Consumer<ImuSample> listener;
+    private final ImuSample sample = new ImuSample();
+    private volatile State state = State.ACTIVE;
+    private volatile Thread thread;
+
+    private long idleNanos = DEFAULT_IDLE_NANOS;
+    private double stationaryRate = DEFAULT_STATIONARY_RATE;
+    private int wakeThreshold = DEFAULT_WAKE_THRESHOLD;
+    private Mpu9250.LpAccelOdr lowPowerOdr = Mpu9250.LpAccelOdr.ODR_31_25HZ;
+    private long wakePollNanos = DEFAULT_WAKE_POLL_NANOS;
+    private long gyroStartupNanos = GYRO_STARTUP_NANOS;
+
+    /** Stationary samples in a row */
+    private long stillSamples = 0;
+    private final int[] accelReference = new int[3];
+    private boolean haveReference = false;
+    /** Set by INT pin in low power, governor thread stops waiting */
+    private volatile boolean wakeRequested = false;
+    /** Time of last INT edge in low power */
+    private volatile long edgeNanos;
+    /** When WOM_INT was signalled (INT edge, or the poll which saw it) and when gyro left standby */
+    private long motionNanos;
+    private long wakeNanos;
+
+    private long stateSince = System.nanoTime();
+    private final long[] stateNanos = new long[State.values().length];
+    private final long[] busyNanos = new long[State.values().length];
+    private final long[] iterations = new long[State.values().length];
+    private final long[] transactions = new long[State.values().length];
+    private volatile long lowPowerCount = 0;
+    private volatile long lastWakeLatency = 0;
+    private volatile long maxWakeLatency = 0;
+
+    /**
+     * @param mpu9250  Sensor, configured and calibrated
+     * @param pin      Pin connected to INT of sensor, wakes the governor at once on motion; null to only poll
+     * @param listener Gets every full rate sample on governor thread, the sample is reused after it returns
+     */
+    public PowerGovernor(Mpu9250 mpu9250, DataReadyPin pin, Consumer<ImuSample> listener){
+        this.mpu9250 = mpu9250;
+        this.pin = pin;
+        this.listener = listener;
+    }
+
+    /**
+     * @param idleNanos Time without motion before low power (ns)
+     */
+    public void setIdleTime(long idleNanos){
+        this.idleNanos = idleNanos;
+    }
+
+    /**
+     * @param stationaryRate Max gyro rate of a stationary sample (dps)
+     */
+    public void setStationaryRate(double stationaryRate){
+        this.stationaryRate = stationaryRate;
+    }
+
+    /**
+     * @param wakeThreshold Accel change which counts as motion (mg)
+     */
+    public void setWakeThreshold(int wakeThreshold){
+        this.wakeThreshold = wakeThreshold;
+    }
+
+    public void setLowPowerRate(Mpu9250.LpAccelOdr lowPowerOdr){
+        this.lowPowerOdr = lowPowerOdr;
+    }
+
+    /**
+     * @param wakePollNanos Interval of INT_STATUS polls in low power (ns), INT pin could wake earlier
+     */
+    public void setWakePollInterval(long wakePollNanos){
+        this.wakePollNanos = wakePollNanos;
+    }
+
+    /**
+     * @param gyroStartupNanos Wait after gyro leaves standby (ns), 0 for a simulated device without delays
+     */
+    public void setGyroStartupTime(long gyroStartupNanos){
+        this.gyroStartupNanos = gyroStartupNanos;
+    }
+
+    public State getState(){
+        return state;
+    }
+
+    /**
+     * Worst case time from motion to the first full rate sample:
+     * a low power accel period to detect it, a poll interval if there is no INT pin, then
+     * {@link #getMaxResponseLatencyNanos()}. Motion itself can't be seen by the host, so measure against it
+     * from outside (e.g. a simulated motion start).
+     * @return Latency (ns)
+     */
+    public long getMaxWakeLatencyNanos(){
+        return (long)(1e9 / lowPowerOdr.getRate()) + ((pin != null) ? 0 : wakePollNanos) + getMaxResponseLatencyNanos();
+    }
+
+    /**
+     * Worst case of {@link #getLastWakeLatency()}, from WOM_INT signalled to the first full rate sample:
+     * gyro start-up, a sample period and an interval of data ready polls. Thread scheduling isn't included.
+     * @return Latency (ns)
+     */
+    public long getMaxResponseLatencyNanos(){
+        long period = 1000000000L / mpu9250.getGyroSampleRate();
+        return gyroStartupNanos + period + dataReadyPollNanos();
+    }
+
+    private long dataReadyPollNanos(){
+        return Math.max(100000L, 1000000000L / mpu9250.getGyroSampleRate() / 4);
+    }
+
+    public synchronized void start(){
+        if(thread != null){
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long deadline = System.nanoTime();
+                while(!Thread.currentThread().isInterrupted()){
+                    long period = step();
+                    long now = System.nanoTime();
+                    deadline += period;
+                    if(now - deadline > period){
+                        deadline = now + period; //State changed or overrun, don't catch up
+                    }
+                    long remain;
+                    while((remain = deadline - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()){
+                        LockSupport.parkNanos(PowerGovernor.this, remain);
+                        if(state == State.LOW_POWER && wakeRequested){
+                            deadline = System.nanoTime(); //Woken early, next period starts now
+                            break;
+                        }
+                    }
+                }
+            }
+        }, "power-governor");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+        if(pin != null){
+            pin.setListener(new Runnable() {
+                @Override
+                public void run() {
+                    onMotionInterrupt();
+                }
+            });
+        }
+    }
+
+    public synchronized void stop(){
+        if(pin != null){
+            pin.setListener(null);
+        }
+        Thread t = thread;
+        thread = null;
+        if(t != null){
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(state != State.ACTIVE){
+            mpu9250.disableWakeOnMotion();
+            enter(State.ACTIVE, System.nanoTime());
+        }
+    }
+
+    /**
+     * Edge of INT pin, only wakes the governor thread while in low power.
+     */
+    public void onMotionInterrupt(){
+        if(state == State.LOW_POWER){
+            edgeNanos = System.nanoTime();
+            wakeRequested = true;
+            Thread t = thread;
+            if(t != null){
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    /**
+     * Run one iteration of the state machine.
+     * @return Time until next iteration (ns)
+     */
+    public long step(){
+        long begin = System.nanoTime();
+        long transactionsBefore = mpu9250.getTransactionCount();
+        State current = state;
+        long period;
+        switch(current){
+            case ACTIVE:
+                period = active(begin);
+                break;
+            case LOW_POWER:
+                period = lowPower(begin);
+                break;
+            default:
+                period = waking(begin);
+                break;
+        }
+        synchronized (this){
+            ++iterations[current.ordinal()];
+            busyNanos[current.ordinal()] += System.nanoTime() - begin;
+            transactions[current.ordinal()] += mpu9250.getTransactionCount() - transactionsBefore;
+        }
+        return period;
+    }
+
+    private long active(long now){
+        mpu9250.readSample(sample);
+        if(listener != null){
+            listener.accept(sample);
+        }
+        int rate = mpu9250.getGyroSampleRate();
+        if(isStationary()){
+            ++stillSamples;
+        }else{
+            stillSamples = 0;
+        }
+        if(stillSamples * 1000000000L >= idleNanos * rate){
+            mpu9250.enableWakeOnMotion(wakeThreshold, lowPowerOdr);
+            wakeRequested = false;
+            ++lowPowerCount;
+            enter(State.LOW_POWER, now);
+            return wakePollNanos;
+        }
+        return 1000000000L / rate;
+    }
+
+    private boolean isStationary(){
+        double gyroLimit = stationaryRate / mpu9250.getGyroResolution();
+        double accelLimit = wakeThreshold * 0.001 / mpu9250.getAccelResolution();
+        boolean still = true;
+        for(int i = 0; i < 3; ++i){
+            if(Math.abs(sample.gyro[i]) > gyroLimit
+                    || (haveReference && Math.abs(sample.accel[i] - accelReference[i]) > accelLimit)){
+                still = false;
+            }
+        }
+        if(!still || !haveReference){
+            System.arraycopy(sample.accel, 0, accelReference, 0, 3);
+            haveReference = true;
+        }
+        return still;
+    }
+
+    private long lowPower(long now){
+        boolean edge = wakeRequested;
+        wakeRequested = false;
+        int status = mpu9250.readInterruptStatus();
+        if((status & 0x40) == 0){
+            return wakePollNanos;
+        }
+        //Edge is when WOM_INT was signalled, a poll only finds it up to a poll interval later
+        motionNanos = edge ? edgeNanos : now;
+        mpu9250.disableWakeOnMotion();
+        wakeNanos = System.nanoTime();
+        enter(State.WAKING, now);
+        return gyroStartupNanos;
+    }
+
+    private long waking(long now){
+        long remain = gyroStartupNanos - (now - wakeNanos);
+        if(remain > 0){
+            return remain;
+        }
+        int status = mpu9250.readInterruptStatus();
+        if((status & 0x01) == 0){
+            return dataReadyPollNanos();
+        }
+        long latency = System.nanoTime() - motionNanos;
+        lastWakeLatency = latency;
+        maxWakeLatency = Math.max(maxWakeLatency, latency);
+        stillSamples = 0;
+        haveReference = false;
+        enter(State.ACTIVE, now);
+        return 0;
+    }
+
+    private synchronized void enter(State next, long now){
+        stateNanos[state.ordinal()] += now - stateSince;
+        stateSince = now;
+        state = next;
+    }
+
+    /**
+     * Getter for time spent in a state (ns), current state included.
+     */
+    public synchronized long getTimeIn(State s){
+        long time = stateNanos[s.ordinal()];
+        if(s == state){
+            time += System.nanoTime() - stateSince;
+        }
+        return time;
+    }
+
+    public synchronized long getTransactions(State s){
+        return transactions[s.ordinal()];
+    }
+
+    public synchronized long getIterations(State s){
+        return iterations[s.ordinal()];
+    }
+
+    /**
+     * Getter for time the governor was busy (bus transactions and listener) in a state (ns).
+     */
+    public synchronized long getBusyNanos(State s){
+        return busyNanos[s.ordinal()];
+    }
+
+    /**
+     * Getter for how many times low power was entered.
+     */
+    public long getLowPowerCount(){
+        return lowPowerCount;
+    }
+
+    /**
+     * Getter for time from WOM_INT signalled to first full rate sample of last wake up (ns),
+     * from INT edge if there is a pin, otherwise from the poll which saw WOM_INT.
+     * Compare with {@link #getMaxResponseLatencyNanos()}.
+     */
+    public long getLastWakeLatency(){
+        return lastWakeLatency;
+    }
+
+    public long getMaxWakeLatency(){
+        return maxWakeLatency;
+    }
+
+    /**
+     * Share of transactions saved against polling at full rate all the time.
+     * @return 0 ~ 1
+     */
+    public synchronized double getBusSavings(){
+        double full = fullRateIterations();
+        long actual = 0;
+        for(long t : transactions){
+            actual += t;
+        }
+        return (full > 0) ? 1 - actual / full : 0;
+    }
+
+    /**
+     * Share of busy time of governor thread saved against polling at full rate all the time,
+     * full rate cost is the measured busy time per active iteration.
+     * @return 0 ~ 1
+     */
+    public synchronized double getCpuSavings(){
+        long activeIterations = iterations[State.ACTIVE.ordinal()];
+        if(activeIterations == 0){
+            return 0;
+        }
+        double full = fullRateIterations() * busyNanos[State.ACTIVE.ordinal()] / activeIterations;
+        long actual = 0;
+        for(long b : busyNanos){
+            actual += b;
+        }
+        return (full > 0) ? 1 - actual / full : 0;
+    }
+
+    private double fullRateIterations(){
+        long total = 0;
+        for(State s : State.values()){
+            total += getTimeIn(s);
+        }
+        return total * 1e-9 * mpu9250.getGyroSampleRate();
+    }
+
+    /**
+     * Summary of states and savings.
+     */
+    @Override
+    public synchronized String toString(){
+        StringBuilder builder = new StringBuilder();
+        for(State s : State.values()){
+            builder.append(String.format("%-9s %10.1f ms %8d iterations %8d transactions %10.2f ms busy%n", s,
+                    getTimeIn(s) * 1e-6, iterations[s.ordinal()], transactions[s.ordinal()], busyNanos[s.ordinal()] * 1e-6));
+        }
+        builder.append(String.format("low power %d times, wake response last %.1f ms max %.1f ms (bound %.1f ms), "
+                + "from motion bound %.1f ms%n", lowPowerCount, lastWakeLatency * 1e-6, maxWakeLatency * 1e-6,
+                getMaxResponseLatencyNanos() * 1e-6, getMaxWakeLatencyNanos() * 1e-6));
+        builder.append(String.format("bus savings %.1f %%, cpu savings %.1f %%%n", getBusSavings() * 100, getCpuSavings() * 100));
+        return builder.toString();
+    }
+}
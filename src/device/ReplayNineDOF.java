@@ -0,0 +1,227 @@
+package device;
+
+import device.record.FlightRecordReader;
+import device.record.RecordHeader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * NineDOF which plays back a record of {@link device.record.FlightRecorder}, for benchmarking
+ * and regression testing fusion without a sensor.
+ * Every update consumes one frame. Time stamps of samples are the recorded ones (shifted when looping),
+ * so fusion sees the original time step at any speed.
+ */
+public class ReplayNineDOF implements NineDOF {
+    /** Speed of real time playback */
+    public static final double REAL_TIME = 1.0;
+    /** Speed of playback without waiting */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    private final double speed;
+    private final int sampleRate;
+    private boolean loop = false;
+
+    private final FlightRecordReader reader;
+    private RecordHeader header;
+    private final ImuSample sample = new ImuSample();
+    private boolean finished = false;
+    private long frameCount = 0;
+
+    /** Recorded time stamp of first frame and wall clock when it was played */
+    private long firstRecorded = -1;
+    private long firstPlayed;
+    private long lastRecorded;
+    /** Added to recorded time stamps, grows every loop */
+    private long timestampOffset = 0;
+
+    /**
+     * @param directory Directory of segment files
+     * @param prefix    File name prefix used by recorder
+     * @param speed     Playback speed, {@link #REAL_TIME}, a multiple of it, or {@link #AS_FAST_AS_POSSIBLE}
+     */
+    public ReplayNineDOF(File directory, String prefix, double speed) throws IOException {
+        this.speed = speed;
+        reader = new FlightRecordReader(directory, prefix);
+        if(!reader.next(sample)){
+            throw new IOException("No frame in " + new File(directory, prefix + "-*.imu"));
+        }
+        header = reader.getHeader();
+        sampleRate = estimateSampleRate();
+        reader.rewind();
+    }
+
+    /**
+     * Estimate sample rate from the first frames, the first one is in sample already.
+     */
+    private int estimateSampleRate() throws IOException {
+        long first = sample.timestamp;
+        int count = 1;
+        while(count < 64 && reader.next(sample)){
+            ++count;
+        }
+        if(count < 2 || sample.timestamp == first){
+            return 1000;
+        }
+        return (int)Math.round((count - 1) * 1e9 / (sample.timestamp - first));
+    }
+
+    /**
+     * Start again from the first frame when the record ends.
+     */
+    public void setLoop(boolean loop){
+        this.loop = loop;
+    }
+
+    /**
+     * @return Whether the record ended (never if looping)
+     */
+    public boolean isFinished(){
+        return finished;
+    }
+
+    public long getFrameCount(){
+        return frameCount;
+    }
+
+    public RecordHeader getHeader(){
+        return header;
+    }
+
+    /**
+     * Read next frame, wait until its time if speed is not {@link #AS_FAST_AS_POSSIBLE}.
+     */
+    private void advance(){
+        if(finished){
+            return;
+        }
+        try{
+            if(!reader.next(sample)){
+                if(!loop){
+                    finished = true;
+                    return;
+                }
+                timestampOffset += lastRecorded - firstRecorded + 1000000000L / sampleRate;
+                reader.rewind();
+                if(!reader.next(sample)){
+                    finished = true;
+                    return;
+                }
+            }
+        }catch(IOException e){
+            e.printStackTrace();
+            finished = true;
+            return;
+        }
+        header = reader.getHeader();
+        if(firstRecorded < 0){
+            firstRecorded = sample.timestamp;
+            firstPlayed = System.nanoTime();
+        }
+        if(timestampOffset == 0){
+            lastRecorded = sample.timestamp;
+        }
+        sample.timestamp += timestampOffset;
+        ++frameCount;
+
+        if(speed > 0){
+            long due = firstPlayed + (long)((sample.timestamp - firstRecorded) / speed);
+            long remain;
+            while((remain = due - System.nanoTime()) > 50000){
+                LockSupport.parkNanos(remain - 50000);
+            }
+            while(due - System.nanoTime() > 0);
+        }
+    }
+
+    @Override
+    public int[] getGyroData() {
+        return sample.gyro;
+    }
+
+    @Override
+    public int[] getAccelData() {
+        return sample.accel;
+    }
+
+    @Override
+    public int[] getMagData() {
+        return sample.mag;
+    }
+
+    @Override
+    public boolean hasMagnetometer() {
+        return header.hasMag;
+    }
+
+    @Override
+    public void updateGyroscope() {
+        advance();
+    }
+
+    @Override
+    public void updateAccelerometer() {
+        advance();
+    }
+
+    /**
+     * Mag data comes with every frame, nothing to do.
+     */
+    @Override
+    public void updateMagnetometer() {
+
+    }
+
+    @Override
+    public void updateMotion() {
+        advance();
+    }
+
+    @Override
+    public long getSampleTimestamp() {
+        return sample.timestamp;
+    }
+
+    /**
+     * Time stamps are the recorded ones.
+     */
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    @Override
+    public int getTemperatureData() {
+        return sample.temperature;
+    }
+
+    @Override
+    public double getTemperature() {
+        return sample.temperature / 333.87 + 21.0;
+    }
+
+    /**
+     * Sample rate of the record, estimated from its first frames.
+     * @return Sample rate (Hz)
+     */
+    @Override
+    public int getGyroSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public double getGyroResolution() {
+        return header.gyroResolution;
+    }
+
+    @Override
+    public double getAccelResolution() {
+        return header.accelResolution;
+    }
+
+    @Override
+    public double getMagResolution(int axis) {
+        return header.magResolution * header.magScaling[axis];
+    }
+}
@@ -0,0 +1,217 @@
+package device;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Ring buffer of raw samples between acquisition thread (single producer) and any number of consumers.
+ * Every consumer has its own {@link Cursor}, a slow consumer loses the oldest samples instead of slowing producer.
+ * Samples are stored in primitive arrays, a time stamp and {@link #VALUES} int16 values for each.
+ * Every slot has its own StampedLock: producer takes the write stamp (never contended, consumers only read
+ * optimistically), consumers validate each copied slot, so a slot overwritten during the copy is detected.
+ * Every slot also keeps the sequence of its sample, written under the lock, so a slot which was already
+ * rewritten with a newer sample before the copy started (producer lapped the consumer) is detected too.
+ */
+public class SampleRingBuffer {
+    /** Values of a sample, accel(x, y, z), temperature, gyro(x, y, z), mag(x, y, z) */
+    public static final int VALUES = 10;
+
+    private final int capacity;
+    private final int mask;
+    private final long[] timestamps;
+    private final short[] values;
+    private final StampedLock[] locks;
+    /** Sequence of the sample in every slot */
+    private final long[] sequences;
+    /** Sequence of next sample, written by producer only */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity How many samples are kept, rounded up to power of two
+     */
+    public SampleRingBuffer(int capacity){
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        timestamps = new long[size];
+        values = new short[size * VALUES];
+        locks = new StampedLock[size];
+        sequences = new long[size];
+        for(int i = 0; i < size; ++i){
+            locks[i] = new StampedLock();
+            sequences[i] = -1;
+        }
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    /**
+     * Getter for sequence of next sample, it is also how many samples were published.
+     * @return Head sequence
+     */
+    public long getHead(){
+        return head.get();
+    }
+
+    /**
+     * Append a sample, only one thread could publish. Never blocks.
+     * @param sample Raw sample
+     */
+    public void publish(ImuSample sample){
+        long sequence = head.get();
+        int slot = (int)(sequence & mask);
+        int base = slot * VALUES;
+        StampedLock lock = locks[slot];
+        long stamp = lock.writeLock();
+        sequences[slot] = sequence;
+        timestamps[slot] = sample.timestamp;
+        values[base]     = (short)sample.accel[0];
+        values[base + 1] = (short)sample.accel[1];
+        values[base + 2] = (short)sample.accel[2];
+        values[base + 3] = (short)sample.temperature;
+        values[base + 4] = (short)sample.gyro[0];
+        values[base + 5] = (short)sample.gyro[1];
+        values[base + 6] = (short)sample.gyro[2];
+        values[base + 7] = (short)sample.mag[0];
+        values[base + 8] = (short)sample.mag[1];
+        values[base + 9] = (short)sample.mag[2];
+        lock.unlockWrite(stamp);
+        head.lazySet(sequence + 1);
+    }
+
+    /**
+     * New consumer, starts from samples published after now.
+     */
+    public Cursor newCursor(){
+        return new Cursor(head.get());
+    }
+
+    /**
+     * Read position of a consumer, only used by one thread.
+     */
+    public class Cursor {
+        private volatile long position;
+        private long lost = 0;
+
+        private Cursor(long position){
+            this.position = position;
+        }
+
+        public long getPosition(){
+            return position;
+        }
+
+        /**
+         * Getter for samples which were overwritten before this consumer read them.
+         * @return Lost samples
+         */
+        public long getLostCount(){
+            return lost;
+        }
+
+        /**
+         * @return How many samples are waiting (at most capacity)
+         */
+        public int available(){
+            return (int)Math.min(capacity, head.get() - position);
+        }
+
+        /**
+         * Copy waiting samples in order.
+         * @param timestamps Destination of time stamps
+         * @param data       Destination of values, {@link #VALUES} for every sample
+         * @param max        Max samples to read, should fit both destinations
+         * @return           How many samples were read
+         */
+        public int read(long[] timestamps, short[] data, int max){
+            long next = position;
+            long end = head.get();
+            int count = 0;
+            while(count < max){
+                if(next >= end){
+                    end = head.get();
+                    if(next >= end){
+                        break;
+                    }
+                }
+                if(end - next > capacity){
+                    lost += end - capacity - next;
+                    next = end - capacity;
+                }
+                int slot = (int)(next & mask);
+                StampedLock lock = locks[slot];
+                long stamp = lock.tryOptimisticRead();
+                long sequence = sequences[slot];
+                timestamps[count] = SampleRingBuffer.this.timestamps[slot];
+                System.arraycopy(values, slot * VALUES, data, count * VALUES, VALUES);
+                if(stamp == 0 || !lock.validate(stamp) || sequence != next){
+                    //Producer is overwriting or has overwritten this slot, everything before it is gone too
+                    end = skipOverwritten(next);
+                    next = Math.max(next, end - capacity);
+                    continue;
+                }
+                ++count;
+                ++next;
+            }
+            position = next;
+            return count;
+        }
+
+        /**
+         * Read one waiting sample.
+         * @param sample Destination
+         * @return       Whether a sample was read
+         */
+        public boolean read(ImuSample sample){
+            long next = position;
+            while(true){
+                long end = head.get();
+                if(next >= end){
+                    position = next;
+                    return false;
+                }
+                if(end - next > capacity){
+                    lost += end - capacity - next;
+                    next = end - capacity;
+                }
+                int slot = (int)(next & mask);
+                int base = slot * VALUES;
+                StampedLock lock = locks[slot];
+                long stamp = lock.tryOptimisticRead();
+                long sequence = sequences[slot];
+                sample.timestamp    = timestamps[slot];
+                sample.accel[0]     = values[base];
+                sample.accel[1]     = values[base + 1];
+                sample.accel[2]     = values[base + 2];
+                sample.temperature  = values[base + 3];
+                sample.gyro[0]      = values[base + 4];
+                sample.gyro[1]      = values[base + 5];
+                sample.gyro[2]      = values[base + 6];
+                sample.mag[0]       = values[base + 7];
+                sample.mag[1]       = values[base + 8];
+                sample.mag[2]       = values[base + 9];
+                if(stamp != 0 && lock.validate(stamp) && sequence == next){
+                    position = next + 1;
+                    return true;
+                }
+                next = Math.max(next, skipOverwritten(next) - capacity);
+            }
+        }
+
+        /**
+         * Count samples from next to the oldest one still in the ring as lost.
+         * @param next Sequence whose slot was overwritten
+         * @return     Head sequence
+         */
+        private long skipOverwritten(long next){
+            long end = head.get();
+            long oldest = end - capacity;
+            if(next < oldest){
+                lost += oldest - next;
+            }
+            return end;
+        }
+    }
+}
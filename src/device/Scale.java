@@ -31,22 +31,17 @@ public class Scale {
         return mag;
     }
 
-    enum MagScale
+    public enum MagScale
     {
         MFS_14BIT((byte)0x00,10f*4912f/8190f),  //mag scale val = 0, 14 bit will be shifted 4 left
         MFS_16BIT((byte)0x01,10f*4912f/32760f); //mag scale val = 1, 16 bit will be shifted 4 left
 
         private byte value;
         private float res;
-        private double[] scaling;
         MagScale(byte value, float res)
         {
             this.value = value;
             this.res = res;
-            this.scaling = new double[3];
-        }
-        public double[] getScaling(){
-            return scaling;
         }
         public byte getValue()
         {
@@ -62,7 +57,7 @@ public class Scale {
         }
     }
 
-    enum AccScale
+    public enum AccScale
     {
         AFS_2G(0x00,2),
         AFS_4G(0x08,4),
@@ -90,7 +85,7 @@ public class Scale {
         }
     }
 
-    enum GyroScale
+    public enum GyroScale
     {
         GFS_250DPS(0x00,250),
         GFS_500DPS(0x08,500),
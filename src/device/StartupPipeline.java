@@ -0,0 +1,183 @@
+package device;
+
+import device.bus.BusManager;
+import device.bus.RegisterBus;
+
+import java.io.IOException;
+
+/**
+ * Bring up MPU-9250 and AK8963 with their waits overlapped.
+ * By default AK8963 is polled by the internal I2C master of MPU-9250 ({@link Mpu9250#enableMagnetometer}):
+ * it is brought up right after MPU-9250 is configured, while the gyro is starting up,
+ * and every {@link Mpu9250#updateMotion()} then contains its data.
+ * In bypass mode ({@link #openBypass}) MPU-9250 is reset and configured first (it enables bypass,
+ * so AK8963 becomes reachable), then AK8963 is brought up as a {@link Magnetometer} on another thread
+ * while MPU-9250 waits for gyro start-up and calibrates.
+ * Transactions are still serialized by the bus, only waiting time overlaps.
+ */
+public class StartupPipeline {
+    private final RegisterBus mpuBus;
+    private final RegisterBus magBus;
+    private final Scale scale;
+    private final Magnetometer.MagMode magMode;
+    private final CalibrationCache cache;
+    private final int busNumber;
+    private final int address;
+    /** AK8963 is polled by internal I2C master instead of a bypass {@link Magnetometer} */
+    private final boolean internalMaster;
+    private final StartupTiming timing = new StartupTiming();
+    private Mpu9250 mpu9250;
+    private Magnetometer magnetometer;
+
+    /**
+     * Pipeline which polls AK8963 by internal I2C master of MPU-9250.
+     * @param mpuBus    Register bus of MPU-9250
+     * @param scale     Scale
+     * @param magMode   Continuous measurement mode of AK8963, null if magnetometer is not used
+     * @param cache     Calibration cache, null to always calibrate
+     * @param busNumber I2C bus number (key of cache)
+     * @param address   Address of MPU-9250 (key of cache)
+     */
+    public StartupPipeline(RegisterBus mpuBus, Scale scale, Magnetometer.MagMode magMode,
+                           CalibrationCache cache, int busNumber, int address){
+        this(mpuBus, null, scale, magMode, cache, busNumber, address, magMode != null);
+    }
+
+    /**
+     * Pipeline which reads AK8963 in bypass mode.
+     * @param mpuBus    Register bus of MPU-9250
+     * @param magBus    Register bus of AK8963, null if magnetometer is not used
+     * @param scale     Scale
+     * @param magMode   Continuous measurement mode of AK8963
+     * @param cache     Calibration cache, null to always calibrate
+     * @param busNumber I2C bus number (key of cache)
+     * @param address   Address of MPU-9250 (key of cache)
+     */
+    public StartupPipeline(RegisterBus mpuBus, RegisterBus magBus, Scale scale, Magnetometer.MagMode magMode,
+                           CalibrationCache cache, int busNumber, int address){
+        this(mpuBus, magBus, scale, magMode, cache, busNumber, address, false);
+    }
+
+    private StartupPipeline(RegisterBus mpuBus, RegisterBus magBus, Scale scale, Magnetometer.MagMode magMode,
+                            CalibrationCache cache, int busNumber, int address, boolean internalMaster){
+        this.mpuBus = mpuBus;
+        this.magBus = magBus;
+        this.scale = scale;
+        this.magMode = magMode;
+        this.cache = cache;
+        this.busNumber = busNumber;
+        this.address = address;
+        this.internalMaster = internalMaster;
+    }
+
+    /**
+     * Pipeline of MPU-9250 and AK8963 (internal I2C master) on I2C bus 1 of Raspberry Pi.
+     * @param isAD0High Is AD0 pin of MPU-9250 high
+     * @param scale     Scale
+     * @param magMode   Continuous measurement mode of AK8963
+     * @param cache     Calibration cache, null to always calibrate
+     */
+    public static StartupPipeline open(boolean isAD0High, Scale scale, Magnetometer.MagMode magMode,
+                                       CalibrationCache cache) throws IOException {
+        return open(new BusManager(1), 1, isAD0High, scale, magMode, cache);
+    }
+
+    /**
+     * Pipeline of MPU-9250 and AK8963 (internal I2C master) on a managed I2C bus, MPU-9250 gets high priority.
+     * @param manager   Manager of the I2C bus
+     * @param busNumber I2C bus number of the manager (key of cache)
+     * @param isAD0High Is AD0 pin of MPU-9250 high
+     * @param scale     Scale
+     * @param magMode   Continuous measurement mode of AK8963, null if magnetometer is not used
+     * @param cache     Calibration cache, null to always calibrate
+     */
+    public static StartupPipeline open(BusManager manager, int busNumber, boolean isAD0High, Scale scale,
+                                       Magnetometer.MagMode magMode, CalibrationCache cache) throws IOException {
+        int address = isAD0High ? 0x69 : 0x68;
+        return new StartupPipeline(manager.device("mpu9250", address, BusManager.Priority.HIGH),
+                scale, magMode, cache, busNumber, address);
+    }
+
+    /**
+     * Pipeline of MPU-9250 and AK8963 (bypass mode) on a managed I2C bus,
+     * MPU-9250 gets high priority and AK8963 low priority on the bus.
+     * @param manager   Manager of the I2C bus
+     * @param busNumber I2C bus number of the manager (key of cache)
+     * @param isAD0High Is AD0 pin of MPU-9250 high
+     * @param scale     Scale
+     * @param magMode   Continuous measurement mode of AK8963
+     * @param cache     Calibration cache, null to always calibrate
+     */
+    public static StartupPipeline openBypass(BusManager manager, int busNumber, boolean isAD0High, Scale scale,
+                                             Magnetometer.MagMode magMode, CalibrationCache cache) throws IOException {
+        int address = isAD0High ? 0x69 : 0x68;
+        return new StartupPipeline(manager.device("mpu9250", address, BusManager.Priority.HIGH),
+                manager.device("ak8963", Mpu9250.Registers.AK8963_ADDRESS.getAddress(), BusManager.Priority.LOW),
+                scale, magMode, cache, busNumber, address);
+    }
+
+    /**
+     * Run the pipeline, returns when both devices are ready.
+     */
+    public void run(){
+        long start = System.nanoTime();
+        mpu9250 = new Mpu9250(mpuBus, scale, cache, busNumber, address, false);
+        mpu9250.powerUp();
+        mpu9250.configure();
+
+        boolean magOk = true;
+        if(internalMaster){
+            //Gyro is starting up meanwhile, startGyro waits for the rest of it
+            magOk = mpu9250.enableMagnetometer(magMode == Magnetometer.MagMode.MAG_MODE_8HZ
+                    ? Mpu9250.MagMode.MAG_MODE_8HZ : Mpu9250.MagMode.MAG_MODE_100HZ);
+        }
+
+        Thread magThread = null;
+        final Magnetometer[] result = new Magnetometer[1];
+        if(magBus != null){
+            magThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    result[0] = new Magnetometer(magBus, scale, magMode, cache, busNumber,
+                            Mpu9250.Registers.AK8963_ADDRESS.getAddress());
+                }
+            }, "ak8963-init");
+            magThread.start();
+        }
+        mpu9250.startGyro();
+        if(magThread != null){
+            try {
+                magThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+            }
+            magnetometer = result[0];
+        }
+
+        timing.addAll(mpu9250.getStartupTiming());
+        if(magnetometer != null){
+            timing.addAll(magnetometer.getStartupTiming());
+        }
+        timing.record("startup pipeline", start, magOk && (magBus == null || magnetometer != null));
+    }
+
+    public Mpu9250 getMpu9250(){
+        return mpu9250;
+    }
+
+    /**
+     * @return Magnetometer of bypass mode, null if it is not used or polled by internal I2C master
+     *         (then {@link Mpu9250#hasMagnetometer()} is true)
+     */
+    public Magnetometer getMagnetometer(){
+        return magnetometer;
+    }
+
+    /**
+     * Getter for time of every phase of both devices.
+     */
+    public StartupTiming getTiming(){
+        return timing;
+    }
+}
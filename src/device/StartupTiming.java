@@ -0,0 +1,95 @@
+package device;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Time breakdown of device bring-up, every phase keeps its start, duration and whether it finished in time.
+ * Phases could be recorded from several threads.
+ */
+public class StartupTiming {
+    private final List<Phase> phases = new ArrayList<>();
+
+    /**
+     * Record a finished phase.
+     * @param name     Name of phase (e.g. "mpu9250 reset")
+     * @param start    Start of phase (System.nanoTime)
+     * @param ok       False if it gave up at its deadline
+     */
+    public synchronized void record(String name, long start, boolean ok){
+        phases.add(new Phase(name, start, System.nanoTime() - start, ok, Thread.currentThread().getName()));
+    }
+
+    /**
+     * Add phases of another timing (e.g. a device initialised by another thread).
+     */
+    public void addAll(StartupTiming other){
+        List<Phase> copy = other.getPhases();
+        synchronized (this) {
+            phases.addAll(copy);
+        }
+    }
+
+    /**
+     * @return Phases sorted by start
+     */
+    public synchronized List<Phase> getPhases(){
+        List<Phase> copy = new ArrayList<>(phases);
+        Collections.sort(copy, new Comparator<Phase>() {
+            @Override
+            public int compare(Phase a, Phase b) {
+                return Long.compare(a.start, b.start);
+            }
+        });
+        return copy;
+    }
+
+    /**
+     * @return Time from start of first phase to end of last phase (ns)
+     */
+    public synchronized long getTotalNanos(){
+        if(phases.isEmpty()){
+            return 0;
+        }
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for(Phase phase : phases){
+            first = Math.min(first, phase.start);
+            last = Math.max(last, phase.start + phase.nanos);
+        }
+        return last - first;
+    }
+
+    @Override
+    public String toString(){
+        List<Phase> sorted = getPhases();
+        StringBuilder builder = new StringBuilder();
+        long origin = sorted.isEmpty() ? 0 : sorted.get(0).start;
+        for(Phase phase : sorted){
+            builder.append(String.format("%-30s +%8.2f ms %8.2f ms %-4s %s%n", phase.name,
+                    (phase.start - origin) / 1e6, phase.nanos / 1e6, phase.ok ? "ok" : "TIMEOUT", phase.thread));
+        }
+        builder.append(String.format("%-30s  %8s    %8.2f ms%n", "total", "", getTotalNanos() / 1e6));
+        return builder.toString();
+    }
+
+    public static class Phase {
+        public final String name;
+        /** Start (System.nanoTime) */
+        public final long start;
+        /** Duration (ns) */
+        public final long nanos;
+        /** False if it gave up at its deadline */
+        public final boolean ok;
+        public final String thread;
+
+        Phase(String name, long start, long nanos, boolean ok, String thread){
+            this.name = name;
+            this.start = start;
+            this.nanos = nanos;
+            this.ok = ok;
+            this.thread = thread;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package device;
+
+import java.util.Arrays;
+
+/**
+ * Streaming zero velocity detector: the sensor is still when variance of every gyro and accel axis
+ * over the last window is below a threshold and gyro mean is close to the known bias (no steady rotation).
+ * Window sums of values and squared values are kept as exact integers over a ring of raw samples,
+ * so every sample costs O(1) regardless of window length and sums never drift.
+ * Not thread safe, fed by the acquisition thread.
+ */
+public class StationarityDetector {
+    /** Default window (samples) */
+    public static final int DEFAULT_WINDOW = 100;
+    /** Default max gyro standard deviation (dps) */
+    public static final double DEFAULT_GYRO_DEVIATION = 0.3;
+    /** Default max accel standard deviation (g) */
+    public static final double DEFAULT_ACCEL_DEVIATION = 0.01;
+    /** Default max gyro mean away from bias (dps) */
+    public static final double DEFAULT_MAX_RATE = 2.0;
+
+    /** Channels, gyro(x, y, z), accel(x, y, z) */
+    private static final int CHANNELS = 6;
+
+    private final int window;
+    private final int[] ring;
+    private final long[] sum = new long[CHANNELS];
+    private final long[] sumSquares = new long[CHANNELS];
+    private int position = 0;
+    private int count = 0;
+
+    private final double gyroResolution;
+    private final double accelResolution;
+    /** Limits of variance * window^2 (LSB^2), compared with window * sumSquares - sum^2 */
+    private double gyroLimit;
+    private double accelLimit;
+    private double maxRate;
+    private boolean stationary = false;
+    private long stationarySamples = 0;
+
+    /**
+     * @param window          Window (samples), e.g. half a second of samples
+     * @param gyroResolution  Gyro resolution (dps / LSB)
+     * @param accelResolution Accel resolution (g / LSB)
+     */
+    public StationarityDetector(int window, double gyroResolution, double accelResolution){
+        if(window < 2){
+            throw new IllegalArgumentException("Window should be at least 2 samples");
+        }
+        this.window = window;
+        this.ring = new int[window * CHANNELS];
+        this.gyroResolution = gyroResolution;
+        this.accelResolution = accelResolution;
+        setGyroDeviation(DEFAULT_GYRO_DEVIATION);
+        setAccelDeviation(DEFAULT_ACCEL_DEVIATION);
+        setMaxRate(DEFAULT_MAX_RATE);
+    }
+
+    /**
+     * @param deviation Max gyro standard deviation of a still window (dps)
+     */
+    public void setGyroDeviation(double deviation){
+        double lsb = deviation / gyroResolution;
+        gyroLimit = lsb * lsb * window * (double)window;
+    }
+
+    /**
+     * @param deviation Max accel standard deviation of a still window (g)
+     */
+    public void setAccelDeviation(double deviation){
+        double lsb = deviation / accelResolution;
+        accelLimit = lsb * lsb * window * (double)window;
+    }
+
+    /**
+     * @param rate Max gyro mean away from bias (dps), rejects steady rotation which has low variance
+     */
+    public void setMaxRate(double rate){
+        maxRate = rate / gyroResolution;
+    }
+
+    public int getWindow(){
+        return window;
+    }
+
+    /**
+     * Add a sample.
+     * @param gyro  Raw gyro (x, y, z)
+     * @param accel Raw accel (x, y, z)
+     * @param bias  Known gyro bias (LSB), gyro mean is compared with it
+     * @return      Whether the sensor is still over the last window
+     */
+    public boolean add(int[] gyro, int[] accel, double[] bias){
+        int base = position * CHANNELS;
+        for(int i = 0; i < CHANNELS; ++i){
+            int value = (i < 3) ? gyro[i] : accel[i - 3];
+            if(count == window){
+                long old = ring[base + i];
+                sum[i] -= old;
+                sumSquares[i] -= old * old;
+            }
+            ring[base + i] = value;
+            sum[i] += value;
+            sumSquares[i] += (long)value * value;
+        }
+        position = (position + 1 == window) ? 0 : position + 1;
+        if(count < window){
+            ++count;
+        }
+        stationary = count == window && still(bias);
+        stationarySamples = stationary ? stationarySamples + 1 : 0;
+        return stationary;
+    }
+
+    private boolean still(double[] bias){
+        for(int i = 0; i < CHANNELS; ++i){
+            //window^2 * variance, exact in integers
+            double scaled = (double)(window * sumSquares[i] - sum[i] * sum[i]);
+            if(scaled > ((i < 3) ? gyroLimit : accelLimit)){
+                return false;
+            }
+        }
+        for(int i = 0; i < 3; ++i){
+            if(Math.abs((double)sum[i] / window - bias[i]) > maxRate){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isStationary(){
+        return stationary;
+    }
+
+    /**
+     * Getter for how many samples in a row were still.
+     */
+    public long getStationarySamples(){
+        return stationarySamples;
+    }
+
+    /**
+     * Mean of a channel over the window.
+     * @param channel 0 ~ 2 gyro (x, y, z), 3 ~ 5 accel (x, y, z)
+     * @return        Mean (LSB)
+     */
+    public double getMean(int channel){
+        return (count == 0) ? 0 : (double)sum[channel] / count;
+    }
+
+    /**
+     * Variance of a channel over the window.
+     * @param channel 0 ~ 2 gyro (x, y, z), 3 ~ 5 accel (x, y, z)
+     * @return        Variance (LSB^2)
+     */
+    public double getVariance(int channel){
+        if(count < 2){
+            return 0;
+        }
+        return (double)(count * sumSquares[channel] - sum[channel] * sum[channel]) / ((double)count * count);
+    }
+
+    /**
+     * Shift gyro values in the window, e.g. after hardware offset of gyro changed. O(window), rarely needed.
+     * @param shift Change of raw gyro (x, y, z)
+     */
+    public void shiftGyro(int[] shift){
+        for(int s = 0; s < count; ++s){
+            for(int i = 0; i < 3; ++i){
+                int base = s * CHANNELS + i;
+                long old = ring[base];
+                long value = old + shift[i];
+                ring[base] = (int)value;
+                sum[i] += value - old;
+                sumSquares[i] += value * value - old * old;
+            }
+        }
+    }
+
+    public void reset(){
+        Arrays.fill(sum, 0);
+        Arrays.fill(sumSquares, 0);
+        position = 0;
+        count = 0;
+        stationary = false;
+        stationarySamples = 0;
+    }
+}
@@ -0,0 +1,338 @@
+package device;
+
+/**
+ * Gyro bias as a function of die temperature, learned from stationary periods.
+ * Bias of every axis is kept on a grid of temperatures (1 degree C from -40 to 85 by default),
+ * every grid point is a running mean of stationary blocks measured near it.
+ * Points never measured are interpolated (or held at the ends) when the lookup table is rebuilt,
+ * so a lookup in the hot path is an index and a linear interpolation, O(1) without allocation.
+ * Bias is relative to the gyro offset written to the sensor (zero where the offset was calibrated).
+ * Samples are fed and corrected by the acquisition thread. Lookup table is rebuilt into a spare array and published
+ * by a volatile reference, so learning doesn't allocate; a reader on another thread should not keep a table
+ * across two rebuilds (blocks).
+ */
+public class TemperatureBiasTable {
+    /** Samples of a block, a block is learned only if the sensor stayed still during it */
+    public static final int DEFAULT_BLOCK_SIZE = 200;
+    /** Max range of gyro in a stationary block (dps) */
+    public static final double DEFAULT_STATIONARY_RANGE = 0.5;
+    /** Max range of temperature in a stationary block (degree C) */
+    public static final double DEFAULT_TEMPERATURE_RANGE = 0.5;
+    /** Blocks averaged by a grid point before it becomes an exponential mean */
+    public static final int MAX_WEIGHT = 64;
+
+    private final double minTemperature;
+    private final double step;
+    private final int points;
+    /** Learned bias of every axis and grid point (LSB), x points then y then z */
+    private final double[] bias;
+    /** Blocks learned by every grid point */
+    private final int[] weight;
+    /** Interpolated bias of every axis and grid point (LSB), rebuilt when a block is learned */
+    private volatile double[] table;
+    /** Table which is not published, the next rebuild fills it */
+    private double[] spare;
+
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int stationaryRange;
+    private double temperatureRange = DEFAULT_TEMPERATURE_RANGE;
+    /** Current block */
+    private int blockCount = 0;
+    private final long[] blockSum = new long[3];
+    private final int[] blockMin = new int[3];
+    private final int[] blockMax = new int[3];
+    private double blockTemperatureSum = 0;
+    private double blockTemperatureMin = 0;
+    private double blockTemperatureMax = 0;
+    private long learnedBlocks = 0;
+
+    /**
+     * @param minTemperature Temperature of first grid point (degree C)
+     * @param step           Distance of grid points (degree C)
+     * @param points         Grid points
+     * @param gyroResolution Gyro resolution (dps / LSB), for stationary range
+     */
+    public TemperatureBiasTable(double minTemperature, double step, int points, double gyroResolution){
+        if(points < 2 || step <= 0){
+            throw new IllegalArgumentException("Table needs at least 2 points and positive step");
+        }
+        this.minTemperature = minTemperature;
+        this.step = step;
+        this.points = points;
+        this.bias = new double[points * 3];
+        this.weight = new int[points];
+        this.table = new double[points * 3];
+        this.spare = new double[points * 3];
+        setStationaryRange(DEFAULT_STATIONARY_RANGE, gyroResolution);
+    }
+
+    /**
+     * Grid of -40 ~ 85 degree C (operating range of MPU-9250) every degree.
+     * @param gyroResolution Gyro resolution (dps / LSB)
+     */
+    public TemperatureBiasTable(double gyroResolution){
+        this(-40, 1, 126, gyroResolution);
+    }
+
+    /**
+     * @param blockSize Samples of a block, e.g. 1 second of samples
+     */
+    public void setBlockSize(int blockSize){
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    /**
+     * @param range          Max range of gyro in a stationary block (dps)
+     * @param gyroResolution Gyro resolution (dps / LSB)
+     */
+    public void setStationaryRange(double range, double gyroResolution){
+        this.stationaryRange = (int)Math.ceil(range / gyroResolution);
+    }
+
+    public void setTemperatureRange(double temperatureRange){
+        this.temperatureRange = temperatureRange;
+    }
+
+    public long getLearnedBlocks(){
+        return learnedBlocks;
+    }
+
+    /**
+     * Getter for how many grid points were measured.
+     */
+    public int getCoverage(){
+        int covered = 0;
+        for(int w : weight){
+            if(w > 0){
+                ++covered;
+            }
+        }
+        return covered;
+    }
+
+    /**
+     * Feed a raw sample, it is accumulated into the current block.
+     * When the block is full and the sensor stayed still during it, its mean is learned.
+     * @param gyro        Raw gyro (x, y, z), before correction
+     * @param temperature Die temperature (degree C)
+     * @return            Whether a block was learned
+     */
+    public boolean add(int[] gyro, double temperature){
+        if(blockCount == 0){
+            for(int i = 0; i < 3; ++i){
+                blockSum[i] = 0;
+                blockMin[i] = gyro[i];
+                blockMax[i] = gyro[i];
+            }
+            blockTemperatureSum = 0;
+            blockTemperatureMin = temperature;
+            blockTemperatureMax = temperature;
+        }
+        for(int i = 0; i < 3; ++i){
+            int g = gyro[i];
+            blockSum[i] += g;
+            if(g < blockMin[i]) blockMin[i] = g;
+            if(g > blockMax[i]) blockMax[i] = g;
+        }
+        blockTemperatureSum += temperature;
+        if(temperature < blockTemperatureMin) blockTemperatureMin = temperature;
+        if(temperature > blockTemperatureMax) blockTemperatureMax = temperature;
+        if(++blockCount < blockSize){
+            return false;
+        }
+        blockCount = 0;
+        for(int i = 0; i < 3; ++i){
+            if(blockMax[i] - blockMin[i] > stationaryRange){
+                return false;
+            }
+        }
+        if(blockTemperatureMax - blockTemperatureMin > temperatureRange){
+            return false;
+        }
+        learn(blockTemperatureSum / blockSize,
+                (double)blockSum[0] / blockSize, (double)blockSum[1] / blockSize, (double)blockSum[2] / blockSize);
+        return true;
+    }
+
+    /**
+     * Learn a bias measured while the sensor was still.
+     * @param temperature Temperature (degree C)
+     * @param x           Bias of x (LSB)
+     * @param y           Bias of y (LSB)
+     * @param z           Bias of z (LSB)
+     */
+    public synchronized void learn(double temperature, double x, double y, double z){
+        double position = (temperature - minTemperature) / step;
+        if(Double.isNaN(position)){
+            return;
+        }
+        int point = (int)Math.round(Math.max(0, Math.min(points - 1, position)));
+        int w = Math.min(MAX_WEIGHT, weight[point] + 1);
+        weight[point] = w;
+        bias[point] += (x - bias[point]) / w;
+        bias[points + point] += (y - bias[points + point]) / w;
+        bias[2 * points + point] += (z - bias[2 * points + point]) / w;
+        ++learnedBlocks;
+        rebuild();
+    }
+
+    /**
+     * Bias of an axis at a temperature.
+     * @param axis        0 ~ 2 (x, y, z)
+     * @param temperature Temperature (degree C)
+     * @return            Bias (LSB)
+     */
+    public double getBias(int axis, double temperature){
+        double[] table = this.table;
+        double position = (temperature - minTemperature) / step;
+        if(!(position > 0)){
+            return table[axis * points];
+        }
+        if(position >= points - 1){
+            return table[axis * points + points - 1];
+        }
+        int index = (int)position;
+        double fraction = position - index;
+        int base = axis * points + index;
+        return table[base] + (table[base + 1] - table[base]) * fraction;
+    }
+
+    /**
+     * Subtract bias at a temperature from raw gyro in place, O(1).
+     * @param gyro        Raw gyro (x, y, z)
+     * @param temperature Temperature (degree C)
+     */
+    public void correct(int[] gyro, double temperature){
+        double[] table = this.table;
+        double position = (temperature - minTemperature) / step;
+        int index;
+        double fraction;
+        if(!(position > 0)){
+            index = 0;
+            fraction = 0;
+        }else if(position >= points - 1){
+            index = points - 2;
+            fraction = 1;
+        }else{
+            index = (int)position;
+            fraction = position - index;
+        }
+        for(int axis = 0; axis < 3; ++axis){
+            int base = axis * points + index;
+            double b = table[base] + (table[base + 1] - table[base]) * fraction;
+            gyro[axis] -= (int)Math.round(b);
+        }
+    }
+
+    /**
+     * Shift the whole curve so bias at a temperature is zero, e.g. after a new gyro offset was calibrated there.
+     * @param temperature Temperature (degree C)
+     */
+    public synchronized void anchor(double temperature){
+        if(getCoverage() == 0){
+            return;
+        }
+        for(int axis = 0; axis < 3; ++axis){
+            double b = getBias(axis, temperature);
+            for(int point = 0; point < points; ++point){
+                if(weight[point] > 0){
+                    bias[axis * points + point] -= b;
+                }
+            }
+        }
+        rebuild();
+    }
+
+    /**
+     * Interpolate grid points which were never measured, hold the nearest measured one beyond the ends.
+     */
+    private void rebuild(){
+        double[] next = spare;
+        if(getCoverage() == 0){
+            java.util.Arrays.fill(next, 0);
+        }
+        int previous = -1;
+        for(int point = 0; point <= points; ++point){
+            if(point < points && weight[point] == 0){
+                continue;
+            }
+            for(int axis = 0; axis < 3; ++axis){
+                int base = axis * points;
+                if(previous < 0 && point == points){
+                    break; //Nothing measured
+                }
+                if(previous < 0){
+                    for(int i = 0; i <= point; ++i){
+                        next[base + i] = bias[base + point];
+                    }
+                }else if(point == points){
+                    for(int i = previous; i < points; ++i){
+                        next[base + i] = bias[base + previous];
+                    }
+                }else{
+                    double from = bias[base + previous];
+                    double to = bias[base + point];
+                    for(int i = previous; i <= point; ++i){
+                        next[base + i] = from + (to - from) * (i - previous) / (point - previous);
+                    }
+                }
+            }
+            previous = point;
+        }
+        spare = table;
+        table = next;
+    }
+
+    /**
+     * Compact form for {@link CalibrationCache}: min temperature, step, points,
+     * then bias of x, y, z and weight of measured points only (point index, weight, x, y, z).
+     * @return Values
+     */
+    public synchronized double[] toArray(){
+        int covered = getCoverage();
+        double[] values = new double[3 + covered * 5];
+        values[0] = minTemperature;
+        values[1] = step;
+        values[2] = points;
+        int i = 3;
+        for(int point = 0; point < points; ++point){
+            if(weight[point] > 0){
+                values[i++] = point;
+                values[i++] = weight[point];
+                values[i++] = bias[point];
+                values[i++] = bias[points + point];
+                values[i++] = bias[2 * points + point];
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Restore a table saved by {@link #toArray()}.
+     * @param values         Values
+     * @param gyroResolution Gyro resolution (dps / LSB)
+     * @return               Table, null if values are broken
+     */
+    public static TemperatureBiasTable fromArray(double[] values, double gyroResolution){
+        if(values == null || values.length < 3 || (values.length - 3) % 5 != 0){
+            return null;
+        }
+        int points = (int)values[2];
+        if(points < 2 || values[1] <= 0){
+            return null;
+        }
+        TemperatureBiasTable result = new TemperatureBiasTable(values[0], values[1], points, gyroResolution);
+        for(int i = 3; i < values.length; i += 5){
+            int point = (int)values[i];
+            if(point < 0 || point >= points){
+                return null;
+            }
+            result.weight[point] = Math.max(1, Math.min(MAX_WEIGHT, (int)values[i + 1]));
+            result.bias[point] = values[i + 2];
+            result.bias[points + point] = values[i + 3];
+            result.bias[2 * points + point] = values[i + 4];
+        }
+        result.rebuild();
+        return result;
+    }
+}
@@ -0,0 +1,31 @@
+package device.bus;
+
+/**
+ * JMX view of a device on a {@link BusManager}.
+ */
+public interface BusDeviceMXBean {
+    public String getName();
+
+    public String getPriority();
+
+    public long getTransactions();
+
+    public long getBytes();
+
+    /**
+     * @return Time the device held the bus (ns)
+     */
+    public long getBusyNanos();
+
+    /**
+     * @return Time the device waited for the bus (ns)
+     */
+    public long getWaitNanos();
+
+    /**
+     * @return Share of wall time the device held the bus (0 ~ 1)
+     */
+    public double getUtilisation();
+
+    public void reset();
+}
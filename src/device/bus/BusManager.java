@@ -0,0 +1,302 @@
+package device.bus;
+
+import com.pi4j.io.i2c.I2CBus;
+import com.pi4j.io.i2c.I2CFactory;
+import metrics.Metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Owner of an I2C bus, every device on it talks through a {@link Device} of the manager.
+ * Transactions of all devices are serialized, when several threads wait for the bus
+ * a {@link Priority#HIGH} device (e.g. IMU at sample rate) goes before a {@link Priority#LOW} one (e.g. magnetometer).
+ * A low priority device only waits while a high priority one is waiting, it is never preempted in a transaction.
+ * Time every device holds the bus is kept, so bus utilisation of every device is known.
+ */
+public class BusManager implements Metrics.Source {
+    public enum Priority {
+        HIGH,
+        LOW
+    }
+
+    private final String name;
+    private final I2CBus i2c;
+    private final List<Device> devices = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private boolean busy = false;
+    private int highWaiting = 0;
+    private long since = System.nanoTime();
+
+    /**
+     * Manager of devices on any register buses (e.g. simulated ones), they are treated as one physical bus.
+     * @param name Name of bus (e.g. i2c-1)
+     */
+    public BusManager(String name){
+        this.name = name;
+        this.i2c = null;
+    }
+
+    /**
+     * Manager of a Raspberry Pi I2C bus, devices are opened by {@link #device(String, int, Priority)}.
+     * @param busNumber I2C bus number
+     */
+    public BusManager(int busNumber) throws IOException {
+        this.name = "i2c-" + busNumber;
+        try {
+            this.i2c = I2CFactory.getInstance(busNumber);
+        } catch (I2CFactory.UnsupportedBusNumberException e) {
+            throw new IOException("Unsupported I2C bus " + busNumber, e);
+        }
+    }
+
+    /**
+     * Open a device on the I2C bus of this manager.
+     * @param deviceName Name of device in statistics
+     * @param address    Device address
+     * @param priority   Priority
+     * @return           Register bus of the device, every transaction goes through manager
+     */
+    public Device device(String deviceName, int address, Priority priority) throws IOException {
+        if(i2c == null){
+            throw new IOException("Bus manager " + name + " doesn't own an I2C bus");
+        }
+        return device(deviceName, new I2CRegisterBus(i2c.getDevice(address)), priority);
+    }
+
+    /**
+     * Put a register bus under this manager.
+     * @param deviceName Name of device in statistics
+     * @param bus        Register bus of the device
+     * @param priority   Priority
+     * @return           Register bus of the device, every transaction goes through manager
+     */
+    public synchronized Device device(String deviceName, RegisterBus bus, Priority priority){
+        Device device = new Device(deviceName, bus, priority);
+        devices.add(device);
+        return device;
+    }
+
+    public synchronized List<Device> getDevices(){
+        return new ArrayList<>(devices);
+    }
+
+    /**
+     * Getter for share of wall time the bus was busy since created or reset.
+     * @return 0 ~ 1
+     */
+    public double getUtilisation(){
+        long busyNanos = 0;
+        for(Device device : getDevices()){
+            busyNanos += device.getBusyNanos();
+        }
+        return (double)busyNanos / Math.max(1, System.nanoTime() - since);
+    }
+
+    public void resetStatistics(){
+        for(Device device : getDevices()){
+            device.reset();
+        }
+        since = System.nanoTime();
+    }
+
+    /**
+     * Register every device to platform MBean server as philae:type=BusDevice,bus=...,name=...
+     * and add them to plain text metrics.
+     */
+    public void publish(){
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(Device device : getDevices()){
+            try {
+                ObjectName objectName = new ObjectName("philae:type=BusDevice,bus=" + name + ",name=" + device.name);
+                if(!server.isRegistered(objectName)){
+                    server.registerMBean(device, objectName);
+                }
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        Metrics.addSource(this);
+    }
+
+    @Override
+    public void format(StringBuilder builder){
+        String prefix = "bus_" + name.replace('-', '_');
+        builder.append(prefix).append("_utilisation ").append(String.format(Locale.ROOT, "%.4f", getUtilisation())).append('\n');
+        for(Device device : getDevices()){
+            String label = "{device=\"" + device.name + "\"} ";
+            builder.append(prefix).append("_device_utilisation").append(label)
+                    .append(String.format(Locale.ROOT, "%.4f", device.getUtilisation())).append('\n');
+            builder.append(prefix).append("_device_transactions").append(label).append(device.getTransactions()).append('\n');
+            builder.append(prefix).append("_device_bytes").append(label).append(device.getBytes()).append('\n');
+            builder.append(prefix).append("_device_wait_ns").append(label).append(device.getWaitNanos()).append('\n');
+        }
+    }
+
+    private void acquire(Priority priority){
+        lock.lock();
+        try {
+            if(priority == Priority.HIGH){
+                ++highWaiting;
+            }
+            boolean interrupted = false;
+            while(busy || (priority == Priority.LOW && highWaiting > 0)){
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(priority == Priority.HIGH){
+                --highWaiting;
+            }
+            busy = true;
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(){
+        lock.lock();
+        try {
+            busy = false;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A device on the managed bus.
+     */
+    public class Device implements RegisterBus, BusDeviceMXBean {
+        private final String name;
+        private final RegisterBus bus;
+        private final Priority priority;
+        /** Written only while holding the bus */
+        private volatile long transactions = 0;
+        private volatile long bytes = 0;
+        private volatile long busyNanos = 0;
+        private volatile long waitNanos = 0;
+
+        private Device(String name, RegisterBus bus, Priority priority){
+            this.name = name;
+            this.bus = bus;
+            this.priority = priority;
+        }
+
+        /**
+         * Wait for the bus, returns the time of acquiring.
+         */
+        private long begin(long request){
+            acquire(priority);
+            long start = System.nanoTime();
+            waitNanos += start - request;
+            return start;
+        }
+
+        private void end(long start, int size){
+            busyNanos += System.nanoTime() - start;
+            ++transactions;
+            bytes += size;
+            release();
+        }
+
+        @Override
+        public int read(int register) throws IOException {
+            long start = begin(System.nanoTime());
+            try {
+                return bus.read(register);
+            } finally {
+                end(start, 1);
+            }
+        }
+
+        @Override
+        public int read(int register, byte[] buffer, int offset, int size) throws IOException {
+            long start = begin(System.nanoTime());
+            try {
+                return bus.read(register, buffer, offset, size);
+            } finally {
+                end(start, size);
+            }
+        }
+
+        @Override
+        public void write(int register, byte data) throws IOException {
+            long start = begin(System.nanoTime());
+            try {
+                bus.write(register, data);
+            } finally {
+                end(start, 1);
+            }
+        }
+
+        @Override
+        public void write(int register, byte[] buffer, int offset, int size) throws IOException {
+            long start = begin(System.nanoTime());
+            try {
+                bus.write(register, buffer, offset, size);
+            } finally {
+                end(start, size);
+            }
+        }
+
+        @Override
+        public String getName(){
+            return name;
+        }
+
+        @Override
+        public String getPriority(){
+            return priority.name();
+        }
+
+        @Override
+        public long getTransactions(){
+            return transactions;
+        }
+
+        @Override
+        public long getBytes(){
+            return bytes;
+        }
+
+        @Override
+        public long getBusyNanos(){
+            return busyNanos;
+        }
+
+        @Override
+        public long getWaitNanos(){
+            return waitNanos;
+        }
+
+        @Override
+        public double getUtilisation(){
+            return (double)busyNanos / Math.max(1, System.nanoTime() - since);
+        }
+
+        @Override
+        public void reset(){
+            acquire(Priority.HIGH);
+            transactions = 0;
+            bytes = 0;
+            busyNanos = 0;
+            waitNanos = 0;
+            release();
+        }
+    }
+}
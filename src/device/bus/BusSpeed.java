@@ -0,0 +1,48 @@
+package device.bus;
+
+/**
+ * Cost model of I2C transactions.
+ * Every byte on the wire is 9 clocks (8 bit + ACK), start / repeated start / stop are counted as one clock.
+ */
+public enum BusSpeed
+{
+    STANDARD_100KHZ(100000),
+    FAST_400KHZ(400000);
+
+    private final int clock;
+    BusSpeed(int clock)
+    {
+        this.clock = clock;
+    }
+    public int getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * Time of register read transaction.
+     * START, address+W, register, repeated START, address+R, data..., STOP
+     * @param size How many bytes were read
+     * @return     Time on the wire (ns)
+     */
+    public long readNanos(int size)
+    {
+        return clocksToNanos(9L * (3 + size) + 3);
+    }
+
+    /**
+     * Time of register write transaction.
+     * START, address+W, register, data..., STOP
+     * @param size How many bytes were wrote
+     * @return     Time on the wire (ns)
+     */
+    public long writeNanos(int size)
+    {
+        return clocksToNanos(9L * (2 + size) + 2);
+    }
+
+    private long clocksToNanos(long clocks)
+    {
+        return clocks * 1000000000L / clock;
+    }
+}
@@ -0,0 +1,47 @@
+package device.bus;
+
+import java.io.IOException;
+
+/**
+ * Decorator which counts transactions, failed ones included.
+ * Count is a plain field, exact when one thread uses the bus (e.g. acquisition thread).
+ */
+public class CountingRegisterBus implements RegisterBus {
+    private final RegisterBus bus;
+    private long transactions = 0;
+
+    public CountingRegisterBus(RegisterBus bus){
+        this.bus = bus;
+    }
+
+    /**
+     * Getter for transactions since created.
+     */
+    public long getTransactionCount(){
+        return transactions;
+    }
+
+    @Override
+    public int read(int register) throws IOException {
+        ++transactions;
+        return bus.read(register);
+    }
+
+    @Override
+    public int read(int register, byte[] buffer, int offset, int size) throws IOException {
+        ++transactions;
+        return bus.read(register, buffer, offset, size);
+    }
+
+    @Override
+    public void write(int register, byte data) throws IOException {
+        ++transactions;
+        bus.write(register, data);
+    }
+
+    @Override
+    public void write(int register, byte[] buffer, int offset, int size) throws IOException {
+        ++transactions;
+        bus.write(register, buffer, offset, size);
+    }
+}
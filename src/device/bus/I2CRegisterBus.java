@@ -0,0 +1,53 @@
+package device.bus;
+
+import com.pi4j.io.i2c.I2CBus;
+import com.pi4j.io.i2c.I2CDevice;
+import com.pi4j.io.i2c.I2CFactory;
+
+import java.io.IOException;
+
+/**
+ * Register bus on a real I2C device (pi4j).
+ */
+public class I2CRegisterBus implements RegisterBus {
+    private final I2CDevice device;
+
+    public I2CRegisterBus(I2CDevice device){
+        this.device = device;
+    }
+
+    /**
+     * Open a device on I2C bus.
+     * @param busNumber I2C bus number (1 on Raspberry Pi)
+     * @param address   Device address
+     * @return          Register bus of the device
+     */
+    public static I2CRegisterBus open(int busNumber, int address) throws IOException {
+        try {
+            I2CBus i2c = I2CFactory.getInstance(busNumber);
+            return new I2CRegisterBus(i2c.getDevice(address));
+        } catch (I2CFactory.UnsupportedBusNumberException e) {
+            throw new IOException("Unsupported I2C bus " + busNumber, e);
+        }
+    }
+
+    @Override
+    public int read(int register) throws IOException {
+        return device.read(register);
+    }
+
+    @Override
+    public int read(int register, byte[] buffer, int offset, int size) throws IOException {
+        return device.read(register, buffer, offset, size);
+    }
+
+    @Override
+    public void write(int register, byte data) throws IOException {
+        device.write(register, data);
+    }
+
+    @Override
+    public void write(int register, byte[] buffer, int offset, int size) throws IOException {
+        device.write(register, buffer, offset, size);
+    }
+}
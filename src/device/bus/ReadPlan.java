@@ -0,0 +1,139 @@
+package device.bus;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Fixed set of register reads of a device, adjacent (or nearly adjacent) ranges are merged into block transfers.
+ * Reading a few unused registers is cheaper than another transaction (start, address and restart bytes),
+ * so ranges at most maxGap registers apart are merged too.
+ * Plan is built once, {@link #execute()} doesn't allocate memory.
+ * <pre>
+ * ReadPlan plan = new ReadPlan(bus, 2)
+ *         .add(ACCEL_XOUT_H, 6, accel, 0)
+ *         .add(GYRO_XOUT_H, 6, gyro, 0);  // one read of 14 bytes instead of two transactions
+ * plan.execute();
+ * </pre>
+ */
+public class ReadPlan {
+    private final RegisterBus bus;
+    private final int maxGap;
+    private int count = 0;
+    private int[] registers = new int[4];
+    private int[] sizes = new int[4];
+    private byte[][] destinations = new byte[4][];
+    private int[] offsets = new int[4];
+    /** Merged blocks, start register and size */
+    private int blockCount = 0;
+    private int[] blockStarts = new int[0];
+    private int[] blockSizes = new int[0];
+    /** Block of every read */
+    private int[] blockOf = new int[0];
+    private byte[] scratch = new byte[0];
+
+    /**
+     * @param bus    Register bus of the device
+     * @param maxGap Max unused registers between two ranges which are still merged
+     */
+    public ReadPlan(RegisterBus bus, int maxGap){
+        this.bus = bus;
+        this.maxGap = maxGap;
+    }
+
+    /**
+     * Add a register range to read.
+     * @param register    Start register
+     * @param size        How many registers
+     * @param destination Where data is copied in {@link #execute()}
+     * @param offset      Offset in destination
+     * @return            this
+     */
+    public ReadPlan add(int register, int size, byte[] destination, int offset){
+        if(size <= 0 || offset < 0 || offset + size > destination.length){
+            throw new IllegalArgumentException("Read of " + size + " bytes doesn't fit destination");
+        }
+        if(count == registers.length){
+            registers = Arrays.copyOf(registers, count * 2);
+            sizes = Arrays.copyOf(sizes, count * 2);
+            destinations = Arrays.copyOf(destinations, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        registers[count] = register;
+        sizes[count] = size;
+        destinations[count] = destination;
+        offsets[count] = offset;
+        ++count;
+        merge();
+        return this;
+    }
+
+    /**
+     * Getter for how many transactions {@link #execute()} takes.
+     */
+    public int getTransferCount(){
+        return blockCount;
+    }
+
+    /**
+     * Getter for how many bytes {@link #execute()} transfers.
+     */
+    public int getTransferBytes(){
+        int bytes = 0;
+        for(int i = 0; i < blockCount; ++i){
+            bytes += blockSizes[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * Read every block and copy data to destinations.
+     */
+    public void execute() throws IOException {
+        for(int block = 0; block < blockCount; ++block){
+            bus.read(blockStarts[block], scratch, 0, blockSizes[block]);
+            for(int i = 0; i < count; ++i){
+                if(blockOf[i] == block){
+                    System.arraycopy(scratch, registers[i] - blockStarts[block], destinations[i], offsets[i], sizes[i]);
+                }
+            }
+        }
+    }
+
+    private void merge(){
+        Integer[] order = new Integer[count];
+        for(int i = 0; i < count; ++i){
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(registers[a], registers[b]);
+            }
+        });
+        int[] starts = new int[count];
+        int[] blockSize = new int[count];
+        int[] of = new int[count];
+        int blocks = 0;
+        int end = Integer.MIN_VALUE;
+        int largest = 0;
+        for(Integer index : order){
+            int register = registers[index];
+            if(blocks == 0 || register - end > maxGap){
+                starts[blocks] = register;
+                ++blocks;
+            }
+            end = Math.max(end, register + sizes[index]);
+            blockSize[blocks - 1] = end - starts[blocks - 1];
+            of[index] = blocks - 1;
+            largest = Math.max(largest, blockSize[blocks - 1]);
+        }
+        blockStarts = starts;
+        blockSizes = blockSize;
+        blockOf = of;
+        blockCount = blocks;
+        if(scratch.length < largest){
+            scratch = new byte[largest];
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package device.bus;
+
+import java.io.IOException;
+
+/**
+ * Register based transport of a device (e.g. I2C slave), drivers only talk to device through it.
+ */
+public interface RegisterBus {
+    /**
+     * Read a register(8 bit).
+     * @param register Register address
+     * @return         Register data (0~255)
+     */
+    public int read(int register) throws IOException;
+
+    /**
+     * Read consequent registers in one transaction.
+     * @param register First register address
+     * @param buffer   Destination
+     * @param offset   Offset of destination
+     * @param size     How many bytes want to read
+     * @return         How many bytes were read
+     */
+    public int read(int register, byte[] buffer, int offset, int size) throws IOException;
+
+    /**
+     * Write a register(8 bit).
+     * @param register Register address
+     * @param data     Data(8 bit)
+     */
+    public void write(int register, byte data) throws IOException;
+
+    /**
+     * Write consequent registers in one transaction.
+     * @param register First register address
+     * @param buffer   Source
+     * @param offset   Offset of source
+     * @param size     How many bytes want to write
+     */
+    public void write(int register, byte[] buffer, int offset, int size) throws IOException;
+}
@@ -0,0 +1,724 @@
+package device.bus;
+
+import device.gpio.SimulatedPin;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory register map of MPU-9250 and its AK8963, for running drivers without a Pi.
+ * Samples are generated from a synthetic motion (roll, pitch and yaw swinging around),
+ * gyro has a constant bias, all axes have gaussian noise.
+ * Every transaction is counted and costed with {@link BusSpeed}, so bus usage of drivers can be measured.
+ * Power-up delays are modeled by wall clock (can be disabled): the device doesn't ACK right after power on,
+ * H_RESET and SRST bits stay set while resetting, gyro has no data until it has started up,
+ * and AK8963 ignores a new mode written less than 100 us after power-down.
+ * Low power accel mode is modeled too: with gyro in standby (PWR_MGMT_2) and CYCLE set, accel is sampled at
+ * LP_ACCEL_ODR, and wake-on-motion (MOT_DETECT_CTRL, WOM_THR) raises WOM_INT when accel changed more than threshold.
+ */
+public class SimulatedMpu9250 {
+    private static final int SMPLRT_DIV    = 0x19;
+    private static final int CONFIG        = 0x1A;
+    private static final int GYRO_CONFIG   = 0x1B;
+    private static final int ACCEL_CONFIG  = 0x1C;
+    private static final int LP_ACCEL_ODR  = 0x1E;
+    private static final int WOM_THR       = 0x1F;
+    private static final int FIFO_EN       = 0x23;
+    private static final int I2C_SLV0_ADDR = 0x25;
+    private static final int I2C_SLV0_REG  = 0x26;
+    private static final int I2C_SLV0_CTRL = 0x27;
+    private static final int I2C_SLV4_ADDR = 0x31;
+    private static final int I2C_SLV4_REG  = 0x32;
+    private static final int I2C_SLV4_DO   = 0x33;
+    private static final int I2C_SLV4_CTRL = 0x34;
+    private static final int I2C_SLV4_DI   = 0x35;
+    private static final int I2C_MST_STATUS = 0x36;
+    private static final int INT_PIN_CFG   = 0x37;
+    private static final int INT_ENABLE    = 0x38;
+    private static final int INT_STATUS    = 0x3A;
+    private static final int ACCEL_XOUT_H  = 0x3B;
+    private static final int TEMP_OUT_H    = 0x41;
+    private static final int GYRO_XOUT_H   = 0x43;
+    private static final int EXT_SENS_DATA_00 = 0x49;
+    private static final int MOT_DETECT_CTRL = 0x69;
+    private static final int USER_CTRL     = 0x6A;
+    private static final int PWR_MGMT_1    = 0x6B;
+    private static final int PWR_MGMT_2    = 0x6C;
+    private static final int FIFO_COUNTH   = 0x72;
+    private static final int FIFO_COUNTL   = 0x73;
+    private static final int FIFO_R_W      = 0x74;
+    private static final int WHO_AM_I      = 0x75;
+    private static final int XG_OFFSET_H   = 0x13;
+
+    private static final int AK_WIA        = 0x00;
+    private static final int AK_ST1        = 0x02;
+    private static final int AK_HXL        = 0x03;
+    private static final int AK_ST2        = 0x09;
+    private static final int AK_CNTL       = 0x0A;
+    private static final int AK_CNTL2      = 0x0B;
+    private static final int AK_ASAX       = 0x10;
+    private static final int AK_ADDRESS    = 0x0C;
+
+    /** Time from power on until device ACKs (ns), start-up time for register read/write */
+    public static final long POWER_ON_NANOS = 11000000L;
+    /** Time H_RESET bit of PWR_MGMT_1 stays set (ns) */
+    public static final long RESET_NANOS = 5000000L;
+    /** Time from reset or wake up until gyro data is ready (ns) */
+    public static final long GYRO_STARTUP_NANOS = 35000000L;
+    /** Time SRST bit of AK8963 CNTL2 stays set (ns) */
+    public static final long AK_RESET_NANOS = 1000000L;
+    /** Time AK8963 should stay in power-down before another mode (ns) */
+    public static final long AK_MODE_CHANGE_NANOS = 100000L;
+
+    private static final int FIFO_SIZE = 512;
+    /** Rates of LP_ACCEL_ODR (Hz) */
+    private static final double[] LP_ACCEL_RATES = {0.24, 0.49, 0.98, 1.95, 3.91, 7.81, 15.63, 31.25, 62.5, 125, 250, 500};
+    /** Earth magnetic field (uT), x point to north, z point to sky */
+    private static final double[] EARTH_FIELD = {22.0, 0.0, -42.0};
+    /** Default Fuse ROM sensitivity adjustment of AK8963 */
+    private static final byte[] ASA = {(byte)0xB0, (byte)0xB3, (byte)0xA6};
+
+    private final byte[] mpu = new byte[128];
+    private final byte[] ak = new byte[32];
+    private final byte[] fifo = new byte[FIFO_SIZE];
+    private int fifoHead = 0;
+    private int fifoCount = 0;
+
+    private final BusSpeed speed;
+    private final long overheadNanos;
+    private final boolean realTime;
+    private final Random random = new Random(9250);
+    private final RegisterBus mpuBus = new Port(false);
+    private final RegisterBus magBus = new Port(true);
+
+    /** Accel of last sample, reference of wake-on-motion */
+    private final int[] previousAccel = new int[3];
+    /** Gyro bias (deg / sec) */
+    private final double[] gyroBias = {0.9, -0.6, 0.35};
+    /** Fuse ROM sensitivity adjustment of this AK8963 */
+    private final byte[] asa = ASA.clone();
+    /** Amplitude of synthetic motion (deg), 0 means stationary */
+    private double motionAmplitude = 30;
+    private boolean autoStep = true;
+    private long nextSampleNanos = System.nanoTime();
+    private double sampleTime = 0;
+    private double nextMagTime = 0;
+    private long sampleCount = 0;
+    private volatile SimulatedPin interruptPin;
+    private Thread clock;
+
+    private boolean startupDelays = true;
+    /** Device NACKs until this time (power on) */
+    private long powerOnNanos;
+    /** H_RESET is in progress until this time */
+    private long resetDoneNanos;
+    /** No gyro data until this time */
+    private long gyroReadyNanos;
+    /** SRST of AK8963 is in progress until this time */
+    private long akResetDoneNanos;
+    /** Last time AK8963 entered power-down */
+    private long akPowerDownNanos;
+
+    private long transactionCount = 0;
+    private long byteCount = 0;
+    private long busNanos = 0;
+
+    /**
+     * Simulated device on 400 kHz bus, without transaction overhead, transactions don't take wall time.
+     */
+    public SimulatedMpu9250() {
+        this(BusSpeed.FAST_400KHZ, 0, false);
+    }
+
+    /**
+     * @param speed         Bus speed of cost model
+     * @param overheadNanos Fixed cost of every transaction (driver / kernel), ns
+     * @param realTime      Busy wait modeled cost in every transaction, so wall time is like on a real bus
+     */
+    public SimulatedMpu9250(BusSpeed speed, long overheadNanos, boolean realTime) {
+        this.speed = speed;
+        this.overheadNanos = overheadNanos;
+        this.realTime = realTime;
+        resetMpu();
+        resetAk();
+        long now = System.nanoTime();
+        powerOnNanos = now + POWER_ON_NANOS;
+        resetDoneNanos = now;
+        gyroReadyNanos = powerOnNanos + GYRO_STARTUP_NANOS;
+        akResetDoneNanos = now;
+        akPowerDownNanos = now;
+    }
+
+    /**
+     * Model power-up delays (default), or let the device be ready at once.
+     */
+    public synchronized void setStartupDelays(boolean enabled){
+        startupDelays = enabled;
+    }
+
+    /**
+     * Register bus of MPU-9250 (0x68).
+     */
+    public RegisterBus getMpuBus(){
+        return mpuBus;
+    }
+
+    /**
+     * Register bus of AK8963 (0x0C), only reachable when bypass mode of MPU-9250 is enabled (INT_PIN_CFG bit 1).
+     */
+    public RegisterBus getMagBus(){
+        return magBus;
+    }
+
+    /**
+     * Set amplitude of synthetic motion.
+     * @param degrees Amplitude (deg), 0 for a stationary device
+     */
+    public synchronized void setMotionAmplitude(double degrees){
+        motionAmplitude = degrees;
+    }
+
+    /**
+     * Set seed of noise, several simulated devices with different seeds have independent noise.
+     */
+    public synchronized void setNoiseSeed(long seed){
+        random.setSeed(seed);
+    }
+
+    /**
+     * Generate samples by wall clock before every transaction (default), or only by {@link #step(int)}.
+     */
+    public synchronized void setAutoStep(boolean autoStep){
+        this.autoStep = autoStep;
+        nextSampleNanos = System.nanoTime();
+    }
+
+    /**
+     * Set Fuse ROM sensitivity adjustment (ASAX ~ ASAZ) of AK8963, every unit has its own.
+     * @param x ASAX, 0 ~ 255
+     * @param y ASAY, 0 ~ 255
+     * @param z ASAZ, 0 ~ 255
+     */
+    public synchronized void setSensitivityAdjustment(int x, int y, int z){
+        asa[0] = (byte)x;
+        asa[1] = (byte)y;
+        asa[2] = (byte)z;
+        System.arraycopy(asa, 0, ak, AK_ASAX, 3);
+    }
+
+    /**
+     * Connect INT of the device to a pin, it is pulsed for every sample if data ready interrupt is enabled.
+     * @param pin Simulated pin, null to disconnect
+     */
+    public void connectInterrupt(SimulatedPin pin){
+        interruptPin = pin;
+    }
+
+    /**
+     * Generate samples on a background thread at sample rate, like a real free running device.
+     * Auto step is disabled.
+     */
+    public synchronized void startClock(){
+        if(clock != null){
+            return;
+        }
+        autoStep = false;
+        clock = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long deadline = System.nanoTime();
+                while(!Thread.currentThread().isInterrupted()){
+                    deadline += getSamplePeriodNanos();
+                    long remain;
+                    while((remain = deadline - System.nanoTime()) > 0){
+                        LockSupport.parkNanos(remain);
+                    }
+                    step(1);
+                }
+            }
+        }, "simulated-mpu9250");
+        clock.setDaemon(true);
+        clock.start();
+    }
+
+    public synchronized void stopClock(){
+        if(clock != null){
+            clock.interrupt();
+            clock = null;
+        }
+    }
+
+    /**
+     * Generate samples manually.
+     * @param samples How many samples
+     */
+    public synchronized void step(int samples){
+        for(int i = 0; i < samples; ++i){
+            generateSample();
+        }
+    }
+
+    /**
+     * Current output data rate, depends on CONFIG and SMPLRT_DIV like real device.
+     * @return Sample rate (Hz), at least 1 (low power accel could be slower, see {@link #getSampleRateHz()})
+     */
+    public synchronized int getSampleRate(){
+        return (int)Math.max(1, Math.round(getSampleRateHz()));
+    }
+
+    /**
+     * Current output data rate, LP_ACCEL_ODR in low power accel mode.
+     * @return Sample rate (Hz)
+     */
+    public synchronized double getSampleRateHz(){
+        if(isLowPowerAccel()){
+            return LP_ACCEL_RATES[Math.min(LP_ACCEL_RATES.length - 1, mpu[LP_ACCEL_ODR] & 0x0F)];
+        }
+        int dlpf = mpu[CONFIG] & 0x07;
+        if((mpu[GYRO_CONFIG] & 0x03) != 0 || dlpf == 0 || dlpf == 7){
+            return 8000;
+        }
+        return 1000 / (1 + (mpu[SMPLRT_DIV] & 0xff));
+    }
+
+    private long getSamplePeriodNanos(){
+        return (long)(1e9 / getSampleRateHz());
+    }
+
+    /**
+     * Whether the device is in low power accel mode (CYCLE set, gyro in standby).
+     */
+    public synchronized boolean isLowPowerAccel(){
+        return (mpu[PWR_MGMT_1] & 0x20) != 0 && !gyroEnabled();
+    }
+
+    private boolean gyroEnabled(){
+        return (mpu[PWR_MGMT_2] & 0x07) != 0x07;
+    }
+
+    public synchronized long getSampleCount(){
+        return sampleCount;
+    }
+
+    public synchronized long getTransactionCount(){
+        return transactionCount;
+    }
+
+    public synchronized long getByteCount(){
+        return byteCount;
+    }
+
+    /**
+     * Getter for modeled time on the bus.
+     * @return Sum of cost of all transactions (ns)
+     */
+    public synchronized long getBusNanos(){
+        return busNanos;
+    }
+
+    public synchronized void resetStatistics(){
+        transactionCount = 0;
+        byteCount = 0;
+        busNanos = 0;
+    }
+
+    /**
+     * Reset registers of MPU-9250 to their reset values.
+     */
+    private void resetMpu(){
+        java.util.Arrays.fill(mpu, (byte)0);
+        mpu[PWR_MGMT_1] = 0x01;
+        mpu[WHO_AM_I] = 0x71;
+        fifoHead = 0;
+        fifoCount = 0;
+    }
+
+    /**
+     * Reset registers of AK8963 to their reset values, it is in power-down mode after reset.
+     */
+    private void resetAk(){
+        java.util.Arrays.fill(ak, (byte)0);
+        ak[AK_WIA] = 0x48;
+        System.arraycopy(asa, 0, ak, AK_ASAX, 3);
+    }
+
+    private boolean before(long time){
+        return startupDelays && System.nanoTime() - time < 0;
+    }
+
+    private void transaction(long cost, int size){
+        ++transactionCount;
+        byteCount += size;
+        cost += overheadNanos;
+        busNanos += cost;
+        if(realTime){
+            long end = System.nanoTime() + cost;
+            while(System.nanoTime() < end);
+        }
+        if(autoStep){
+            catchUp();
+        }
+    }
+
+    private void catchUp(){
+        long now = System.nanoTime();
+        long period = getSamplePeriodNanos();
+        int generated = 0;
+        while(now - nextSampleNanos >= 0 && generated < FIFO_SIZE){
+            generateSample();
+            nextSampleNanos += period;
+            ++generated;
+        }
+        if(now - nextSampleNanos >= 0){
+            nextSampleNanos = now + period;
+        }
+    }
+
+    private synchronized int read(boolean mag, int register, byte[] buffer, int offset, int size){
+        transaction(speed.readNanos(size), size);
+        for(int i = 0; i < size; ++i){
+            buffer[offset + i] = (byte)(mag ? readMag(register) : readMpu(register));
+            if(mag || register != FIFO_R_W){
+                ++register;
+            }
+        }
+        return size;
+    }
+
+    private synchronized void write(boolean mag, int register, byte[] buffer, int offset, int size){
+        transaction(speed.writeNanos(size), size);
+        for(int i = 0; i < size; ++i){
+            if(mag){
+                writeMag(register + i, buffer[offset + i]);
+            }else{
+                writeMpu(register + i, buffer[offset + i]);
+            }
+        }
+    }
+
+    private int readMpu(int register){
+        register &= 0x7F;
+        switch(register){
+            case INT_STATUS:
+                int status = mpu[INT_STATUS] & 0xff;
+                mpu[INT_STATUS] = 0;
+                return status;
+            case I2C_MST_STATUS:
+                int masterStatus = mpu[I2C_MST_STATUS] & 0xff;
+                mpu[I2C_MST_STATUS] = 0;
+                return masterStatus;
+            case FIFO_COUNTH:
+                return (fifoCount >> 8) & 0x1F;
+            case FIFO_COUNTL:
+                return fifoCount & 0xff;
+            case PWR_MGMT_1:
+                return (mpu[PWR_MGMT_1] & 0xff) | (before(resetDoneNanos) ? 0x80 : 0);
+            case FIFO_R_W:
+                if(fifoCount == 0){
+                    return 0;
+                }
+                int data = fifo[fifoHead] & 0xff;
+                fifoHead = (fifoHead + 1) % FIFO_SIZE;
+                --fifoCount;
+                return data;
+            default:
+                return mpu[register] & 0xff;
+        }
+    }
+
+    private void writeMpu(int register, byte data){
+        register &= 0x7F;
+        if(before(resetDoneNanos)){
+            return; //Still resetting
+        }
+        switch(register){
+            case PWR_MGMT_1:
+                if((data & 0x80) != 0){
+                    resetMpu();
+                    long now = System.nanoTime();
+                    resetDoneNanos = now + RESET_NANOS;
+                    gyroReadyNanos = resetDoneNanos + GYRO_STARTUP_NANOS;
+                    return;
+                }
+                if((mpu[PWR_MGMT_1] & 0x40) != 0 && (data & 0x40) == 0){
+                    gyroReadyNanos = System.nanoTime() + GYRO_STARTUP_NANOS; //Wake up
+                }
+                break;
+            case PWR_MGMT_2:
+                if(!gyroEnabled() && (data & 0x07) != 0x07){
+                    gyroReadyNanos = System.nanoTime() + GYRO_STARTUP_NANOS; //Gyro leaves standby
+                }
+                break;
+            case USER_CTRL:
+                if((data & 0x04) != 0){
+                    fifoHead = 0;
+                    fifoCount = 0;
+                }
+                data &= ~0x07; //reset bits clear themselves
+                break;
+            case I2C_SLV4_CTRL:
+                if((data & 0x80) != 0){
+                    slave4Transfer();
+                    data &= ~0x80; //Enable bit clears itself after transfer
+                }
+                break;
+            case INT_STATUS:
+            case I2C_MST_STATUS:
+            case WHO_AM_I:
+                return;
+        }
+        mpu[register] = data;
+    }
+
+    private boolean masterEnabled(){
+        return (mpu[USER_CTRL] & 0x20) != 0;
+    }
+
+    /**
+     * Single byte transfer of slave 4 of internal I2C master.
+     */
+    private void slave4Transfer(){
+        if(!masterEnabled() || (mpu[I2C_SLV4_ADDR] & 0x7F) != AK_ADDRESS){
+            mpu[I2C_MST_STATUS] |= 0x50; //SLV4 NACK and done
+            return;
+        }
+        if((mpu[I2C_SLV4_ADDR] & 0x80) != 0){
+            mpu[I2C_SLV4_DI] = (byte)readMag(mpu[I2C_SLV4_REG] & 0xff);
+        }else{
+            writeMag(mpu[I2C_SLV4_REG] & 0xff, mpu[I2C_SLV4_DO]);
+        }
+        mpu[I2C_MST_STATUS] |= 0x40;
+    }
+
+    /**
+     * Slave 0 of internal I2C master, reads AK8963 into EXT_SENS_DATA every sample.
+     */
+    private void slave0Transfer(){
+        int ctrl = mpu[I2C_SLV0_CTRL] & 0xff;
+        if(!masterEnabled() || (ctrl & 0x80) == 0){
+            return;
+        }
+        if((mpu[I2C_SLV0_ADDR] & 0xff) != (AK_ADDRESS | 0x80)){
+            mpu[I2C_MST_STATUS] |= 0x01; //SLV0 NACK
+            return;
+        }
+        int register = mpu[I2C_SLV0_REG] & 0xff;
+        for(int i = 0; i < (ctrl & 0x0F); ++i){
+            mpu[EXT_SENS_DATA_00 + i] = (byte)readMag(register + i);
+        }
+    }
+
+    private int readMag(int register){
+        register &= 0x1F;
+        if(register == AK_CNTL2){
+            return before(akResetDoneNanos) ? 0x01 : 0;
+        }
+        int data = ak[register] & 0xff;
+        if(register == AK_ST2){
+            ak[AK_ST1] = 0; //Reading ST2 means the end of data read
+        }
+        return data;
+    }
+
+    private void writeMag(int register, byte data){
+        register &= 0x1F;
+        if(before(akResetDoneNanos)){
+            return; //Still resetting
+        }
+        if(register == AK_CNTL2 && (data & 0x01) != 0){
+            resetAk();
+            akResetDoneNanos = System.nanoTime() + AK_RESET_NANOS;
+            akPowerDownNanos = System.nanoTime();
+            return;
+        }
+        if(register == AK_CNTL){
+            boolean poweredDown = (ak[AK_CNTL] & 0x0F) == 0;
+            if((data & 0x0F) == 0){
+                akPowerDownNanos = System.nanoTime();
+            }else if(poweredDown && before(akPowerDownNanos + AK_MODE_CHANGE_NANOS)){
+                return; //Mode change too soon after power-down is ignored
+            }
+            ak[register] = data;
+            nextMagTime = sampleTime;
+        }
+    }
+
+    private void pushFifo(byte[] source, int offset, int size){
+        for(int i = 0; i < size; ++i){
+            if(fifoCount == FIFO_SIZE){
+                //Oldest data are overwritten, FIFO is not aligned to frame anymore
+                fifoHead = (fifoHead + 1) % FIFO_SIZE;
+                --fifoCount;
+                mpu[INT_STATUS] |= 0x10;
+            }
+            fifo[(fifoHead + fifoCount) % FIFO_SIZE] = source[offset + i];
+            ++fifoCount;
+        }
+    }
+
+    private void generateSample(){
+        boolean gyroOn = gyroEnabled();
+        if((mpu[PWR_MGMT_1] & 0x40) != 0 || (gyroOn && before(gyroReadyNanos))){
+            return; //Sleeping or gyro is not started up
+        }
+        double t = sampleTime;
+        double a = Math.toRadians(motionAmplitude);
+        double w1 = 2 * Math.PI * 0.5, w2 = 2 * Math.PI * 0.3, w3 = 2 * Math.PI * 0.1;
+        double roll  = a * Math.sin(w1 * t);
+        double pitch = a * 0.6 * Math.sin(w2 * t + 1);
+        double yaw   = a * 2 * Math.sin(w3 * t);
+        double rollDot  = a * w1 * Math.cos(w1 * t);
+        double pitchDot = a * 0.6 * w2 * Math.cos(w2 * t + 1);
+        double yawDot   = a * 2 * w3 * Math.cos(w3 * t);
+
+        double sr = Math.sin(roll), cr = Math.cos(roll);
+        double sp = Math.sin(pitch), cp = Math.cos(pitch);
+        double sy = Math.sin(yaw), cy = Math.cos(yaw);
+
+        //Body rate from euler rate (rad / sec)
+        double p = rollDot - yawDot * sp;
+        double q = pitchDot * cr + yawDot * sr * cp;
+        double r = -pitchDot * sr + yawDot * cr * cp;
+
+        double temperature = 25 + 10 * (1 - Math.exp(-t / 300));
+        double drift = (temperature - 25) * 0.02;
+
+        int gyroRange = 250 << ((mpu[GYRO_CONFIG] >> 3) & 0x03);
+        int accelRange = 2 << ((mpu[ACCEL_CONFIG] >> 3) & 0x03);
+        double gyroLsb = 32768.0 / gyroRange;
+        double accelLsb = 32768.0 / accelRange;
+
+        double[] rate = {Math.toDegrees(p), Math.toDegrees(q), Math.toDegrees(r)};
+        for(int i = 0; i < 3 && gyroOn; ++i){
+            int trim = (short)((mpu[XG_OFFSET_H + i * 2] << 8) | (mpu[XG_OFFSET_H + i * 2 + 1] & 0xff));
+            double value = (rate[i] + gyroBias[i] + drift + random.nextGaussian() * 0.05) * gyroLsb
+                    + trim * 1000.0 / gyroRange;
+            putShort(mpu, GYRO_XOUT_H + i * 2, value, true);
+        }
+
+        //Gravity in body frame
+        int[] previous = previousAccel;
+        for(int i = 0; i < 3; ++i){
+            previous[i] = (short)((mpu[ACCEL_XOUT_H + i * 2] << 8) | (mpu[ACCEL_XOUT_H + i * 2 + 1] & 0xff));
+        }
+        putShort(mpu, ACCEL_XOUT_H,     (-sp + random.nextGaussian() * 0.002) * accelLsb, true);
+        putShort(mpu, ACCEL_XOUT_H + 2, (sr * cp + random.nextGaussian() * 0.002) * accelLsb, true);
+        putShort(mpu, ACCEL_XOUT_H + 4, (cr * cp + random.nextGaussian() * 0.002) * accelLsb, true);
+        putShort(mpu, TEMP_OUT_H, (temperature - 21) * 333.87, true);
+        mpu[INT_STATUS] |= 0x01;
+
+        boolean motion = false;
+        if((mpu[MOT_DETECT_CTRL] & 0xC0) == 0xC0){
+            //Wake-on-motion compares every sample with the previous one, threshold is 4 mg / LSB
+            double threshold = (mpu[WOM_THR] & 0xff) * 0.004 * accelLsb;
+            for(int i = 0; i < 3; ++i){
+                int now = (short)((mpu[ACCEL_XOUT_H + i * 2] << 8) | (mpu[ACCEL_XOUT_H + i * 2 + 1] & 0xff));
+                if(Math.abs(now - previous[i]) > threshold){
+                    motion = true;
+                }
+            }
+            if(motion){
+                mpu[INT_STATUS] |= 0x40;
+            }
+        }
+
+        if((mpu[USER_CTRL] & 0x40) != 0){
+            int fifoEn = mpu[FIFO_EN] & 0xff;
+            if((fifoEn & 0x08) != 0) pushFifo(mpu, ACCEL_XOUT_H, 6);
+            if((fifoEn & 0x80) != 0) pushFifo(mpu, TEMP_OUT_H, 2);
+            if((fifoEn & 0x40) != 0) pushFifo(mpu, GYRO_XOUT_H, 2);
+            if((fifoEn & 0x20) != 0) pushFifo(mpu, GYRO_XOUT_H + 2, 2);
+            if((fifoEn & 0x10) != 0) pushFifo(mpu, GYRO_XOUT_H + 4, 2);
+        }
+
+        int mode = ak[AK_CNTL] & 0x0F;
+        if((mode == 0x02 || mode == 0x06) && t >= nextMagTime){
+            nextMagTime += (mode == 0x02) ? 1.0 / 8 : 1.0 / 100;
+            //Earth field in body frame
+            double bx = cy * cp * EARTH_FIELD[0] + sy * cp * EARTH_FIELD[1] - sp * EARTH_FIELD[2];
+            double by = (cy * sp * sr - sy * cr) * EARTH_FIELD[0] + (sy * sp * sr + cy * cr) * EARTH_FIELD[1] + cp * sr * EARTH_FIELD[2];
+            double bz = (cy * sp * cr + sy * sr) * EARTH_FIELD[0] + (sy * sp * cr - cy * sr) * EARTH_FIELD[1] + cp * cr * EARTH_FIELD[2];
+            //Axes of AK8963 are different from MPU-9250
+            double[] field = {by, bx, -bz};
+            double res = ((ak[AK_CNTL] & 0x10) != 0) ? 0.15 : 0.6;
+            for(int i = 0; i < 3; ++i){
+                double adjust = ((asa[i] & 0xff) - 128) / 256.0 + 1;
+                putShort(ak, AK_HXL + i * 2, (field[i] + random.nextGaussian() * 0.3) / (res * adjust), false);
+            }
+            ak[AK_ST1] |= ((ak[AK_ST1] & 0x01) != 0) ? 0x03 : 0x01; //DOR if last data wasn't read
+            ak[AK_ST2] = (byte)(ak[AK_CNTL] & 0x10);
+        }
+        slave0Transfer();
+
+        sampleTime += 1.0 / getSampleRateHz();
+        ++sampleCount;
+
+        SimulatedPin pin = interruptPin;
+        if(pin != null && ((mpu[INT_ENABLE] & 0x01) != 0 || (motion && (mpu[INT_ENABLE] & 0x40) != 0))){
+            pin.pulse();
+        }
+    }
+
+    private static void putShort(byte[] registers, int address, double value, boolean bigEndian){
+        long v = Math.round(value);
+        short s = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+        registers[address + (bigEndian ? 0 : 1)] = (byte)(s >> 8);
+        registers[address + (bigEndian ? 1 : 0)] = (byte)s;
+    }
+
+    /**
+     * Register bus of one of the simulated devices.
+     */
+    private class Port implements RegisterBus {
+        private final boolean mag;
+        private final byte[] single = new byte[1];
+
+        Port(boolean mag){
+            this.mag = mag;
+        }
+
+        private void checkReachable() throws IOException {
+            if(before(powerOnNanos)){
+                throw new IOException((mag ? "AK8963" : "MPU-9250") + " didn't ACK, device is powering up");
+            }
+            if(mag && (mpu[INT_PIN_CFG] & 0x02) == 0){
+                throw new IOException("AK8963 didn't ACK, bypass mode of MPU-9250 is disabled");
+            }
+        }
+
+        @Override
+        public int read(int register) throws IOException {
+            synchronized (SimulatedMpu9250.this) {
+                checkReachable();
+                SimulatedMpu9250.this.read(mag, register, single, 0, 1);
+                return single[0] & 0xff;
+            }
+        }
+
+        @Override
+        public int read(int register, byte[] buffer, int offset, int size) throws IOException {
+            synchronized (SimulatedMpu9250.this) {
+                checkReachable();
+                return SimulatedMpu9250.this.read(mag, register, buffer, offset, size);
+            }
+        }
+
+        @Override
+        public void write(int register, byte data) throws IOException {
+            synchronized (SimulatedMpu9250.this) {
+                checkReachable();
+                single[0] = data;
+                SimulatedMpu9250.this.write(mag, register, single, 0, 1);
+            }
+        }
+
+        @Override
+        public void write(int register, byte[] buffer, int offset, int size) throws IOException {
+            synchronized (SimulatedMpu9250.this) {
+                checkReachable();
+                SimulatedMpu9250.this.write(mag, register, buffer, offset, size);
+            }
+        }
+    }
+}
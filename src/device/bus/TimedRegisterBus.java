@@ -0,0 +1,80 @@
+package device.bus;
+
+import metrics.Metrics;
+
+import java.io.IOException;
+
+/**
+ * Decorator which records time of every transaction to {@link Metrics#I2C_TRANSACTION}.
+ * Use {@link #instrument(RegisterBus)}, it only wraps when metrics are enabled.
+ */
+public class TimedRegisterBus implements RegisterBus {
+    private final RegisterBus bus;
+
+    public TimedRegisterBus(RegisterBus bus){
+        this.bus = bus;
+    }
+
+    /**
+     * @param bus Bus
+     * @return    Timed bus if metrics are enabled, otherwise bus itself (no overhead)
+     */
+    public static RegisterBus instrument(RegisterBus bus){
+        if(!Metrics.ENABLED || bus == null || bus instanceof TimedRegisterBus){
+            return bus;
+        }
+        return new TimedRegisterBus(bus);
+    }
+
+    @Override
+    public int read(int register) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return bus.read(register);
+        } catch (IOException e) {
+            Metrics.I2C_ERRORS.increment();
+            throw e;
+        } finally {
+            Metrics.I2C_TRANSACTION.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public int read(int register, byte[] buffer, int offset, int size) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return bus.read(register, buffer, offset, size);
+        } catch (IOException e) {
+            Metrics.I2C_ERRORS.increment();
+            throw e;
+        } finally {
+            Metrics.I2C_TRANSACTION.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void write(int register, byte data) throws IOException {
+        long start = System.nanoTime();
+        try {
+            bus.write(register, data);
+        } catch (IOException e) {
+            Metrics.I2C_ERRORS.increment();
+            throw e;
+        } finally {
+            Metrics.I2C_TRANSACTION.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void write(int register, byte[] buffer, int offset, int size) throws IOException {
+        long start = System.nanoTime();
+        try {
+            bus.write(register, buffer, offset, size);
+        } catch (IOException e) {
+            Metrics.I2C_ERRORS.increment();
+            throw e;
+        } finally {
+            Metrics.I2C_TRANSACTION.record(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package device.gpio;
+
+/**
+ * Input pin connected to INT of sensor, tells host a new sample is ready.
+ */
+public interface DataReadyPin {
+    /**
+     * Set the callback of rising edge, null to remove it.
+     * Callback runs on the thread of pin (e.g. pi4j event thread), it should return quickly.
+     * @param listener Callback of rising edge
+     */
+    public void setListener(Runnable listener);
+
+    /**
+     * Release the pin.
+     */
+    public void close();
+}
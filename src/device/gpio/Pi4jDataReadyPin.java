@@ -0,0 +1,53 @@
+package device.gpio;
+
+import com.pi4j.io.gpio.GpioController;
+import com.pi4j.io.gpio.GpioFactory;
+import com.pi4j.io.gpio.GpioPinDigitalInput;
+import com.pi4j.io.gpio.Pin;
+import com.pi4j.io.gpio.PinEdge;
+import com.pi4j.io.gpio.PinPullResistance;
+import com.pi4j.io.gpio.RaspiPin;
+import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
+import com.pi4j.io.gpio.event.GpioPinListenerDigital;
+
+/**
+ * Data ready pin on GPIO of Raspberry Pi (pi4j).
+ */
+public class Pi4jDataReadyPin implements DataReadyPin {
+    private final GpioController gpio;
+    private final GpioPinDigitalInput input;
+    private volatile Runnable listener;
+
+    /**
+     * @param wiringPiAddress Pin number in wiringPi numbering (e.g. 0 for GPIO_00)
+     */
+    public Pi4jDataReadyPin(int wiringPiAddress){
+        this(RaspiPin.getPinByAddress(wiringPiAddress));
+    }
+
+    public Pi4jDataReadyPin(Pin pin){
+        gpio = GpioFactory.getInstance();
+        input = gpio.provisionDigitalInputPin(pin, PinPullResistance.PULL_DOWN);
+        input.addListener(new GpioPinListenerDigital() {
+            @Override
+            public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
+                Runnable l = listener;
+                if(l != null && event.getEdge() == PinEdge.RISING){
+                    l.run();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void close() {
+        listener = null;
+        input.removeAllListeners();
+        gpio.unprovisionPin(input);
+    }
+}
@@ -0,0 +1,31 @@
+package device.gpio;
+
+/**
+ * Data ready pin without hardware, edges are made by {@link #pulse()}
+ * (e.g. from {@link device.bus.SimulatedMpu9250}).
+ */
+public class SimulatedPin implements DataReadyPin {
+    private volatile Runnable listener;
+    private volatile boolean closed = false;
+
+    /**
+     * Make a rising edge.
+     */
+    public void pulse(){
+        Runnable l = listener;
+        if(l != null && !closed){
+            l.run();
+        }
+    }
+
+    @Override
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        listener = null;
+    }
+}
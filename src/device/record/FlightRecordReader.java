@@ -0,0 +1,122 @@
+package device.record;
+
+import device.ImuSample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Read frames of {@link FlightRecorder} back in order, across all segment files.
+ * Reading of a segment stops at the first frame whose marker doesn't match (unused or torn frame).
+ */
+public class FlightRecordReader {
+    private final List<File> segments = new ArrayList<File>();
+    private int segment = -1;
+    private MappedByteBuffer buffer;
+    private RecordHeader header;
+    private long firstSequence;
+    private int frameCapacity;
+    private int position;
+
+    /**
+     * @param directory Directory of segment files
+     * @param prefix    File name prefix used by recorder
+     */
+    public FlightRecordReader(File directory, String prefix) throws IOException {
+        final Pattern pattern = Pattern.compile(Pattern.quote(prefix) + "-(\\d+)\\.imu");
+        File[] files = directory.listFiles();
+        if(files == null){
+            throw new IOException("Couldn't list " + directory);
+        }
+        List<Integer> indices = new ArrayList<Integer>();
+        for(File file : files){
+            Matcher m = pattern.matcher(file.getName());
+            if(m.matches()){
+                indices.add(Integer.parseInt(m.group(1)));
+            }
+        }
+        Collections.sort(indices);
+        for(int index : indices){
+            segments.add(FlightRecorder.segmentFile(directory, prefix, index));
+        }
+    }
+
+    /**
+     * Start again from the first frame of the first segment, segment files are not listed again.
+     */
+    public void rewind(){
+        segment = -1;
+        buffer = null;
+        header = null;
+    }
+
+    /**
+     * Header of the segment which the last frame came from.
+     * @return Header, null before first frame
+     */
+    public RecordHeader getHeader(){
+        return header;
+    }
+
+    /**
+     * Read next valid frame.
+     * @param sample Destination
+     * @return       False if there is no more frame
+     */
+    public boolean next(ImuSample sample) throws IOException {
+        while(true){
+            if(buffer != null && position < frameCapacity){
+                int base = RecordHeader.SIZE + position * FlightRecorder.FRAME_SIZE;
+                if(buffer.getInt(base + 28) == (int)(firstSequence + position + 1)){
+                    sample.timestamp   = buffer.getLong(base);
+                    sample.accel[0]    = buffer.getShort(base + 8);
+                    sample.accel[1]    = buffer.getShort(base + 10);
+                    sample.accel[2]    = buffer.getShort(base + 12);
+                    sample.temperature = buffer.getShort(base + 14);
+                    sample.gyro[0]     = buffer.getShort(base + 16);
+                    sample.gyro[1]     = buffer.getShort(base + 18);
+                    sample.gyro[2]     = buffer.getShort(base + 20);
+                    sample.mag[0]      = buffer.getShort(base + 22);
+                    sample.mag[1]      = buffer.getShort(base + 24);
+                    sample.mag[2]      = buffer.getShort(base + 26);
+                    ++position;
+                    return true;
+                }
+            }
+            if(!openNext()){
+                return false;
+            }
+        }
+    }
+
+    private boolean openNext() throws IOException {
+        while(++segment < segments.size()){
+            try(RandomAccessFile raf = new RandomAccessFile(segments.get(segment), "r")){
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            RecordHeader h = RecordHeader.read(buffer);
+            if(h == null){
+                System.err.println("Skip " + segments.get(segment) + ", not a flight record");
+                continue;
+            }
+            header = h;
+            firstSequence = buffer.getLong(16);
+            frameCapacity = Math.min(buffer.getInt(24),
+                    (buffer.limit() - RecordHeader.SIZE) / FlightRecorder.FRAME_SIZE);
+            position = 0;
+            return true;
+        }
+        buffer = null;
+        return false;
+    }
+}
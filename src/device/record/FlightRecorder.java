@@ -0,0 +1,261 @@
+package device.record;
+
+import device.ImuSample;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append raw samples to memory mapped segment files, for post-flight analysis at full rate.
+ * <p>
+ * Segment file: {@link RecordHeader} (128 bytes), then fixed size frames (32 bytes, little endian):
+ * time stamp (long), accel x, y, z, temperature, gyro x, y, z, mag x, y, z (short), marker (int).
+ * Marker is the low 32 bits of (global frame sequence + 1) and is written last, so a frame is valid
+ * only if its marker matches, a torn frame or an unused / reused slot is never read back.
+ * <p>
+ * Segments are created and mapped ahead of time on a background thread, at most maxSegments files
+ * are kept, the oldest file is renamed and reused for the next segment. Header of a segment is written when
+ * recording moves to it, a segment is closed early when the tracked gyro offset changed
+ * (see {@link #trackGyroOffset(int[])}), so every header holds the offset its frames were made with.
+ * {@link #record(ImuSample)} only writes to mapped memory, it should be called from one thread.
+ * {@link #flush()} may be called from any thread, it forces the segment being written at the time.
+ */
+public class FlightRecorder implements Closeable {
+    public static final int FRAME_SIZE = 32;
+    public static final int FRAME_VALUES = 10;
+    private static final int PAGE = 4096;
+
+    private final File directory;
+    private final String prefix;
+    private final int framesPerSegment;
+    private final int maxSegments;
+    private final RecordHeader header;
+    private final ScheduledExecutorService background;
+
+    private MappedByteBuffer current;
+    /** Segment being written, published to flushing thread on rotation */
+    private volatile MappedByteBuffer recording;
+    private int currentIndex = 0;
+    private Future<MappedByteBuffer> next;
+    private int position = 0;
+    private long sequence = 0;
+    private long dropped = 0;
+    private boolean failed = false;
+    private int[] gyroOffset;
+
+    /**
+     * @param directory            Directory of segment files
+     * @param prefix               File name prefix, segment files are prefix-000000.imu, prefix-000001.imu, ...
+     * @param framesPerSegment     Frames of a segment (8 kHz * 60 sec = 480000 frames is about 15 MB)
+     * @param maxSegments          How many segment files are kept, at least 2
+     * @param header               Sensor settings, its gyro offset is updated by {@link #trackGyroOffset(int[])}
+     * @param flushIntervalMillis  Interval of forcing mapped data to storage, 0 to disable
+     */
+    public FlightRecorder(File directory, String prefix, int framesPerSegment, int maxSegments,
+                          RecordHeader header, long flushIntervalMillis) throws IOException {
+        if(framesPerSegment <= 0 || maxSegments < 2){
+            throw new IllegalArgumentException("framesPerSegment should be positive, maxSegments should be at least 2");
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.framesPerSegment = framesPerSegment;
+        this.maxSegments = maxSegments;
+        this.header = header;
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Couldn't create " + directory);
+        }
+        background = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "flight-recorder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        current = prepare(0);
+        header.write(current, 0, 0, framesPerSegment);
+        recording = current;
+        next = prepareAsync(1);
+        if(flushIntervalMillis > 0){
+            background.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * File of a segment.
+     */
+    public static File segmentFile(File directory, String prefix, int index){
+        return new File(directory, String.format("%s-%06d.imu", prefix, index));
+    }
+
+    private Future<MappedByteBuffer> prepareAsync(final int index){
+        return background.submit(new Callable<MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer call() throws IOException {
+                return prepare(index);
+            }
+        });
+    }
+
+    /**
+     * Create (or reuse the oldest) segment file, map it and fault every page in.
+     * Its header is invalid until recording moves to it, so a reused file is not read back after a crash.
+     */
+    private MappedByteBuffer prepare(int index) throws IOException {
+        File file = segmentFile(directory, prefix, index);
+        if(index >= maxSegments){
+            File oldest = segmentFile(directory, prefix, index - maxSegments);
+            if(oldest.exists() && !oldest.renameTo(file)){
+                throw new IOException("Couldn't reuse " + oldest);
+            }
+        }
+        long size = RecordHeader.SIZE + (long)framesPerSegment * FRAME_SIZE;
+        MappedByteBuffer buffer;
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        for(int p = 0; p < size; p += PAGE){
+            buffer.put(p, buffer.get(p));
+        }
+        buffer.putInt(0, 0);
+        return buffer;
+    }
+
+    /**
+     * Follow gyro offset which may change while recording (e.g. {@link device.Mpu9250#getGyroOffset()} with online
+     * bias write back). When it differs from the header, the header is updated and following frames go to a new
+     * segment. Offset is read by {@link #record(ImuSample)}, so it should change on the recording thread.
+     * @param gyroOffset Gyro offset (x, y, z), null to stop following
+     */
+    public void trackGyroOffset(int[] gyroOffset){
+        this.gyroOffset = gyroOffset;
+    }
+
+    /**
+     * Append a frame. Mag values are recorded as they are in sample.
+     * @param sample Raw sample
+     */
+    public void record(ImuSample sample){
+        if(failed){
+            ++dropped;
+            return;
+        }
+        int[] offset = gyroOffset;
+        if(offset != null && (offset[0] != header.gyroOffset[0] || offset[1] != header.gyroOffset[1]
+                || offset[2] != header.gyroOffset[2])){
+            System.arraycopy(offset, 0, header.gyroOffset, 0, 3);
+            if(position == 0){
+                header.write(current, currentIndex, sequence, framesPerSegment);
+            }else if(!rotate()){
+                ++dropped;
+                return;
+            }
+        }
+        if(position == framesPerSegment && !rotate()){
+            ++dropped;
+            return;
+        }
+        MappedByteBuffer b = current;
+        int base = RecordHeader.SIZE + position * FRAME_SIZE;
+        b.putLong(base, sample.timestamp);
+        b.putShort(base + 8,  (short)sample.accel[0]);
+        b.putShort(base + 10, (short)sample.accel[1]);
+        b.putShort(base + 12, (short)sample.accel[2]);
+        b.putShort(base + 14, (short)sample.temperature);
+        b.putShort(base + 16, (short)sample.gyro[0]);
+        b.putShort(base + 18, (short)sample.gyro[1]);
+        b.putShort(base + 20, (short)sample.gyro[2]);
+        b.putShort(base + 22, (short)sample.mag[0]);
+        b.putShort(base + 24, (short)sample.mag[1]);
+        b.putShort(base + 26, (short)sample.mag[2]);
+        b.putInt(base + 28, (int)(sequence + 1));
+        ++position;
+        ++sequence;
+    }
+
+    private boolean rotate(){
+        final MappedByteBuffer finished = current;
+        try{
+            current = next.get();
+            recording = current;
+        }catch(Exception e){
+            e.printStackTrace();
+            failed = true;
+            return false;
+        }
+        ++currentIndex;
+        position = 0;
+        header.write(current, currentIndex, sequence, framesPerSegment);
+        //Single hand-off per rotation: force the finished segment, then prepare the one after current
+        final int index = currentIndex + 1;
+        next = background.submit(new Callable<MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer call() throws IOException {
+                finished.force();
+                return prepare(index);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Force recorded frames of the current segment to storage, finished segments are forced on rotation.
+     * Frames written while forcing may or may not be included, their markers tell.
+     */
+    public void flush(){
+        recording.force();
+    }
+
+    /**
+     * Getter for frames recorded since start.
+     */
+    public long getFrameCount(){
+        return sequence;
+    }
+
+    /**
+     * Getter for frames which couldn't be recorded (segment file couldn't be prepared).
+     */
+    public long getDroppedCount(){
+        return dropped;
+    }
+
+    @Override
+    public void close() {
+        background.shutdown();
+        try{
+            background.awaitTermination(10, TimeUnit.SECONDS);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        //Segment prepared for next rotation was never used
+        File unused = segmentFile(directory, prefix, currentIndex + 1);
+        try{
+            next.get();
+            if(!unused.delete()){
+                System.err.println("Couldn't delete " + unused);
+            }
+        }catch(Exception e){
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package device.record;
+
+import device.Mpu9250;
+import device.Scale;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Settings of the sensor when a record was made, raw frames are meaningless without them.
+ * Stored at the beginning of every segment file.
+ */
+public class RecordHeader {
+    public static final int MAGIC = 0x494D5552; //"IMUR"
+    public static final short VERSION = 1;
+    public static final int SIZE = 128;
+
+    /** ACCEL_CONFIG / GYRO_CONFIG value and mag scale value */
+    public byte accelConfig, gyroConfig, magScale;
+    /** Whether mag values of frames are valid */
+    public boolean hasMag;
+    /** Resolution of accel (g / LSB), gyro (deg / sec / LSB), mag (mG / LSB) */
+    public double accelResolution, gyroResolution, magResolution;
+    /** Sensitivity adjustment of AK8963 */
+    public final double[] magScaling = new double[3];
+    /** Gyro offset wrote to XG_OFFSET registers */
+    public final int[] gyroOffset = new int[3];
+    /** Hard-iron bias of magnetometer (mG) */
+    public final double[] magBias = new double[3];
+
+    /**
+     * Header of a Mpu9250 with its current scale and calibration.
+     * @param mpu9250 Sensor
+     * @param magBias Bias of magnetometer, null if unknown
+     */
+    public static RecordHeader of(Mpu9250 mpu9250, double[] magBias){
+        RecordHeader header = new RecordHeader();
+        Scale scale = mpu9250.getScale();
+        header.accelConfig = scale.getAcc().getValue();
+        header.gyroConfig = scale.getGyro().getValue();
+        header.accelResolution = scale.getAcc().getResolution();
+        header.gyroResolution = scale.getGyro().getResolution();
+        if(scale.haveMag()){
+            header.magScale = scale.getMag().getValue();
+            header.magResolution = scale.getMag().getResolution();
+            System.arraycopy(mpu9250.getMagSensitivity(), 0, header.magScaling, 0, 3);
+        }
+        header.hasMag = mpu9250.hasMagnetometer();
+        System.arraycopy(mpu9250.getGyroOffset(), 0, header.gyroOffset, 0, 3);
+        if(magBias != null){
+            System.arraycopy(magBias, 0, header.magBias, 0, 3);
+        }
+        return header;
+    }
+
+    void write(ByteBuffer buffer, int segmentIndex, long firstSequence, int frameCapacity){
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, VERSION);
+        buffer.putShort(6, (short)SIZE);
+        buffer.putShort(8, (short)FlightRecorder.FRAME_SIZE);
+        buffer.putShort(10, (short)FlightRecorder.FRAME_VALUES);
+        buffer.putInt(12, segmentIndex);
+        buffer.putLong(16, firstSequence);
+        buffer.putInt(24, frameCapacity);
+        buffer.put(28, accelConfig);
+        buffer.put(29, gyroConfig);
+        buffer.put(30, magScale);
+        buffer.put(31, (byte)(hasMag ? 0x01 : 0x00));
+        buffer.putDouble(32, accelResolution);
+        buffer.putDouble(40, gyroResolution);
+        buffer.putDouble(48, magResolution);
+        for(int i = 0; i < 3; ++i){
+            buffer.putDouble(56 + i * 8, magScaling[i]);
+            buffer.putInt(80 + i * 4, gyroOffset[i]);
+            buffer.putDouble(96 + i * 8, magBias[i]);
+        }
+        buffer.putLong(120, 0); //Reserved
+    }
+
+    /**
+     * Read header.
+     * @return Header, null if buffer doesn't start with a valid header of this version
+     */
+    static RecordHeader read(ByteBuffer buffer){
+        if(buffer.limit() < SIZE || buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION
+                || buffer.getShort(8) != FlightRecorder.FRAME_SIZE){
+            return null;
+        }
+        RecordHeader header = new RecordHeader();
+        header.accelConfig = buffer.get(28);
+        header.gyroConfig = buffer.get(29);
+        header.magScale = buffer.get(30);
+        header.hasMag = (buffer.get(31) & 0x01) != 0;
+        header.accelResolution = buffer.getDouble(32);
+        header.gyroResolution = buffer.getDouble(40);
+        header.magResolution = buffer.getDouble(48);
+        for(int i = 0; i < 3; ++i){
+            header.magScaling[i] = buffer.getDouble(56 + i * 8);
+            header.gyroOffset[i] = buffer.getInt(80 + i * 4);
+            header.magBias[i] = buffer.getDouble(96 + i * 8);
+        }
+        return header;
+    }
+}
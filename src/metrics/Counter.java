@@ -0,0 +1,37 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free event counter.
+ */
+public class Counter implements CounterMXBean {
+    private final String name;
+    private final LongAdder count = new LongAdder();
+
+    public Counter(String name){
+        this.name = name;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public void add(long n){
+        count.add(n);
+    }
+
+    public void increment(){
+        count.increment();
+    }
+
+    @Override
+    public long getCount(){
+        return count.sum();
+    }
+
+    @Override
+    public void reset(){
+        count.reset();
+    }
+}
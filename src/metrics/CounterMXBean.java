@@ -0,0 +1,10 @@
+package metrics;
+
+/**
+ * JMX view of a {@link Counter}.
+ */
+public interface CounterMXBean {
+    public long getCount();
+
+    public void reset();
+}
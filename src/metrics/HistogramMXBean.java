@@ -0,0 +1,20 @@
+package metrics;
+
+/**
+ * JMX view of a {@link LatencyHistogram}, values are in ns.
+ */
+public interface HistogramMXBean {
+    public long getCount();
+
+    public double getMean();
+
+    public long getMax();
+
+    public long getP50();
+
+    public long getP99();
+
+    public long getP999();
+
+    public void reset();
+}
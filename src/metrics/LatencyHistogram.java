@@ -0,0 +1,138 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies (ns) with log-linear buckets like HdrHistogram:
+ * every power of two is split into {@link #SUB_BUCKETS} buckets, so any value is kept within ~3%.
+ * Recording is a few atomic adds, safe from any number of threads and never allocates.
+ */
+public class LatencyHistogram implements HistogramMXBean {
+    private static final int SUB_BITS = 5;
+    /** Buckets of every power of two */
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param name Name of metric (e.g. i2c_transaction_ns)
+     */
+    public LatencyHistogram(String name){
+        this.name = name;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    /**
+     * Record a value, negative value is recorded as 0.
+     * @param value Latency (ns)
+     */
+    public void record(long value){
+        if(value < 0){
+            value = 0;
+        }
+        counts.getAndIncrement(indexOf(value));
+        count.increment();
+        sum.add(value);
+        long current = max.get();
+        while(value > current && !max.compareAndSet(current, value)){
+            current = max.get();
+        }
+    }
+
+    static int indexOf(long value){
+        if(value < SUB_BUCKETS){
+            return (int)value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int)((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return Highest value of a bucket
+     */
+    static long highestOf(int index){
+        if(index < SUB_BUCKETS){
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    @Override
+    public long getCount(){
+        return count.sum();
+    }
+
+    @Override
+    public double getMean(){
+        long n = count.sum();
+        return n == 0 ? 0 : (double)sum.sum() / n;
+    }
+
+    @Override
+    public long getMax(){
+        return max.get();
+    }
+
+    /**
+     * Value at a percentile, upper bound of the bucket which holds it (never above max).
+     * Counts are not a consistent snapshot while recording, it is good enough for monitoring.
+     * @param percentile 0 ~ 100
+     * @return           Value (ns)
+     */
+    public long getValueAtPercentile(double percentile){
+        long total = 0;
+        for(int i = 0; i < BUCKETS; ++i){
+            total += counts.get(i);
+        }
+        if(total == 0){
+            return 0;
+        }
+        long target = Math.max(1, (long)Math.ceil(total * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; ++i){
+            seen += counts.get(i);
+            if(seen >= target){
+                return Math.min(highestOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public long getP50(){
+        return getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getP99(){
+        return getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getP999(){
+        return getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public void reset(){
+        for(int i = 0; i < BUCKETS; ++i){
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+}
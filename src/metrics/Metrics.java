@@ -0,0 +1,117 @@
+package metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Metrics of hot paths. Enabled by system property -Dphilae.metrics=true,
+ * Main then serves them on -Dphilae.metrics.port (9100 by default) and registers them as MBeans.
+ * {@link #ENABLED} is a static final constant, so JIT drops the guarded code when it is off.
+ * Instrumented code should always check it first: if(Metrics.ENABLED){ ... }
+ */
+public final class Metrics {
+    public static final boolean ENABLED = Boolean.getBoolean("philae.metrics");
+
+    /** Time of one bus transaction (ns) */
+    public static final LatencyHistogram I2C_TRANSACTION = new LatencyHistogram("i2c_transaction_ns");
+    /** Time between two iterations of AHRS update loop (ns) */
+    public static final LatencyHistogram LOOP_PERIOD = new LatencyHistogram("loop_period_ns");
+    /** Age of a sample when it is fused, from the start of its read (ns), live sensors only */
+    public static final LatencyHistogram SAMPLE_AGE = new LatencyHistogram("sample_age_ns");
+    /** Iterations of AHRS update loop which took longer than a period */
+    public static final Counter LOOP_OVERRUNS = new Counter("loop_overruns");
+    /** Failed bus transactions */
+    public static final Counter I2C_ERRORS = new Counter("i2c_errors");
+
+    private static final List<LatencyHistogram> HISTOGRAMS =
+            Collections.unmodifiableList(Arrays.asList(I2C_TRANSACTION, LOOP_PERIOD, SAMPLE_AGE));
+    private static final List<Counter> COUNTERS =
+            Collections.unmodifiableList(Arrays.asList(LOOP_OVERRUNS, I2C_ERRORS));
+
+    /** Other metrics in plain text, e.g. bus utilisation */
+    private static final List<Source> SOURCES = new CopyOnWriteArrayList<>();
+
+    private static boolean registered = false;
+
+    /**
+     * Metrics which aren't fixed at start, they add themselves to plain text output.
+     */
+    public interface Source {
+        /**
+         * Plain text of metrics, one value per line.
+         * @param builder Destination
+         */
+        void format(StringBuilder builder);
+    }
+
+    private Metrics(){}
+
+    public static List<LatencyHistogram> getHistograms(){
+        return HISTOGRAMS;
+    }
+
+    public static List<Counter> getCounters(){
+        return COUNTERS;
+    }
+
+    /**
+     * Add metrics to plain text output, a source is only added once.
+     * @param source Source
+     */
+    public static void addSource(Source source){
+        if(!SOURCES.contains(source)){
+            SOURCES.add(source);
+        }
+    }
+
+    /**
+     * Register every metric to platform MBean server, as philae:type=Histogram|Counter,name=...
+     * Only registers once.
+     */
+    public static synchronized void registerMBeans(){
+        if(registered){
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for(LatencyHistogram histogram : HISTOGRAMS){
+                server.registerMBean(histogram, new ObjectName("philae:type=Histogram,name=" + histogram.getName()));
+            }
+            for(Counter counter : COUNTERS){
+                server.registerMBean(counter, new ObjectName("philae:type=Counter,name=" + counter.getName()));
+            }
+            registered = true;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Plain text of every metric, one value per line (name{quantile="0.99"} value).
+     * @param builder Destination
+     */
+    public static void format(StringBuilder builder){
+        for(LatencyHistogram histogram : HISTOGRAMS){
+            String name = histogram.getName();
+            builder.append(name).append("_count ").append(histogram.getCount()).append('\n');
+            builder.append(name).append("_mean ").append(String.format(Locale.ROOT, "%.1f", histogram.getMean())).append('\n');
+            builder.append(name).append("_max ").append(histogram.getMax()).append('\n');
+            builder.append(name).append("{quantile=\"0.5\"} ").append(histogram.getP50()).append('\n');
+            builder.append(name).append("{quantile=\"0.99\"} ").append(histogram.getP99()).append('\n');
+            builder.append(name).append("{quantile=\"0.999\"} ").append(histogram.getP999()).append('\n');
+        }
+        for(Counter counter : COUNTERS){
+            builder.append(counter.getName()).append(' ').append(counter.getCount()).append('\n');
+        }
+        for(Source source : SOURCES){
+            source.format(builder);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Plain text metrics on http://127.0.0.1:port/metrics, only reachable from localhost.
+ */
+public class MetricsServer {
+    private final HttpServer server;
+
+    /**
+     * @param port Port, 0 for any free port
+     */
+    public MetricsServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", new Handler());
+    }
+
+    /**
+     * Start serving on its own dispatcher thread.
+     */
+    public void start(){
+        server.start();
+    }
+
+    public void stop(){
+        server.stop(0);
+    }
+
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    private static class Handler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            StringBuilder builder = new StringBuilder(1024);
+            if(!Metrics.ENABLED){
+                builder.append("# metrics disabled, run with -Dphilae.metrics=true\n");
+            }
+            Metrics.format(builder);
+            byte[] body = builder.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package metrics;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Diagnostic output off the sampling thread. Hot loops only copy a few numbers into a preallocated slot
+ * (no allocation, no lock, never blocks), formatting and writing are done by a background thread.
+ * When the queue is full the record is dropped and counted instead of waiting.
+ * Queue is a bounded multi-producer ring, every slot has a sequence (like Vyukov's bounded queue).
+ */
+public class Telemetry {
+    /** Max values of a record */
+    public static final int MAX_VALUES = 4;
+    /** How long writer thread sleeps when queue is empty (ns) */
+    private static final long POLL_INTERVAL = 10000000L;
+
+    private static Telemetry defaultTelemetry = null;
+
+    private final PrintStream out;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final Channel[] channels;
+    private final double[] values;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * @param out      Destination
+     * @param capacity Records which could wait, rounded up to power of two
+     */
+    public Telemetry(PrintStream out, int capacity){
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.out = out;
+        this.mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; ++i){
+            sequences.set(i, i);
+        }
+        channels = new Channel[size];
+        values = new double[size * MAX_VALUES];
+        writer = new Thread(new Writer(), "telemetry");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    /**
+     * Shared telemetry on System.out, created at first call.
+     */
+    public static synchronized Telemetry getDefault(){
+        if(defaultTelemetry == null){
+            defaultTelemetry = new Telemetry(System.out, 1024);
+        }
+        return defaultTelemetry;
+    }
+
+    /**
+     * Channel which writes every record.
+     * @param format Format of a record, values are passed as double (e.g. %f, %.0f)
+     */
+    public Channel channel(String format){
+        return new Channel(format, 1, 0);
+    }
+
+    /**
+     * @param format      Format of a record, values are passed as double (e.g. %f, %.0f)
+     * @param decimation  Only every n-th offered record is kept
+     * @param minInterval Min time between two kept records (ns), 0 for no limit
+     */
+    public Channel channel(String format, int decimation, long minInterval){
+        return new Channel(format, decimation, minInterval);
+    }
+
+    /**
+     * Getter for records dropped because queue was full.
+     * @return Dropped records
+     */
+    public long getDroppedCount(){
+        return dropped.get();
+    }
+
+    /**
+     * Stop writer thread after writing waiting records.
+     */
+    public void close(){
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean enqueue(Channel channel, double v0, double v1, double v2, double v3){
+        long position = tail.get();
+        while(true){
+            int slot = (int)(position & mask);
+            long difference = sequences.get(slot) - position;
+            if(difference == 0){
+                if(tail.compareAndSet(position, position + 1)){
+                    break;
+                }
+            }else if(difference < 0){
+                dropped.incrementAndGet();
+                return false;
+            }
+            position = tail.get();
+        }
+        int slot = (int)(position & mask);
+        int base = slot * MAX_VALUES;
+        channels[slot] = channel;
+        values[base] = v0;
+        values[base + 1] = v1;
+        values[base + 2] = v2;
+        values[base + 3] = v3;
+        sequences.lazySet(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Write waiting records, only called by writer thread.
+     * @return How many records were written
+     */
+    private int drain(){
+        int written = 0;
+        Object[] arguments = new Object[MAX_VALUES];
+        while(true){
+            int slot = (int)(head & mask);
+            if(sequences.get(slot) != head + 1){
+                break;
+            }
+            Channel channel = channels[slot];
+            int base = slot * MAX_VALUES;
+            for(int i = 0; i < MAX_VALUES; ++i){
+                arguments[i] = values[base + i];
+            }
+            channels[slot] = null;
+            sequences.lazySet(slot, head + mask + 1);
+            ++head;
+            out.println(String.format(Locale.ROOT, channel.format, arguments));
+            ++written;
+        }
+        if(written > 0){
+            out.flush();
+        }
+        return written;
+    }
+
+    private class Writer implements Runnable {
+        @Override
+        public void run() {
+            while(running){
+                if(drain() == 0){
+                    LockSupport.parkNanos(POLL_INTERVAL);
+                }
+            }
+            drain();
+        }
+    }
+
+    /**
+     * Kind of record with its own format, decimation and rate limit.
+     * Should be offered by one thread (decimation state is not shared safely).
+     */
+    public class Channel {
+        private final String format;
+        private final int decimation;
+        private final long minInterval;
+        private int skipped = 0;
+        private long lastTime = 0;
+        private boolean first = true;
+
+        private Channel(String format, int decimation, long minInterval){
+            this.format = format;
+            this.decimation = Math.max(1, decimation);
+            this.minInterval = Math.max(0, minInterval);
+        }
+
+        public boolean offer(double v0){
+            return offer(v0, 0, 0, 0);
+        }
+
+        public boolean offer(double v0, double v1, double v2){
+            return offer(v0, v1, v2, 0);
+        }
+
+        /**
+         * @return Whether record was queued (false if decimated, rate limited or queue was full)
+         */
+        public boolean offer(double v0, double v1, double v2, double v3){
+            if(++skipped < decimation){
+                return false;
+            }
+            skipped = 0;
+            if(minInterval > 0){
+                long now = System.nanoTime();
+                if(!first && now - lastTime < minInterval){
+                    return false;
+                }
+                first = false;
+                lastTime = now;
+            }
+            return enqueue(this, v0, v1, v2, v3);
+        }
+
+        /**
+         * Offer values of an int array, at most {@link #MAX_VALUES}.
+         */
+        public boolean offer(int[] data){
+            return offer(
+                    data.length > 0 ? data[0] : 0, data.length > 1 ? data[1] : 0,
+                    data.length > 2 ? data[2] : 0, data.length > 3 ? data[3] : 0);
+        }
+
+        /**
+         * Offer values of a double array, at most {@link #MAX_VALUES}.
+         */
+        public boolean offer(double[] data){
+            return offer(
+                    data.length > 0 ? data[0] : 0, data.length > 1 ? data[1] : 0,
+                    data.length > 2 ? data[2] : 0, data.length > 3 ? data[3] : 0);
+        }
+    }
+}
@@ -1,27 +1,68 @@
 package module;
 
 import device.NineDOF;
-import module.tool.Timer;
+import metrics.Metrics;
+import metrics.Telemetry;
+import module.fusion.FusionFilter;
+import module.fusion.MadgwickFilter;
+import module.tool.LoopScheduler;
+
+import java.util.concurrent.locks.StampedLock;
 
 public class AHRS {
     NineDOF sensor;
-    Timer timer = new Timer();
-    private double yaw = 0, roll = 0, pitch = 0;
-    private double x, y, z, norm;
+    FusionFilter filter;
+    /** Time stamp of last fused sample, -1 before first sample */
+    private long lastTimestamp = -1;
+    /** Guards published pose, writer never waits for readers (readers only use optimistic reads) */
+    private final StampedLock poseLock = new StampedLock();
+    /** Published pose */
+    private double pose0 = 1, pose1 = 0, pose2 = 0, pose3 = 0;
+    private long poseTimestamp = 0;
+    private long poseSequence = 0;
+    /** Where update thread reports angles, 10 records per second by default */
+    private volatile Telemetry.Channel telemetry =
+            Telemetry.getDefault().channel("yaw= %f, roll= %f, pitch= %f", 1, 100000000L);
+    /** Buffer of filter output */
+    private final double[] quaternion = new double[4];
+
     public AHRS(NineDOF sensor){
+        this(sensor, new MadgwickFilter());
+    }
+
+    /**
+     * @param sensor Sensor
+     * @param filter Fusion filter (e.g. {@link MadgwickFilter}, {@link module.fusion.MahonyFilter})
+     */
+    public AHRS(NineDOF sensor, FusionFilter filter){
         this.sensor = sensor;
+        this.filter = filter;
     }
+
     public void startUpdate(){
         Thread update = new Thread(new Update());
         update.start();
     }
+
+    /**
+     * Set where update thread reports angles (yaw, roll, pitch), e.g. with another decimation.
+     * @param telemetry Channel of 3 values, null to disable
+     */
+    public void setTelemetry(Telemetry.Channel telemetry){
+        this.telemetry = telemetry;
+    }
+
+    public FusionFilter getFilter(){
+        return filter;
+    }
+
     /**
      * Getter for gyro yaw value (position)
      * on)
      * @return Angles of z axis
      */
     public double getRawYaw(){
-        return yaw;
+        return getOrientation().getYaw();
     }
 
     /**
@@ -29,7 +70,7 @@ public class AHRS {
      * @return Angles of y axis
      */
     public double getRawRoll(){
-        return roll;
+        return getOrientation().getRoll();
     }
 
     /**
@@ -37,7 +78,81 @@ public class AHRS {
      * @return Angles of x axis
      */
     public double getRawPitch(){
-        return pitch;
+        return getOrientation().getPitch();
+    }
+
+    /**
+     * Snapshot of the latest update, safe to call from any thread.
+     * @return New snapshot
+     */
+    public Orientation getOrientation(){
+        return getOrientation(new Orientation());
+    }
+
+    /**
+     * Copy the latest update into caller's snapshot, safe to call from any thread.
+     * Never blocks the update thread, retries if an update was published during the copy.
+     * @param out Destination
+     * @return    out
+     */
+    public Orientation getOrientation(Orientation out){
+        while(true){
+            long stamp = poseLock.tryOptimisticRead();
+            out.quaternion[0] = pose0;
+            out.quaternion[1] = pose1;
+            out.quaternion[2] = pose2;
+            out.quaternion[3] = pose3;
+            out.timestamp = poseTimestamp;
+            out.sequence = poseSequence;
+            if(stamp != 0 && poseLock.validate(stamp)){
+                return out;
+            }
+            Thread.yield();
+        }
+    }
+
+    private void publish(long timestamp){
+        filter.getQuaternion(quaternion);
+        long stamp = poseLock.writeLock();
+        pose0 = quaternion[0];
+        pose1 = quaternion[1];
+        pose2 = quaternion[2];
+        pose3 = quaternion[3];
+        poseTimestamp = timestamp;
+        ++poseSequence;
+        poseLock.unlockWrite(stamp);
+    }
+
+    /**
+     * Read a sample from sensor and fuse it, time step comes from sample time stamps.
+     */
+    public void update(){
+        sensor.updateMotion();
+        long timestamp = sensor.getSampleTimestamp();
+        if(Metrics.ENABLED && sensor.isLive()){
+            Metrics.SAMPLE_AGE.record(System.nanoTime() - timestamp);
+        }
+        double deltaT = (lastTimestamp < 0) ? 0 : (timestamp - lastTimestamp) * 1e-9;
+        lastTimestamp = timestamp;
+
+        int[] gyro = sensor.getGyroData();
+        int[] accel = sensor.getAccelData();
+        double gyroRes = Math.toRadians(sensor.getGyroResolution());
+        double accelRes = sensor.getAccelResolution();
+        double gx = gyro[0] * gyroRes, gy = gyro[1] * gyroRes, gz = gyro[2] * gyroRes;
+        double ax = accel[0] * accelRes, ay = accel[1] * accelRes, az = accel[2] * accelRes;
+
+        if(sensor.hasMagnetometer()){
+            int[] mag = sensor.getMagData();
+            //Axes of AK8963: x is y of accel, y is x of accel, z is -z of accel
+            double mx = mag[1] * sensor.getMagResolution(1);
+            double my = mag[0] * sensor.getMagResolution(0);
+            double mz = -mag[2] * sensor.getMagResolution(2);
+            filter.update(gx, gy, gz, ax, ay, az, mx, my, mz, deltaT);
+        }else{
+            filter.updateImu(gx, gy, gz, ax, ay, az, deltaT);
+        }
+        publish(timestamp);
     }
 
     /**
@@ -46,25 +161,29 @@ public class AHRS {
     private class Update implements Runnable{
         @Override
         public void run() {
-            double deltaT;
+            LoopScheduler scheduler = LoopScheduler.ofRate(sensor.getGyroSampleRate());
+            Orientation orientation = new Orientation();
+            long lastIteration = -1;
+            long lastOverruns = 0;
             while(!Thread.interrupted()) {
-                deltaT = timer.getPass() * timer.getResolution();
-                sensor.updateAccelerometer();
-                sensor.updateGyroscope();
-                sensor.updateMagnetometer();
-
-                x = sensor.getAccelData()[0] * sensor.getAccelResolution();
-                y = sensor.getAccelData()[1] * sensor.getAccelResolution();
-                z = sensor.getAccelData()[2] * sensor.getAccelResolution();
-                norm = Math.sqrt(Math.pow(x, 2) + Math.pow(y, 2) + Math.pow(z, 2));
-                System.out.printf("x= %f, y= %f, z= %f, norm= %f", x, y, z, norm);
-                /*
-                pitch += sensor.getGyro_x() * deltaT * sensor.getGyroResolution();
-                roll  += sensor.getGyro_y() * deltaT * sensor.getGyroResolution();
-                yaw   += sensor.getGyro_z() * deltaT * sensor.getGyroResolution();
-                System.out.printf("yaw= %f, roll= %f, pitch= %f\n", yaw, roll, pitch);
-                timer.spinLock(1000000000 / sensor.getGyroSampleRate()/8);
-                 */
+                if(Metrics.ENABLED){
+                    long now = System.nanoTime();
+                    if(lastIteration >= 0){
+                        Metrics.LOOP_PERIOD.record(now - lastIteration);
+                    }
+                    lastIteration = now;
+                }
+                update();
+                Telemetry.Channel telemetry = AHRS.this.telemetry;
+                if(telemetry != null){
+                    getOrientation(orientation);
+                    telemetry.offer(orientation.getYaw(), orientation.getRoll(), orientation.getPitch());
+                }
+                scheduler.await();
+                if(Metrics.ENABLED && scheduler.getOverrunCount() != lastOverruns){
+                    Metrics.LOOP_OVERRUNS.add(scheduler.getOverrunCount() - lastOverruns);
+                    lastOverruns = scheduler.getOverrunCount();
+                }
             }
         }
     }
@@ -0,0 +1,37 @@
+package module;
+
+import module.fusion.QuaternionFilter;
+
+/**
+ * Consistent snapshot of AHRS output, all fields come from the same update.
+ * Caller could allocate one and reuse it with {@link AHRS#getOrientation(Orientation)}.
+ */
+public class Orientation {
+    /** Quaternion (w, x, y, z) */
+    public final double[] quaternion = {1, 0, 0, 0};
+    /** Time stamp of the fused sample (System.nanoTime) */
+    public long timestamp;
+    /** Count of updates, increases by one for every update */
+    public long sequence;
+
+    /**
+     * @return Angles of z axis (deg)
+     */
+    public double getYaw(){
+        return Math.toDegrees(QuaternionFilter.rotationZ(quaternion[0], quaternion[1], quaternion[2], quaternion[3]));
+    }
+
+    /**
+     * @return Angles of y axis (deg)
+     */
+    public double getRoll(){
+        return Math.toDegrees(QuaternionFilter.rotationY(quaternion[0], quaternion[1], quaternion[2], quaternion[3]));
+    }
+
+    /**
+     * @return Angles of x axis (deg)
+     */
+    public double getPitch(){
+        return Math.toDegrees(QuaternionFilter.rotationX(quaternion[0], quaternion[1], quaternion[2], quaternion[3]));
+    }
+}
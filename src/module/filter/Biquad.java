@@ -0,0 +1,89 @@
+package module.filter;
+
+/**
+ * Design of second order sections (Audio EQ Cookbook, R. Bristow-Johnson).
+ * A section is {b0, b1, b2, a1, a2} normalized by a0:
+ * y[n] = b0 x[n] + b1 x[n-1] + b2 x[n-2] - a1 y[n-1] - a2 y[n-2]
+ */
+public final class Biquad {
+    /** Values of a section */
+    public static final int COEFFICIENTS = 5;
+
+    private Biquad(){}
+
+    /**
+     * Second order low pass.
+     * @param sampleRate Sample rate (Hz)
+     * @param cutoff     Cutoff frequency (Hz), below sampleRate / 2
+     * @param q          Quality factor, 1 / sqrt(2) for Butterworth
+     * @return           Section
+     */
+    public static double[] lowPass(double sampleRate, double cutoff, double q){
+        check(sampleRate, cutoff);
+        double w0 = 2 * Math.PI * cutoff / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        return normalize((1 - cos) / 2, 1 - cos, (1 - cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * Notch (band stop) of a narrow band, e.g. motor or propeller vibration.
+     * @param sampleRate Sample rate (Hz)
+     * @param center     Center frequency (Hz), below sampleRate / 2
+     * @param q          Quality factor, center / bandwidth
+     * @return           Section
+     */
+    public static double[] notch(double sampleRate, double center, double q){
+        check(sampleRate, center);
+        double w0 = 2 * Math.PI * center / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        return normalize(1, -2 * cos, 1, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /**
+     * Butterworth low pass as a cascade of second order sections.
+     * @param order      Even order (2, 4, 6 ...)
+     * @param sampleRate Sample rate (Hz)
+     * @param cutoff     -3 dB frequency (Hz)
+     * @return           order / 2 sections
+     */
+    public static double[][] butterworthLowPass(int order, double sampleRate, double cutoff){
+        if(order < 2 || order % 2 != 0){
+            throw new IllegalArgumentException("Order of Butterworth cascade should be even: " + order);
+        }
+        double[][] sections = new double[order / 2][];
+        for(int k = 0; k < sections.length; ++k){
+            double q = 1 / (2 * Math.sin(Math.PI * (2 * k + 1) / (2 * order)));
+            sections[k] = lowPass(sampleRate, cutoff, q);
+        }
+        return sections;
+    }
+
+    /**
+     * Gain of a section at a frequency.
+     * @param section    Section
+     * @param sampleRate Sample rate (Hz)
+     * @param frequency  Frequency (Hz)
+     * @return           |H(f)|
+     */
+    public static double gain(double[] section, double sampleRate, double frequency){
+        double w = 2 * Math.PI * frequency / sampleRate;
+        double c1 = Math.cos(w), s1 = Math.sin(w), c2 = Math.cos(2 * w), s2 = Math.sin(2 * w);
+        double nr = section[0] + section[1] * c1 + section[2] * c2;
+        double ni = -section[1] * s1 - section[2] * s2;
+        double dr = 1 + section[3] * c1 + section[4] * c2;
+        double di = -section[3] * s1 - section[4] * s2;
+        return Math.sqrt((nr * nr + ni * ni) / (dr * dr + di * di));
+    }
+
+    private static void check(double sampleRate, double frequency){
+        if(frequency <= 0 || frequency >= sampleRate / 2){
+            throw new IllegalArgumentException("Frequency " + frequency + " Hz is out of (0, " + sampleRate / 2 + ") Hz");
+        }
+    }
+
+    private static double[] normalize(double b0, double b1, double b2, double a0, double a1, double a2){
+        return new double[]{b0 / a0, b1 / a0, b2 / a0, a1 / a0, a2 / a0};
+    }
+}
@@ -0,0 +1,99 @@
+package module.filter;
+
+import java.util.Arrays;
+
+/**
+ * Cascade of second order sections applied to every channel of interleaved frames
+ * (frame i, channel c at index i * channels + c), transposed direct form II.
+ * Coefficients are shared by channels, state of every channel and section lives in one primitive array.
+ * Blocks are filtered section by section and channel by channel, so state stays in registers in the inner loop.
+ * Not thread safe, one thread filters.
+ */
+public class BiquadCascade {
+    private final int channels;
+    private final int sections;
+    /** {b0, b1, b2, a1, a2} of every section */
+    private final double[] coefficients;
+    /** {s1, s2} of every channel and section */
+    private final double[] state;
+
+    /**
+     * @param channels Channels of a frame
+     * @param sections Sections, see {@link Biquad}
+     */
+    public BiquadCascade(int channels, double[]... sections){
+        this.channels = channels;
+        this.sections = sections.length;
+        this.coefficients = new double[sections.length * Biquad.COEFFICIENTS];
+        for(int i = 0; i < sections.length; ++i){
+            if(sections[i].length != Biquad.COEFFICIENTS){
+                throw new IllegalArgumentException("Section should have " + Biquad.COEFFICIENTS + " coefficients");
+            }
+            System.arraycopy(sections[i], 0, coefficients, i * Biquad.COEFFICIENTS, Biquad.COEFFICIENTS);
+        }
+        this.state = new double[channels * sections.length * 2];
+    }
+
+    public int getChannels(){
+        return channels;
+    }
+
+    public int getSectionCount(){
+        return sections;
+    }
+
+    /**
+     * Filter frames in place.
+     * @param frames Interleaved frames
+     * @param offset Index of first value
+     * @param count  How many frames
+     */
+    public void process(double[] frames, int offset, int count){
+        if(offset < 0 || offset + count * channels > frames.length){
+            throw new ArrayIndexOutOfBoundsException("Block of " + count + " frames doesn't fit");
+        }
+        for(int section = 0; section < sections; ++section){
+            int k = section * Biquad.COEFFICIENTS;
+            double b0 = coefficients[k], b1 = coefficients[k + 1], b2 = coefficients[k + 2];
+            double a1 = coefficients[k + 3], a2 = coefficients[k + 4];
+            for(int channel = 0; channel < channels; ++channel){
+                int s = (channel * sections + section) * 2;
+                double s1 = state[s], s2 = state[s + 1];
+                int end = offset + count * channels;
+                for(int i = offset + channel; i < end; i += channels){
+                    double x = frames[i];
+                    double y = b0 * x + s1;
+                    s1 = b1 * x - a1 * y + s2;
+                    s2 = b2 * x - a2 * y;
+                    frames[i] = y;
+                }
+                state[s] = s1;
+                state[s + 1] = s2;
+            }
+        }
+    }
+
+    /**
+     * Set state as if every channel had been at a constant value forever, avoids start-up transient.
+     * @param values Value of every channel
+     */
+    public void prime(double[] values){
+        for(int channel = 0; channel < channels; ++channel){
+            double x = values[channel];
+            for(int section = 0; section < sections; ++section){
+                int k = section * Biquad.COEFFICIENTS;
+                double b0 = coefficients[k], b1 = coefficients[k + 1], b2 = coefficients[k + 2];
+                double a1 = coefficients[k + 3], a2 = coefficients[k + 4];
+                double y = x * (b0 + b1 + b2) / (1 + a1 + a2); //DC gain
+                int s = (channel * sections + section) * 2;
+                state[s + 1] = b2 * x - a2 * y;
+                state[s] = b1 * x - a1 * y + state[s + 1];
+                x = y;
+            }
+        }
+    }
+
+    public void reset(){
+        Arrays.fill(state, 0);
+    }
+}
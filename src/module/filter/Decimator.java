@@ -0,0 +1,139 @@
+package module.filter;
+
+import java.util.Arrays;
+
+/**
+ * Decimation of interleaved frames by an integer factor with a linear phase FIR low pass (Blackman windowed sinc).
+ * Works as a polyphase decimator: only every factor-th output is computed, so the cost is taps / factor
+ * multiply-adds per input value instead of taps.
+ * History of every channel is kept twice in a row, so the dot product never wraps around.
+ * Not thread safe, one thread filters.
+ */
+public class Decimator {
+    private final int channels;
+    private final int factor;
+    private final int taps;
+    private final double[] coefficients;
+    /** History of every channel, 2 * taps values each */
+    private final double[] history;
+    private int position = 0;
+    private int phase = 0;
+
+    /**
+     * @param channels Channels of a frame
+     * @param factor   Decimation factor, 1 passes frames through
+     * @param taps     Length of FIR, e.g. 8 * factor + 1
+     * @param cutoff   Cutoff of FIR relative to input rate, below 0.5 / factor (e.g. 0.4 / factor)
+     */
+    public Decimator(int channels, int factor, int taps, double cutoff){
+        if(factor < 1 || taps < 1){
+            throw new IllegalArgumentException("Decimation factor and taps should be positive");
+        }
+        this.channels = channels;
+        this.factor = factor;
+        this.taps = (factor == 1) ? 1 : taps;
+        this.coefficients = (factor == 1) ? new double[]{1} : design(this.taps, cutoff);
+        this.history = new double[channels * this.taps * 2];
+    }
+
+    /**
+     * Decimator with 8 * factor + 1 taps and cutoff at 80 % of output Nyquist frequency.
+     * @param channels Channels of a frame
+     * @param factor   Decimation factor
+     */
+    public Decimator(int channels, int factor){
+        this(channels, factor, 8 * factor + 1, 0.4 / factor);
+    }
+
+    /**
+     * Windowed sinc low pass with unity DC gain.
+     * @param taps   Length
+     * @param cutoff Cutoff relative to sample rate
+     * @return       Coefficients
+     */
+    public static double[] design(int taps, double cutoff){
+        double[] h = new double[taps];
+        double middle = (taps - 1) / 2.0;
+        double sum = 0;
+        for(int i = 0; i < taps; ++i){
+            double t = i - middle;
+            double sinc = (t == 0) ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            double window = (taps == 1) ? 1 : 0.42 - 0.5 * Math.cos(2 * Math.PI * i / (taps - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * i / (taps - 1));
+            h[i] = sinc * window;
+            sum += h[i];
+        }
+        for(int i = 0; i < taps; ++i){
+            h[i] /= sum;
+        }
+        return h;
+    }
+
+    public int getFactor(){
+        return factor;
+    }
+
+    /**
+     * Group delay of FIR (input frames), outputs lag inputs by it.
+     */
+    public double getDelay(){
+        return (taps - 1) / 2.0;
+    }
+
+    /**
+     * Push input frames and compute outputs.
+     * @param in     Interleaved input frames
+     * @param offset Index of first input value
+     * @param count  How many input frames
+     * @param out    Destination of output frames, at least (count / factor + 1) frames
+     * @return       How many frames were written to out
+     */
+    public int process(double[] in, int offset, int count, double[] out){
+        if(offset < 0 || offset + count * channels > in.length){
+            throw new ArrayIndexOutOfBoundsException("Block of " + count + " frames doesn't fit");
+        }
+        double[] h = coefficients;
+        int outputs = 0;
+        for(int i = 0; i < count; ++i){
+            int frame = offset + i * channels;
+            for(int channel = 0; channel < channels; ++channel){
+                int base = channel * taps * 2;
+                double x = in[frame + channel];
+                history[base + position] = x;
+                history[base + position + taps] = x;
+            }
+            position = (position + 1 == taps) ? 0 : position + 1;
+            if(++phase < factor){
+                continue;
+            }
+            phase = 0;
+            //Oldest value is at position, newest at position + taps - 1
+            for(int channel = 0; channel < channels; ++channel){
+                int start = channel * taps * 2 + position;
+                double sum = 0;
+                for(int k = 0; k < taps; ++k){
+                    sum += h[k] * history[start + k];
+                }
+                out[outputs * channels + channel] = sum;
+            }
+            ++outputs;
+        }
+        return outputs;
+    }
+
+    /**
+     * Fill history as if every channel had been at a constant value forever, avoids start-up transient.
+     * @param values Value of every channel
+     */
+    public void prime(double[] values){
+        for(int channel = 0; channel < channels; ++channel){
+            Arrays.fill(history, channel * taps * 2, (channel + 1) * taps * 2, values[channel]);
+        }
+    }
+
+    public void reset(){
+        Arrays.fill(history, 0);
+        position = 0;
+        phase = 0;
+    }
+}
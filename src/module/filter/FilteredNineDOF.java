@@ -0,0 +1,342 @@
+package module.filter;
+
+import device.Mpu9250;
+import device.NineDOF;
+
+/**
+ * Filter and decimation stage between a raw sensor and AHRS.
+ * Gyro and accel of every source sample go through a per-axis {@link BiquadCascade} (low pass, notches)
+ * at source rate, then a {@link Decimator} down to the output rate.
+ * If the source is a {@link Mpu9250} in FIFO mode, every {@link #updateMotion()} drains the FIFO in one block read
+ * and filters every frame, so no sample is lost or read twice whatever the timing of the caller.
+ * Otherwise it reads factor samples from the source and produces one output sample,
+ * so the source should deliver a new sample on every read (data ready driven or replay).
+ * Blocks of frames from elsewhere could be filtered by {@link #process(double[], int, double[])}.
+ * Mag is passed through from the latest source sample, temperature from the latest frame.
+ */
+public class FilteredNineDOF implements NineDOF {
+    /** Channels of a frame, gyro(x, y, z), accel(x, y, z) */
+    public static final int CHANNELS = 6;
+    /** Frames of a full hardware FIFO */
+    private static final int FIFO_FRAMES = Mpu9250.FIFO_SIZE / Mpu9250.FIFO_FRAME_SIZE;
+
+    private final NineDOF sensor;
+    private final int inputRate;
+    private final int outputRate;
+    private final BiquadCascade cascade;
+    private final Decimator decimator;
+    /** Source which is drained through its FIFO when FIFO is enabled, null if source isn't a Mpu9250 */
+    private final Mpu9250 fifo;
+    /** Reusable decoded FIFO frames and one frame of them */
+    private final int[] fifoFrames;
+    private final int[] frameGyro = new int[3];
+    private final int[] frameAccel = new int[3];
+    /** Reusable block of source frames */
+    private final double[] block;
+    /** Reusable output frames of a block */
+    private final double[] output;
+    private final int[] gyro = new int[3];
+    private final int[] accel = new int[3];
+    private final int[] mag = new int[3];
+    private int temperature;
+    private long timestamp;
+    private boolean primed = false;
+
+    /**
+     * @param sensor     Source sensor
+     * @param inputRate  Sample rate of source (Hz)
+     * @param outputRate Sample rate of output (Hz), inputRate should be a multiple of it
+     * @param cascade    Filter of {@link #CHANNELS} channels at input rate, null for decimation only
+     */
+    public FilteredNineDOF(NineDOF sensor, int inputRate, int outputRate, BiquadCascade cascade){
+        if(outputRate <= 0 || inputRate % outputRate != 0){
+            throw new IllegalArgumentException("Input rate " + inputRate + " Hz is not a multiple of output rate " + outputRate + " Hz");
+        }
+        if(cascade != null && cascade.getChannels() != CHANNELS){
+            throw new IllegalArgumentException("Cascade should have " + CHANNELS + " channels");
+        }
+        this.sensor = sensor;
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.cascade = cascade;
+        this.decimator = new Decimator(CHANNELS, inputRate / outputRate);
+        int factor = decimator.getFactor();
+        this.fifo = (sensor instanceof Mpu9250) ? (Mpu9250)sensor : null;
+        this.fifoFrames = (fifo != null) ? new int[FIFO_FRAMES * Mpu9250.FIFO_FRAME_VALUES] : null;
+        int capacity = (fifo != null) ? Math.max(factor, FIFO_FRAMES) : factor;
+        this.block = new double[CHANNELS * capacity];
+        this.output = new double[CHANNELS * (capacity / factor + 1)];
+    }
+
+    /**
+     * Low pass (4th order Butterworth) and notches at source rate, then decimation.
+     * @param sensor     Source sensor
+     * @param outputRate Sample rate of output (Hz)
+     * @param cutoff     Cutoff of low pass (Hz), 0 for none
+     * @param notches    Center of notches (Hz), quality factor 5
+     * @return           Stage
+     */
+    public static FilteredNineDOF lowPass(NineDOF sensor, int outputRate, double cutoff, double... notches){
+        int inputRate = sensor.getGyroSampleRate();
+        int lowPassSections = (cutoff > 0) ? 2 : 0;
+        double[][] sections = new double[lowPassSections + notches.length][];
+        if(cutoff > 0){
+            double[][] butterworth = Biquad.butterworthLowPass(4, inputRate, cutoff);
+            System.arraycopy(butterworth, 0, sections, 0, butterworth.length);
+        }
+        for(int i = 0; i < notches.length; ++i){
+            sections[lowPassSections + i] = Biquad.notch(inputRate, notches[i], 5);
+        }
+        BiquadCascade cascade = (sections.length > 0) ? new BiquadCascade(CHANNELS, sections) : null;
+        return new FilteredNineDOF(sensor, inputRate, outputRate, cascade);
+    }
+
+    /**
+     * Filter MPU-9250 to an output rate and bandwidth.
+     * If no notch is needed and a hardware DLPF of at most cutoff (and at most half of output rate) exists,
+     * DLPF and SMPLRT_DIV are set and the sensor itself is returned, nothing is computed in software.
+     * Otherwise the sensor runs at 1 kHz (DLPF_184HZ) in FIFO mode and a software stage filters and decimates
+     * the drained frames. 8 kHz (DLPF_250HZ) isn't used, the bus can't read every sample at that rate.
+     * @param mpu9250    Sensor
+     * @param outputRate Sample rate of output (Hz), 1000 should be a multiple of it
+     * @param cutoff     Wanted bandwidth (Hz)
+     * @param notches    Center of notches (Hz)
+     * @return           Sensor or software stage
+     */
+    public static NineDOF open(Mpu9250 mpu9250, int outputRate, double cutoff, double... notches){
+        Mpu9250.Dlpf hardware = hardwareFilter(outputRate, cutoff, notches);
+        if(hardware != null){
+            mpu9250.setDigitalLowPass(hardware);
+            mpu9250.setSampleRate(outputRate);
+            return mpu9250;
+        }
+        mpu9250.setDigitalLowPass(Mpu9250.Dlpf.DLPF_184HZ);
+        mpu9250.setSampleRate(1000);
+        mpu9250.enableFifo();
+        //DLPF already limits the band, software low pass only if it is narrower
+        double softwareCutoff = (cutoff < Mpu9250.Dlpf.DLPF_184HZ.getBandwidth()) ? cutoff : 0;
+        return lowPass(mpu9250, outputRate, softwareCutoff, notches);
+    }
+
+    /**
+     * Hardware DLPF which is enough for an output rate and bandwidth.
+     * @return DLPF, null if a software stage is needed
+     */
+    public static Mpu9250.Dlpf hardwareFilter(int outputRate, double cutoff, double... notches){
+        if(notches.length > 0 || outputRate <= 0 || 1000 % outputRate != 0){
+            return null;
+        }
+        Mpu9250.Dlpf best = null;
+        for(Mpu9250.Dlpf dlpf : Mpu9250.Dlpf.values()){
+            if(dlpf.getInternalRate() == 1000 && dlpf.getBandwidth() <= cutoff && dlpf.getBandwidth() <= outputRate / 2.0
+                    && (best == null || dlpf.getBandwidth() > best.getBandwidth())){
+                best = dlpf;
+            }
+        }
+        return best;
+    }
+
+    public NineDOF getSensor(){
+        return sensor;
+    }
+
+    public int getInputRate(){
+        return inputRate;
+    }
+
+    /**
+     * Group delay of decimation FIR (s), Butterworth sections add a little more near cutoff.
+     */
+    public double getDelay(){
+        return decimator.getDelay() / inputRate;
+    }
+
+    /**
+     * Filter and decimate a block of frames at input rate, state continues between blocks.
+     * @param frames Interleaved frames of {@link #CHANNELS} values (gyro, accel), filtered in place
+     * @param count  How many frames
+     * @param out    Destination of output frames, at least (count / factor + 1) frames
+     * @return       How many frames were written to out
+     */
+    public int process(double[] frames, int count, double[] out){
+        if(!primed && count > 0){
+            prime(frames);
+        }
+        if(cascade != null){
+            cascade.process(frames, 0, count);
+        }
+        return decimator.process(frames, 0, count, out);
+    }
+
+    /**
+     * Start from the first frame as steady state, so output doesn't ramp up from zero.
+     */
+    private void prime(double[] frames){
+        double[] first = new double[CHANNELS];
+        System.arraycopy(frames, 0, first, 0, CHANNELS);
+        if(cascade != null){
+            cascade.prime(first);
+        }
+        decimator.prime(first);
+        primed = true;
+    }
+
+    /**
+     * Read a block of source samples and produce one output sample, or drain FIFO of the source.
+     */
+    @Override
+    public void updateMotion() {
+        if(fifo != null && fifo.isFifoEnabled()){
+            drainFifo();
+            return;
+        }
+        int factor = decimator.getFactor();
+        for(int i = 0; i < factor; ++i){
+            sensor.updateMotion();
+            int[] g = sensor.getGyroData();
+            int[] a = sensor.getAccelData();
+            int base = i * CHANNELS;
+            block[base]     = g[0];
+            block[base + 1] = g[1];
+            block[base + 2] = g[2];
+            block[base + 3] = a[0];
+            block[base + 4] = a[1];
+            block[base + 5] = a[2];
+        }
+        int outputs = process(block, factor, output);
+        if(outputs == 0){
+            return;
+        }
+        temperature = sensor.getTemperatureData();
+        publish(outputs, sensor.getSampleTimestamp());
+    }
+
+    /**
+     * Filter every frame waiting in FIFO, frames get the software corrections of {@link Mpu9250#updateMotion()}.
+     * Time stamp is the start of the drain, the newest frame was sampled just before it.
+     */
+    private void drainFifo(){
+        long start = System.nanoTime();
+        int count = fifo.readFifo(fifoFrames);
+        for(int i = 0; i < count; ++i){
+            int src = i * Mpu9250.FIFO_FRAME_VALUES;
+            for(int k = 0; k < 3; ++k){
+                frameAccel[k] = fifoFrames[src + k];
+                frameGyro[k] = fifoFrames[src + 4 + k];
+            }
+            temperature = fifoFrames[src + 3];
+            fifo.correct(frameGyro, frameAccel, temperature);
+            int base = i * CHANNELS;
+            block[base]     = frameGyro[0];
+            block[base + 1] = frameGyro[1];
+            block[base + 2] = frameGyro[2];
+            block[base + 3] = frameAccel[0];
+            block[base + 4] = frameAccel[1];
+            block[base + 5] = frameAccel[2];
+        }
+        int outputs = process(block, count, output);
+        if(outputs == 0){
+            return;
+        }
+        if(fifo.hasMagnetometer()){
+            fifo.updateMagnetometer();
+        }
+        publish(outputs, start);
+    }
+
+    /**
+     * Latest of output frames becomes the sample.
+     */
+    private void publish(int outputs, long timestamp){
+        int base = (outputs - 1) * CHANNELS;
+        for(int i = 0; i < 3; ++i){
+            gyro[i] = (int)Math.round(output[base + i]);
+            accel[i] = (int)Math.round(output[base + 3 + i]);
+        }
+        if(sensor.hasMagnetometer()){
+            System.arraycopy(sensor.getMagData(), 0, mag, 0, 3);
+        }
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public void updateGyroscope() {
+        updateMotion();
+    }
+
+    @Override
+    public void updateAccelerometer() {
+        updateMotion();
+    }
+
+    @Override
+    public void updateMagnetometer() {
+        sensor.updateMagnetometer();
+        System.arraycopy(sensor.getMagData(), 0, mag, 0, 3);
+    }
+
+    @Override
+    public int[] getGyroData() {
+        return gyro;
+    }
+
+    @Override
+    public int[] getAccelData() {
+        return accel;
+    }
+
+    @Override
+    public int[] getMagData() {
+        return mag;
+    }
+
+    @Override
+    public boolean hasMagnetometer() {
+        return sensor.hasMagnetometer();
+    }
+
+    @Override
+    public long getSampleTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public int getTemperatureData() {
+        return temperature;
+    }
+
+    @Override
+    public double getTemperature() {
+        return temperature / 333.87 + 21.0;
+    }
+
+    @Override
+    public int getGyroSampleRate() {
+        return outputRate;
+    }
+
+    @Override
+    public double getGyroResolution() {
+        return sensor.getGyroResolution();
+    }
+
+    @Override
+    public double getAccelResolution() {
+        return sensor.getAccelResolution();
+    }
+
+    @Override
+    public double getMagResolution(int axis) {
+        return sensor.getMagResolution(axis);
+    }
+
+    @Override
+    public long getErrorCount() {
+        return sensor.getErrorCount();
+    }
+
+    @Override
+    public boolean isLive() {
+        return sensor.isLive();
+    }
+}
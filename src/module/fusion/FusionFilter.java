@@ -0,0 +1,51 @@
+package module.fusion;
+
+/**
+ * Orientation filter, fuse gyro, accel and optional mag into a quaternion.
+ * Units of accel and mag don't matter (they are normalized), gyro should be rad / sec.
+ */
+public interface FusionFilter {
+    /**
+     * Update with 9 DOF.
+     * @param dt Time since last update (sec)
+     */
+    public void update(double gx, double gy, double gz,
+                       double ax, double ay, double az,
+                       double mx, double my, double mz, double dt);
+
+    /**
+     * Update with gyro and accel only, yaw is not corrected.
+     * @param dt Time since last update (sec)
+     */
+    public void updateImu(double gx, double gy, double gz,
+                          double ax, double ay, double az, double dt);
+
+    /**
+     * Copy quaternion (w, x, y, z).
+     * @param q Destination, at least 4 elements
+     */
+    public void getQuaternion(double[] q);
+
+    /**
+     * Rotation about x axis, derived from quaternion on every call.
+     * @return Angle (rad)
+     */
+    public double getRotationX();
+
+    /**
+     * Rotation about y axis, derived from quaternion on every call.
+     * @return Angle (rad)
+     */
+    public double getRotationY();
+
+    /**
+     * Rotation about z axis, derived from quaternion on every call.
+     * @return Angle (rad)
+     */
+    public double getRotationZ();
+
+    /**
+     * Back to identity orientation.
+     */
+    public void reset();
+}
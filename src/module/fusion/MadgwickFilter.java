@@ -0,0 +1,138 @@
+package module.fusion;
+
+/**
+ * Madgwick gradient descent orientation filter.
+ * S. Madgwick, "An efficient orientation filter for inertial and inertial/magnetic sensor arrays", 2010.
+ */
+public class MadgwickFilter extends QuaternionFilter {
+    /** Gain of gradient descent step */
+    private double beta;
+
+    public MadgwickFilter(){
+        this(0.1);
+    }
+
+    /**
+     * @param beta Filter gain, larger trusts accel / mag more
+     */
+    public MadgwickFilter(double beta){
+        this.beta = beta;
+    }
+
+    public double getBeta(){
+        return beta;
+    }
+
+    public void setBeta(double beta){
+        this.beta = beta;
+    }
+
+    @Override
+    public void update(double gx, double gy, double gz,
+                       double ax, double ay, double az,
+                       double mx, double my, double mz, double dt){
+        if(mx == 0 && my == 0 && mz == 0){
+            updateImu(gx, gy, gz, ax, ay, az, dt);
+            return;
+        }
+        //Rate of change of quaternion from gyroscope
+        double qDot1 = 0.5 * (-q1 * gx - q2 * gy - q3 * gz);
+        double qDot2 = 0.5 * (q0 * gx + q2 * gz - q3 * gy);
+        double qDot3 = 0.5 * (q0 * gy - q1 * gz + q3 * gx);
+        double qDot4 = 0.5 * (q0 * gz + q1 * gy - q2 * gx);
+
+        if(!(ax == 0 && ay == 0 && az == 0)){
+            double recipNorm = 1 / Math.sqrt(ax * ax + ay * ay + az * az);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+            recipNorm = 1 / Math.sqrt(mx * mx + my * my + mz * mz);
+            mx *= recipNorm;
+            my *= recipNorm;
+            mz *= recipNorm;
+
+            double _2q0mx = 2 * q0 * mx;
+            double _2q0my = 2 * q0 * my;
+            double _2q0mz = 2 * q0 * mz;
+            double _2q1mx = 2 * q1 * mx;
+            double _2q0 = 2 * q0, _2q1 = 2 * q1, _2q2 = 2 * q2, _2q3 = 2 * q3;
+            double _2q0q2 = 2 * q0 * q2;
+            double _2q2q3 = 2 * q2 * q3;
+            double q0q0 = q0 * q0, q0q1 = q0 * q1, q0q2 = q0 * q2, q0q3 = q0 * q3;
+            double q1q1 = q1 * q1, q1q2 = q1 * q2, q1q3 = q1 * q3;
+            double q2q2 = q2 * q2, q2q3 = q2 * q3, q3q3 = q3 * q3;
+
+            //Reference direction of earth's magnetic field
+            double hx = mx * q0q0 - _2q0my * q3 + _2q0mz * q2 + mx * q1q1 + _2q1 * my * q2 + _2q1 * mz * q3 - mx * q2q2 - mx * q3q3;
+            double hy = _2q0mx * q3 + my * q0q0 - _2q0mz * q1 + _2q1mx * q2 - my * q1q1 + my * q2q2 + _2q2 * mz * q3 - my * q3q3;
+            double _2bx = Math.sqrt(hx * hx + hy * hy);
+            double _2bz = -_2q0mx * q2 + _2q0my * q1 + mz * q0q0 + _2q1mx * q3 - mz * q1q1 + _2q2 * my * q3 - mz * q2q2 + mz * q3q3;
+            double _4bx = 2 * _2bx;
+            double _4bz = 2 * _2bz;
+
+            //Gradient descent corrective step
+            double fx = 2 * q1q3 - _2q0q2 - ax;
+            double fy = 2 * q0q1 + _2q2q3 - ay;
+            double fz = 1 - 2 * q1q1 - 2 * q2q2 - az;
+            double fmx = _2bx * (0.5 - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx;
+            double fmy = _2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my;
+            double fmz = _2bx * (q0q2 + q1q3) + _2bz * (0.5 - q1q1 - q2q2) - mz;
+            double s0 = -_2q2 * fx + _2q1 * fy - _2bz * q2 * fmx + (-_2bx * q3 + _2bz * q1) * fmy + _2bx * q2 * fmz;
+            double s1 = _2q3 * fx + _2q0 * fy - 4 * q1 * fz + _2bz * q3 * fmx + (_2bx * q2 + _2bz * q0) * fmy + (_2bx * q3 - _4bz * q1) * fmz;
+            double s2 = -_2q0 * fx + _2q3 * fy - 4 * q2 * fz + (-_4bx * q2 - _2bz * q0) * fmx + (_2bx * q1 + _2bz * q3) * fmy + (_2bx * q0 - _4bz * q2) * fmz;
+            double s3 = _2q1 * fx + _2q2 * fy + (-_4bx * q3 + _2bz * q1) * fmx + (-_2bx * q0 + _2bz * q2) * fmy + _2bx * q1 * fmz;
+            recipNorm = 1 / Math.sqrt(s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3);
+
+            qDot1 -= beta * s0 * recipNorm;
+            qDot2 -= beta * s1 * recipNorm;
+            qDot3 -= beta * s2 * recipNorm;
+            qDot4 -= beta * s3 * recipNorm;
+        }
+
+        q0 += qDot1 * dt;
+        q1 += qDot2 * dt;
+        q2 += qDot3 * dt;
+        q3 += qDot4 * dt;
+        normalize();
+    }
+
+    @Override
+    public void updateImu(double gx, double gy, double gz,
+                          double ax, double ay, double az, double dt){
+        double qDot1 = 0.5 * (-q1 * gx - q2 * gy - q3 * gz);
+        double qDot2 = 0.5 * (q0 * gx + q2 * gz - q3 * gy);
+        double qDot3 = 0.5 * (q0 * gy - q1 * gz + q3 * gx);
+        double qDot4 = 0.5 * (q0 * gz + q1 * gy - q2 * gx);
+
+        if(!(ax == 0 && ay == 0 && az == 0)){
+            double recipNorm = 1 / Math.sqrt(ax * ax + ay * ay + az * az);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+
+            double _2q0 = 2 * q0, _2q1 = 2 * q1, _2q2 = 2 * q2, _2q3 = 2 * q3;
+            double _4q0 = 4 * q0, _4q1 = 4 * q1, _4q2 = 4 * q2;
+            double _8q1 = 8 * q1, _8q2 = 8 * q2;
+            double q0q0 = q0 * q0, q1q1 = q1 * q1, q2q2 = q2 * q2, q3q3 = q3 * q3;
+
+            double s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+            double s1 = _4q1 * q3q3 - _2q3 * ax + 4 * q0q0 * q1 - _2q0 * ay - _4q1 + _8q1 * q1q1 + _8q1 * q2q2 + _4q1 * az;
+            double s2 = 4 * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2 + _8q2 * q1q1 + _8q2 * q2q2 + _4q2 * az;
+            double s3 = 4 * q1q1 * q3 - _2q1 * ax + 4 * q2q2 * q3 - _2q2 * ay;
+            double norm = Math.sqrt(s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3);
+            if(norm > 0){
+                recipNorm = 1 / norm;
+                qDot1 -= beta * s0 * recipNorm;
+                qDot2 -= beta * s1 * recipNorm;
+                qDot3 -= beta * s2 * recipNorm;
+                qDot4 -= beta * s3 * recipNorm;
+            }
+        }
+
+        q0 += qDot1 * dt;
+        q1 += qDot2 * dt;
+        q2 += qDot3 * dt;
+        q3 += qDot4 * dt;
+        normalize();
+    }
+}
@@ -0,0 +1,130 @@
+package module.fusion;
+
+/**
+ * Mahony complementary filter, PI feedback of the error between measured and estimated gravity / magnetic field.
+ * R. Mahony, T. Hamel, J. Pflimlin, "Nonlinear complementary filters on the special orthogonal group", 2008.
+ */
+public class MahonyFilter extends QuaternionFilter {
+    /** 2 * proportional gain */
+    private double twoKp;
+    /** 2 * integral gain */
+    private double twoKi;
+    /** Integral error, it is the estimated gyro bias (rad / sec) */
+    private double integralX = 0, integralY = 0, integralZ = 0;
+
+    public MahonyFilter(){
+        this(0.5, 0.0);
+    }
+
+    /**
+     * @param kp Proportional gain
+     * @param ki Integral gain, 0 to disable gyro bias estimation
+     */
+    public MahonyFilter(double kp, double ki){
+        this.twoKp = 2 * kp;
+        this.twoKi = 2 * ki;
+    }
+
+    @Override
+    public void update(double gx, double gy, double gz,
+                       double ax, double ay, double az,
+                       double mx, double my, double mz, double dt){
+        if(mx == 0 && my == 0 && mz == 0){
+            updateImu(gx, gy, gz, ax, ay, az, dt);
+            return;
+        }
+        if(!(ax == 0 && ay == 0 && az == 0)){
+            double recipNorm = 1 / Math.sqrt(ax * ax + ay * ay + az * az);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+            recipNorm = 1 / Math.sqrt(mx * mx + my * my + mz * mz);
+            mx *= recipNorm;
+            my *= recipNorm;
+            mz *= recipNorm;
+
+            double q0q0 = q0 * q0, q0q1 = q0 * q1, q0q2 = q0 * q2, q0q3 = q0 * q3;
+            double q1q1 = q1 * q1, q1q2 = q1 * q2, q1q3 = q1 * q3;
+            double q2q2 = q2 * q2, q2q3 = q2 * q3, q3q3 = q3 * q3;
+
+            //Reference direction of earth's magnetic field
+            double hx = 2 * (mx * (0.5 - q2q2 - q3q3) + my * (q1q2 - q0q3) + mz * (q1q3 + q0q2));
+            double hy = 2 * (mx * (q1q2 + q0q3) + my * (0.5 - q1q1 - q3q3) + mz * (q2q3 - q0q1));
+            double bx = Math.sqrt(hx * hx + hy * hy);
+            double bz = 2 * (mx * (q1q3 - q0q2) + my * (q2q3 + q0q1) + mz * (0.5 - q1q1 - q2q2));
+
+            //Estimated direction of gravity and magnetic field
+            double halfvx = q1q3 - q0q2;
+            double halfvy = q0q1 + q2q3;
+            double halfvz = q0q0 - 0.5 + q3q3;
+            double halfwx = bx * (0.5 - q2q2 - q3q3) + bz * (q1q3 - q0q2);
+            double halfwy = bx * (q1q2 - q0q3) + bz * (q0q1 + q2q3);
+            double halfwz = bx * (q0q2 + q1q3) + bz * (0.5 - q1q1 - q2q2);
+
+            //Error is cross product between estimated and measured direction
+            double halfex = (ay * halfvz - az * halfvy) + (my * halfwz - mz * halfwy);
+            double halfey = (az * halfvx - ax * halfvz) + (mz * halfwx - mx * halfwz);
+            double halfez = (ax * halfvy - ay * halfvx) + (mx * halfwy - my * halfwx);
+            gx += feedbackX(halfex, dt);
+            gy += feedbackY(halfey, dt);
+            gz += feedbackZ(halfez, dt);
+        }
+        integrate(gx, gy, gz, dt);
+    }
+
+    @Override
+    public void updateImu(double gx, double gy, double gz,
+                          double ax, double ay, double az, double dt){
+        if(!(ax == 0 && ay == 0 && az == 0)){
+            double recipNorm = 1 / Math.sqrt(ax * ax + ay * ay + az * az);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+
+            double halfvx = q1 * q3 - q0 * q2;
+            double halfvy = q0 * q1 + q2 * q3;
+            double halfvz = q0 * q0 - 0.5 + q3 * q3;
+
+            double halfex = ay * halfvz - az * halfvy;
+            double halfey = az * halfvx - ax * halfvz;
+            double halfez = ax * halfvy - ay * halfvx;
+            gx += feedbackX(halfex, dt);
+            gy += feedbackY(halfey, dt);
+            gz += feedbackZ(halfez, dt);
+        }
+        integrate(gx, gy, gz, dt);
+    }
+
+    @Override
+    public void reset(){
+        super.reset();
+        integralX = integralY = integralZ = 0;
+    }
+
+    private double feedbackX(double halfe, double dt){
+        integralX = (twoKi > 0) ? integralX + twoKi * halfe * dt : 0;
+        return integralX + twoKp * halfe;
+    }
+
+    private double feedbackY(double halfe, double dt){
+        integralY = (twoKi > 0) ? integralY + twoKi * halfe * dt : 0;
+        return integralY + twoKp * halfe;
+    }
+
+    private double feedbackZ(double halfe, double dt){
+        integralZ = (twoKi > 0) ? integralZ + twoKi * halfe * dt : 0;
+        return integralZ + twoKp * halfe;
+    }
+
+    private void integrate(double gx, double gy, double gz, double dt){
+        gx *= 0.5 * dt;
+        gy *= 0.5 * dt;
+        gz *= 0.5 * dt;
+        double qa = q0, qb = q1, qc = q2;
+        q0 += -qb * gx - qc * gy - q3 * gz;
+        q1 += qa * gx + qc * gz - q3 * gy;
+        q2 += qa * gy - qb * gz + q3 * gx;
+        q3 += qa * gz + qb * gy - qc * gx;
+        normalize();
+    }
+}
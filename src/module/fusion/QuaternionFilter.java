@@ -0,0 +1,70 @@
+package module.fusion;
+
+/**
+ * Quaternion state shared by filters, euler angles are only derived when asked.
+ */
+public abstract class QuaternionFilter implements FusionFilter {
+    protected double q0 = 1, q1 = 0, q2 = 0, q3 = 0;
+
+    @Override
+    public void getQuaternion(double[] q){
+        q[0] = q0;
+        q[1] = q1;
+        q[2] = q2;
+        q[3] = q3;
+    }
+
+    @Override
+    public double getRotationX(){
+        return rotationX(q0, q1, q2, q3);
+    }
+
+    @Override
+    public double getRotationY(){
+        return rotationY(q0, q1, q2, q3);
+    }
+
+    @Override
+    public double getRotationZ(){
+        return rotationZ(q0, q1, q2, q3);
+    }
+
+    /**
+     * Rotation about x axis of a quaternion (z-y-x euler angles).
+     * @return Angle (rad)
+     */
+    public static double rotationX(double q0, double q1, double q2, double q3){
+        return Math.atan2(2 * (q0 * q1 + q2 * q3), 1 - 2 * (q1 * q1 + q2 * q2));
+    }
+
+    /**
+     * Rotation about y axis of a quaternion (z-y-x euler angles).
+     * @return Angle (rad)
+     */
+    public static double rotationY(double q0, double q1, double q2, double q3){
+        double sin = 2 * (q0 * q2 - q3 * q1);
+        return Math.asin(Math.max(-1, Math.min(1, sin)));
+    }
+
+    /**
+     * Rotation about z axis of a quaternion (z-y-x euler angles).
+     * @return Angle (rad)
+     */
+    public static double rotationZ(double q0, double q1, double q2, double q3){
+        return Math.atan2(2 * (q0 * q3 + q1 * q2), 1 - 2 * (q2 * q2 + q3 * q3));
+    }
+
+    @Override
+    public void reset(){
+        q0 = 1;
+        q1 = q2 = q3 = 0;
+    }
+
+    protected void normalize(){
+        double recipNorm = 1 / Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        q0 *= recipNorm;
+        q1 *= recipNorm;
+        q2 *= recipNorm;
+        q3 *= recipNorm;
+    }
+}
@@ -0,0 +1,141 @@
+package module.tool;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hold a loop at fixed rate without burning a core like {@link Timer#spinLock(long)}.
+ * Most of the wait is parked, only the last part is spun for accuracy.
+ * Deadlines are absolute (start + n * period), so period doesn't drift with loop body time.
+ */
+public class LoopScheduler {
+    /** Default spin time before deadline (ns), parkNanos usually wakes 50 ~ 100 us late on Linux */
+    public static final long DEFAULT_SPIN = 100000L;
+
+    private final long period;
+    private final long spin;
+    private long deadline = 0;
+    private boolean started = false;
+
+    private long iterations = 0;
+    private long overruns = 0;
+    private long skippedPeriods = 0;
+    private long maxLateness = 0;
+    private long latenessSum = 0;
+
+    /**
+     * @param period Period of loop (ns)
+     */
+    public LoopScheduler(long period){
+        this(period, DEFAULT_SPIN);
+    }
+
+    /**
+     * @param period Period of loop (ns)
+     * @param spin   How long to spin before deadline (ns)
+     */
+    public LoopScheduler(long period, long spin){
+        if(period <= 0){
+            throw new IllegalArgumentException("period should be positive");
+        }
+        this.period = period;
+        this.spin = Math.max(0, spin);
+    }
+
+    /**
+     * @param hz Rate of loop (Hz)
+     * @return   Scheduler of the rate
+     */
+    public static LoopScheduler ofRate(double hz){
+        return new LoopScheduler(Math.round(1000000000d / hz));
+    }
+
+    /**
+     * Start counting period from now, statistics are cleared.
+     */
+    public void start(){
+        deadline = System.nanoTime() + period;
+        started = true;
+        iterations = 0;
+        overruns = 0;
+        skippedPeriods = 0;
+        maxLateness = 0;
+        latenessSum = 0;
+    }
+
+    /**
+     * Wait until next deadline. If loop body took longer than a period (overrun),
+     * return at once, and skip the missed periods if it is more than one period behind.
+     * @return How late it woke up from the deadline (ns)
+     */
+    public long await(){
+        if(!started){
+            start();
+        }
+        long remain = deadline - System.nanoTime();
+        if(remain < 0){
+            ++overruns;
+        }
+        while(remain > spin){
+            LockSupport.parkNanos(remain - spin);
+            remain = deadline - System.nanoTime();
+        }
+        long now = System.nanoTime();
+        while(now - deadline < 0){
+            now = System.nanoTime();
+        }
+
+        long lateness = now - deadline;
+        ++iterations;
+        latenessSum += lateness;
+        if(lateness > maxLateness){
+            maxLateness = lateness;
+        }
+        deadline += period;
+        if(now - deadline >= 0){
+            long missed = (now - deadline) / period + 1;
+            skippedPeriods += missed;
+            deadline += missed * period;
+        }
+        return lateness;
+    }
+
+    public long getPeriod(){
+        return period;
+    }
+
+    public long getIterations(){
+        return iterations;
+    }
+
+    /**
+     * Getter for times that loop body took longer than a period.
+     * @return Times of overrun
+     */
+    public long getOverrunCount(){
+        return overruns;
+    }
+
+    /**
+     * Getter for periods that were skipped because loop was behind more than one period.
+     * @return Skipped periods
+     */
+    public long getSkippedPeriods(){
+        return skippedPeriods;
+    }
+
+    /**
+     * Getter for max lateness of wake up.
+     * @return Max jitter (ns)
+     */
+    public long getMaxJitter(){
+        return maxLateness;
+    }
+
+    /**
+     * Getter for mean lateness of wake up.
+     * @return Mean jitter (ns)
+     */
+    public double getMeanJitter(){
+        return iterations == 0 ? 0 : (double)latenessSum / iterations;
+    }
+}
@@ -0,0 +1,84 @@
+package device;
+
+import device.bus.SimulatedMpu9250;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Steady-state sample path of {@link Mpu9250} doesn't allocate memory.
+ * The simulator is stepped only before measuring, it allocates while generating samples.
+ */
+public class AllocationTest {
+    private static final int WARMUP = 20000;
+    private static final int SAMPLES = 10000;
+
+    private com.sun.management.ThreadMXBean threads;
+    private SimulatedMpu9250 sim;
+    private Mpu9250 mpu9250;
+
+    @Before
+    public void setUp(){
+        threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        sim = new SimulatedMpu9250();
+        sim.setStartupDelays(false);
+        sim.setMotionAmplitude(30);
+        mpu9250 = new Mpu9250(sim.getMpuBus());
+        mpu9250.enableMagnetometer(Mpu9250.MagMode.MAG_MODE_100HZ);
+        sim.setAutoStep(false);
+        sim.step(1);
+    }
+
+    private long allocatedBytes(){
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void updateMotionDoesNotAllocate(){
+        for(int i = 0; i < WARMUP; ++i){
+            mpu9250.updateMotion();
+        }
+        long before = allocatedBytes();
+        for(int i = 0; i < SAMPLES; ++i){
+            mpu9250.updateMotion();
+        }
+        long allocated = allocatedBytes() - before;
+        assertEquals("bytes allocated by " + SAMPLES + " updateMotion()", 0, allocated);
+    }
+
+    @Test
+    public void readSampleDoesNotAllocate(){
+        ImuSample sample = new ImuSample();
+        for(int i = 0; i < WARMUP; ++i){
+            mpu9250.readSample(sample);
+        }
+        long before = allocatedBytes();
+        for(int i = 0; i < SAMPLES; ++i){
+            mpu9250.readSample(sample);
+        }
+        long allocated = allocatedBytes() - before;
+        assertEquals("bytes allocated by " + SAMPLES + " readSample()", 0, allocated);
+    }
+
+    @Test
+    public void read16BitIntoCallerArrayDoesNotAllocate(){
+        int[] group = new int[3];
+        int address = Mpu9250.Registers.GYRO_XOUT_H.getAddress();
+        for(int i = 0; i < WARMUP; ++i){
+            mpu9250.read16Bit(address, 3, group, 0);
+        }
+        long before = allocatedBytes();
+        for(int i = 0; i < SAMPLES; ++i){
+            mpu9250.read16Bit(address, 3, group, 0);
+        }
+        long allocated = allocatedBytes() - before;
+        assertEquals("bytes allocated by " + SAMPLES + " read16Bit()", 0, allocated);
+    }
+}
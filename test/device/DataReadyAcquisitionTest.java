@@ -0,0 +1,104 @@
+package device;
+
+import device.bus.SimulatedMpu9250;
+import device.gpio.SimulatedPin;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link DataReadyAcquisition} driven by edges of {@link SimulatedPin}.
+ */
+public class DataReadyAcquisitionTest {
+    private SimulatedPin pin;
+    private Mpu9250 mpu9250;
+    private DataReadyAcquisition acquisition;
+
+    private volatile Thread listenerThread;
+    private volatile CountDownLatch release;
+    private final CountDownLatch entered = new CountDownLatch(1);
+
+    @Before
+    public void setUp(){
+        SimulatedMpu9250 sim = new SimulatedMpu9250();
+        sim.setStartupDelays(false);
+        mpu9250 = new Mpu9250(sim.getMpuBus());
+        sim.setAutoStep(false);
+        pin = new SimulatedPin();
+        acquisition = new DataReadyAcquisition(mpu9250, pin, new Consumer<ImuSample>() {
+            @Override
+            public void accept(ImuSample sample) {
+                listenerThread = Thread.currentThread();
+                entered.countDown();
+                CountDownLatch latch = release;
+                if(latch != null){
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown(){
+        acquisition.stop();
+    }
+
+    private void awaitSamples(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(acquisition.getSampleCount() < count && System.nanoTime() < deadline){
+            Thread.sleep(1);
+        }
+        assertEquals(count, acquisition.getSampleCount());
+    }
+
+    @Test
+    public void everyHandledEdgeReadsOneSample() throws InterruptedException {
+        acquisition.start();
+        for(int i = 1; i <= 20; ++i){
+            pin.pulse();
+            awaitSamples(i);
+        }
+        assertEquals(0, acquisition.getMissedCount());
+        assertTrue(acquisition.getMaxLatency() >= 0);
+    }
+
+    @Test
+    public void edgesDuringReadAreMissed() throws InterruptedException {
+        release = new CountDownLatch(1);
+        acquisition.start();
+        pin.pulse();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        //Listener holds the acquisition thread, three more samples overwrite each other
+        pin.pulse();
+        pin.pulse();
+        pin.pulse();
+        release.countDown();
+        awaitSamples(2);
+        assertEquals(2, acquisition.getMissedCount());
+    }
+
+    @Test
+    public void stopJoinsAcquisitionThread() throws InterruptedException {
+        acquisition.start();
+        pin.pulse();
+        awaitSamples(1);
+        Thread thread = listenerThread;
+        acquisition.stop();
+        assertFalse(thread.isAlive());
+
+        pin.pulse();
+        assertEquals(1, acquisition.getSampleCount());
+    }
+}
@@ -0,0 +1,98 @@
+package device;
+
+import device.bus.SimulatedMpu9250;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link Mpu9250#startGyro()} takes gyro offset from {@link CalibrationCache} only while it is fresh.
+ */
+public class GyroCalibrationCacheTest {
+    private static final int BUS = 1;
+    private static final int ADDRESS = 0x68;
+    /** Offset no calibration of the simulator gives */
+    private static final int[] CACHED_OFFSET = {40, -80, 12};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CalibrationCache cache;
+    private String key;
+
+    private Mpu9250 boot(){
+        SimulatedMpu9250 sim = new SimulatedMpu9250();
+        sim.setStartupDelays(false);
+        sim.setMotionAmplitude(0);
+        Mpu9250 mpu9250 = new Mpu9250(sim.getMpuBus(), new Scale(Scale.AccScale.AFS_4G, Scale.GyroScale.GFS_250DPS),
+                cache, BUS, ADDRESS, false);
+        mpu9250.powerUp();
+        mpu9250.configure();
+        mpu9250.startGyro();
+        return mpu9250;
+    }
+
+    private static boolean calibrated(Mpu9250 mpu9250){
+        boolean calibrated = false;
+        for(StartupTiming.Phase phase : mpu9250.getStartupTiming().getPhases()){
+            calibrated |= phase.name.equals("mpu9250 gyro calibration");
+        }
+        return calibrated;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        cache = new CalibrationCache(folder.newFile("calibration.properties"));
+        Mpu9250 first = boot();
+        assertTrue(calibrated(first));
+        key = CalibrationCache.key(BUS, ADDRESS, first.read(Mpu9250.Registers.WHO_AM_I_MPU9250.getAddress()));
+        assertArrayEquals(first.getGyroOffset(), cache.get(key).gyroOffset);
+        assertNotEquals(CACHED_OFFSET[0], first.getGyroOffset()[0]);
+    }
+
+    /** Replace offset of the cache entry, so calibration is told apart from the cached offset */
+    private CalibrationCache.Entry edit(long age, double temperatureChange){
+        CalibrationCache.Entry entry = cache.get(key);
+        entry.gyroOffset = CACHED_OFFSET.clone();
+        entry.time = System.currentTimeMillis() - age;
+        entry.temperature += temperatureChange;
+        cache.put(key, entry);
+        return entry;
+    }
+
+    @Test
+    public void freshEntryIsUsedWithoutCalibration(){
+        edit(60000, 1.0);
+        Mpu9250 mpu9250 = boot();
+        assertFalse(calibrated(mpu9250));
+        assertArrayEquals(CACHED_OFFSET, mpu9250.getGyroOffset());
+        assertArrayEquals(CACHED_OFFSET, cache.get(key).gyroOffset);
+    }
+
+    @Test
+    public void staleEntryIsCalibratedAgain(){
+        CalibrationCache.Entry entry = edit(CalibrationCache.DEFAULT_MAX_AGE + 60000, 0);
+        Mpu9250 mpu9250 = boot();
+        assertTrue(calibrated(mpu9250));
+        assertNotEquals(CACHED_OFFSET[0], mpu9250.getGyroOffset()[0]);
+        assertArrayEquals(mpu9250.getGyroOffset(), cache.get(key).gyroOffset);
+        assertTrue(cache.get(key).time > entry.time);
+    }
+
+    @Test
+    public void temperatureDriftIsCalibratedAgain(){
+        edit(60000, CalibrationCache.DEFAULT_MAX_TEMPERATURE_DRIFT + 1);
+        Mpu9250 mpu9250 = boot();
+        assertTrue(calibrated(mpu9250));
+        assertNotEquals(CACHED_OFFSET[0], mpu9250.getGyroOffset()[0]);
+        assertArrayEquals(mpu9250.getGyroOffset(), cache.get(key).gyroOffset);
+    }
+}
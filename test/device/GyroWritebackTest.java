@@ -0,0 +1,82 @@
+package device;
+
+import device.bus.SimulatedMpu9250;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Write back of online gyro bias to XG_OFFSET registers against {@link SimulatedMpu9250}, whose offset
+ * registers move the output by 4 >> FS_SEL LSB a step like the datasheet says.
+ */
+public class GyroWritebackTest {
+    private SimulatedMpu9250 sim;
+
+    private Mpu9250 open(Scale.GyroScale gyro){
+        SimulatedMpu9250 sim = new SimulatedMpu9250();
+        sim.setStartupDelays(false);
+        sim.setMotionAmplitude(0);
+        Mpu9250 mpu9250 = new Mpu9250(sim.getMpuBus(), new Scale(Scale.AccScale.AFS_4G, gyro));
+        sim.setAutoStep(false);
+        this.sim = sim;
+        return mpu9250;
+    }
+
+    /**
+     * Run a still sensor for a minute of samples with write back every 200 still samples.
+     * @return Mean of corrected gyro x after the first second (LSB)
+     */
+    private double run(Mpu9250 mpu9250, GyroBiasEstimator estimator){
+        estimator.setTau(200);
+        estimator.setWritebackInterval(200);
+        estimator.setHardwareWriteback(true);
+        mpu9250.setBiasEstimator(estimator);
+        long sum = 0;
+        int count = 0;
+        for(int i = 0; i < 60000; ++i){
+            sim.step(1);
+            mpu9250.updateMotion();
+            if(i >= 1000){
+                sum += mpu9250.getGyroData()[0];
+                ++count;
+            }
+        }
+        return (double)sum / count;
+    }
+
+    @Test
+    public void offsetStepFollowsGyroScale(){
+        assertEquals(4, open(Scale.GyroScale.GFS_250DPS).getGyroOffsetStep());
+        assertEquals(2, open(Scale.GyroScale.GFS_500DPS).getGyroOffsetStep());
+        assertEquals(1, open(Scale.GyroScale.GFS_1000DPS).getGyroOffsetStep());
+        assertEquals(1, open(Scale.GyroScale.GFS_2000DPS).getGyroOffsetStep());
+    }
+
+    @Test
+    public void writebackKeepsOutputAtEveryScale(){
+        for(Scale.GyroScale gyro : Scale.GyroScale.values()){
+            Mpu9250 mpu9250 = open(gyro);
+            GyroBiasEstimator estimator = new GyroBiasEstimator(mpu9250);
+            double mean = run(mpu9250, estimator);
+            assertEquals(gyro.toString(), 0, mean, 0.5);
+            double[] bias = new double[3];
+            estimator.getBias(bias);
+            for(int i = 0; i < 3; ++i){
+                //What is left is less than a step, the rest went to the registers
+                assertTrue(gyro + " bias " + bias[i], Math.abs(bias[i]) <= mpu9250.getGyroOffsetStep());
+            }
+            assertTrue(gyro.toString(), estimator.getWritebackCount() > 0);
+            assertEquals(0, mpu9250.getErrorCount());
+        }
+    }
+
+    @Test
+    public void noWritebackWithTemperatureCompensation(){
+        Mpu9250 mpu9250 = open(Scale.GyroScale.GFS_1000DPS);
+        mpu9250.setTemperatureCompensation(new TemperatureBiasTable(mpu9250.getGyroResolution()));
+        GyroBiasEstimator estimator = new GyroBiasEstimator(mpu9250);
+        assertEquals(0, run(mpu9250, estimator), 0.5);
+        assertEquals(0, estimator.getWritebackCount());
+    }
+}
@@ -0,0 +1,103 @@
+package device;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Time alignment of {@link ImuArray}: units read one after another see a ramp at different instants.
+ */
+public class ImuArrayTest {
+    /** Time between reads of two units (ns) */
+    private static final long READ_NANOS = 100000;
+
+    /**
+     * Unit whose gyro and accel are a ramp of the shared clock (one LSB per µs), every read takes READ_NANOS.
+     */
+    private static class RampUnit implements NineDOF {
+        private final long[] clock;
+        private final int[] gyro = new int[3];
+        private final int[] accel = new int[3];
+        private long timestamp;
+        int motionReads, gyroReads, accelReads;
+
+        RampUnit(long[] clock){
+            this.clock = clock;
+        }
+
+        private int ramp(){
+            return (int)(clock[0] / 1000);
+        }
+
+        private void read(boolean withGyro, boolean withAccel){
+            timestamp = clock[0];
+            if(withGyro){
+                Arrays.fill(gyro, ramp());
+            }
+            if(withAccel){
+                Arrays.fill(accel, -ramp());
+            }
+            clock[0] += READ_NANOS;
+        }
+
+        @Override public int[] getGyroData(){ return gyro; }
+        @Override public int[] getAccelData(){ return accel; }
+        @Override public int[] getMagData(){ return new int[3]; }
+        @Override public boolean hasMagnetometer(){ return false; }
+        @Override public void updateGyroscope(){ ++gyroReads; read(true, false); }
+        @Override public void updateAccelerometer(){ ++accelReads; read(false, true); }
+        @Override public void updateMagnetometer(){ }
+        @Override public void updateMotion(){ ++motionReads; read(true, true); }
+        @Override public long getSampleTimestamp(){ return timestamp; }
+        @Override public int getTemperatureData(){ return 0; }
+        @Override public double getTemperature(){ return 21.0; }
+        @Override public int getGyroSampleRate(){ return 1000; }
+        @Override public double getGyroResolution(){ return 1.0; }
+        @Override public double getAccelResolution(){ return 1.0; }
+        @Override public double getMagResolution(int axis){ return 1.0; }
+    }
+
+    @Test
+    public void unitsAreInterpolatedToTheFirstRead(){
+        long[] clock = {0};
+        RampUnit[] units = {new RampUnit(clock), new RampUnit(clock), new RampUnit(clock)};
+        ImuArray array = new ImuArray(Arrays.asList(units), ImuArray.Combine.MEAN);
+        for(int sweep = 0; sweep < 5; ++sweep){
+            clock[0] += 1000000;
+            long first = clock[0];
+            array.updateMotion();
+            assertEquals(first, array.getSampleTimestamp());
+            assertEquals(2 * READ_NANOS, array.getTimestampSkew());
+            if(sweep > 0){
+                //Mean of read times would be 100 µs later, 100 LSB off on a ramp of 1 LSB / µs
+                int expected = (int)(first / 1000);
+                assertArrayEquals(new int[]{expected, expected, expected}, array.getGyroData());
+                assertArrayEquals(new int[]{-expected, -expected, -expected}, array.getAccelData());
+                assertEquals(3, array.getHealthyCount());
+            }
+        }
+    }
+
+    @Test
+    public void partialUpdateOnlyReadsItsGroup(){
+        long[] clock = {0};
+        RampUnit[] units = {new RampUnit(clock), new RampUnit(clock)};
+        ImuArray array = new ImuArray(Arrays.asList(units), ImuArray.Combine.MEAN);
+        array.updateMotion();
+        int[] accel = array.getAccelData().clone();
+
+        clock[0] += 1000000;
+        long first = clock[0];
+        array.updateGyroscope();
+        for(RampUnit unit : units){
+            assertEquals(1, unit.motionReads);
+            assertEquals(1, unit.gyroReads);
+            assertEquals(0, unit.accelReads);
+        }
+        assertArrayEquals(accel, array.getAccelData());
+        assertEquals(first / 1000, array.getGyroData()[0]);
+    }
+}
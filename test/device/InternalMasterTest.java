@@ -0,0 +1,154 @@
+package device;
+
+import device.bus.SimulatedMpu9250;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AK8963 behind the internal I2C master of MPU-9250, against {@link SimulatedMpu9250}.
+ */
+public class InternalMasterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private SimulatedMpu9250 sim;
+    private final Scale scale = new Scale(Scale.AccScale.AFS_4G, Scale.GyroScale.GFS_250DPS, Scale.MagScale.MFS_16BIT);
+
+    @Before
+    public void setUp(){
+        sim = new SimulatedMpu9250();
+        sim.setStartupDelays(false);
+        sim.setMotionAmplitude(30);
+    }
+
+    @Test
+    public void startupPipelinePollsMagnetometerByDefault(){
+        StartupPipeline startup = new StartupPipeline(sim.getMpuBus(), scale, Magnetometer.MagMode.MAG_MODE_100HZ,
+                null, 1, 0x68);
+        startup.run();
+        Mpu9250 mpu9250 = startup.getMpu9250();
+        assertTrue(mpu9250.hasMagnetometer());
+        assertNull(startup.getMagnetometer());
+        for(StartupTiming.Phase phase : startup.getTiming().getPhases()){
+            assertTrue(phase.name, phase.ok);
+        }
+
+        sim.setAutoStep(false);
+        sim.step(20);
+        mpu9250.updateMotion();
+        int[] mag = mpu9250.getMagData();
+        assertTrue(mag[0] != 0 || mag[1] != 0 || mag[2] != 0);
+        assertEquals(0, mpu9250.getErrorCount());
+    }
+
+    @Test
+    public void nackFailsSlave4Transfer(){
+        Mpu9250 mpu9250 = new Mpu9250(sim.getMpuBus(), scale);
+        assertTrue(mpu9250.enableMagnetometer(Mpu9250.MagMode.MAG_MODE_100HZ));
+        assertEquals(0x48, mpu9250.readMagRegister(Mpu9250.Registers.WHO_AM_I_AK8963.getAddress()));
+
+        //With I2C master disabled slave 4 is done at once with a NACK, I2C_SLV4_DI is stale
+        int userCtrl = mpu9250.read(Mpu9250.Registers.USER_CTRL.getAddress());
+        mpu9250.write(Mpu9250.Registers.USER_CTRL.getAddress(), userCtrl & ~0x20);
+        long errors = mpu9250.getErrorCount();
+        assertEquals(-1, mpu9250.readMagRegister(Mpu9250.Registers.WHO_AM_I_AK8963.getAddress()));
+        assertFalse(mpu9250.writeMagRegister(Mpu9250.Registers.AK8963_CNTL.getAddress(), 0x00));
+        assertNotEquals(errors, mpu9250.getErrorCount());
+    }
+
+    @Test
+    public void everyMpuHasItsOwnMagnetometerEntry() throws Exception {
+        CalibrationCache cache = new CalibrationCache(new File(folder.getRoot(), "calibration.properties"));
+        SimulatedMpu9250 other = new SimulatedMpu9250();
+        other.setStartupDelays(false);
+        new Mpu9250(sim.getMpuBus(), scale, cache, 1, 0x68, false).enableMagnetometer(Mpu9250.MagMode.MAG_MODE_100HZ);
+        new Mpu9250(other.getMpuBus(), new Scale(Scale.AccScale.AFS_4G, Scale.GyroScale.GFS_250DPS,
+                Scale.MagScale.MFS_16BIT), cache, 1, 0x69, false).enableMagnetometer(Mpu9250.MagMode.MAG_MODE_100HZ);
+
+        for(int address : new int[]{0x68, 0x69}){
+            String key = CalibrationCache.auxiliaryKey(CalibrationCache.key(1, address, 0x71), 0x0C, 0x48);
+            CalibrationCache.Entry entry = cache.get(key);
+            assertNotNull(key, entry);
+            assertEquals(3, entry.sensitivity.length);
+        }
+    }
+
+    @Test
+    public void sampleWithMagnetometerIsOneTransaction(){
+        Mpu9250 mpu9250 = new Mpu9250(sim.getMpuBus(), scale);
+        assertTrue(mpu9250.enableMagnetometer(Mpu9250.MagMode.MAG_MODE_100HZ));
+        sim.setAutoStep(false);
+        sim.step(20);
+        long transactions = sim.getTransactionCount();
+        mpu9250.updateMotion();
+        assertEquals(1, sim.getTransactionCount() - transactions);
+        int[] mag = mpu9250.getMagData();
+        assertTrue(mag[0] != 0 || mag[1] != 0 || mag[2] != 0);
+    }
+
+    @Test
+    public void calibrationIsAppliedToMagData(){
+        CalibrationCache cache = new CalibrationCache(new File(folder.getRoot(), "calibration.properties"));
+        Mpu9250 mpu9250 = new Mpu9250(sim.getMpuBus(), scale, cache, 1, 0x68, false);
+        assertTrue(mpu9250.enableMagnetometer(Mpu9250.MagMode.MAG_MODE_100HZ));
+        sim.setAutoStep(false);
+        sim.step(20);
+        mpu9250.updateMotion();
+        int[] raw = mpu9250.getMagData().clone();
+
+        //Same sample again, now without hard iron bias
+        double[] bias = {120, -80, 40};
+        mpu9250.setMagCalibration(MagCalibration.ofBias(bias));
+        mpu9250.updateMotion();
+        for(int i = 0; i < 3; ++i){
+            assertEquals(raw[i] - bias[i] / mpu9250.getMagResolution(i), mpu9250.getMagData()[i], 1);
+        }
+
+        //Next boot starts with the saved calibration
+        mpu9250.saveMagCalibration();
+        Mpu9250 next = new Mpu9250(sim.getMpuBus(), scale, cache, 1, 0x68, false);
+        assertTrue(next.enableMagnetometer(Mpu9250.MagMode.MAG_MODE_100HZ));
+        assertNotNull(next.getMagCalibration());
+        assertEquals(bias[1], next.getMagCalibration().getBias()[1], 1e-9);
+    }
+
+    @Test
+    public void everyUnitHasItsOwnSensitivity(){
+        SimulatedMpu9250 other = new SimulatedMpu9250();
+        other.setStartupDelays(false);
+        sim.setSensitivityAdjustment(0xB0, 0xB3, 0xA6);
+        other.setSensitivityAdjustment(0x80, 0x90, 0x70);
+        //Both units share a scale, like an array configured once
+        Mpu9250 first = new Mpu9250(sim.getMpuBus(), scale);
+        Mpu9250 second = new Mpu9250(other.getMpuBus(), scale);
+        assertTrue(first.enableMagnetometer(Mpu9250.MagMode.MAG_MODE_100HZ));
+        assertTrue(second.enableMagnetometer(Mpu9250.MagMode.MAG_MODE_100HZ));
+
+        int[] firstAsa = {0xB0, 0xB3, 0xA6};
+        int[] secondAsa = {0x80, 0x90, 0x70};
+        double resolution = Scale.MagScale.MFS_16BIT.getResolution();
+        for(int i = 0; i < 3; ++i){
+            assertEquals(resolution * ((firstAsa[i] - 128) / 256.0 + 1), first.getMagResolution(i), 1e-9);
+            assertEquals(resolution * ((secondAsa[i] - 128) / 256.0 + 1), second.getMagResolution(i), 1e-9);
+        }
+
+        //Bypass magnetometers keep their own too
+        SimulatedMpu9250 third = new SimulatedMpu9250();
+        third.setStartupDelays(false);
+        third.setSensitivityAdjustment(0x70, 0x80, 0x90);
+        new Mpu9250(third.getMpuBus(), scale); //Bypass mode
+        Magnetometer bypass = new Magnetometer(third.getMagBus(), scale, Magnetometer.MagMode.MAG_MODE_100HZ);
+        assertEquals(1.0 - 16 / 256.0, bypass.getSensitivity()[0], 1e-9);
+        assertEquals((secondAsa[0] - 128) / 256.0 + 1, second.getMagSensitivity()[0], 1e-9);
+    }
+}
@@ -0,0 +1,86 @@
+package device;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ellipsoid fit of {@link MagCalibrator} against a synthetic distorted field.
+ */
+public class MagCalibratorTest {
+    private static final double FIELD = 480;
+
+    /** Rotation of 30 deg about z then 45 deg about x, row major */
+    private static double[] rotation(){
+        double a = Math.toRadians(30), b = Math.toRadians(45);
+        double[] z = {Math.cos(a), -Math.sin(a), 0, Math.sin(a), Math.cos(a), 0, 0, 0, 1};
+        double[] x = {1, 0, 0, 0, Math.cos(b), -Math.sin(b), 0, Math.sin(b), Math.cos(b)};
+        return multiply(x, z);
+    }
+
+    private static double[] multiply(double[] a, double[] b){
+        double[] c = new double[9];
+        for(int i = 0; i < 3; ++i){
+            for(int j = 0; j < 3; ++j){
+                for(int k = 0; k < 3; ++k){
+                    c[i * 3 + j] += a[i * 3 + k] * b[k * 3 + j];
+                }
+            }
+        }
+        return c;
+    }
+
+    private static double[] transpose(double[] a){
+        return new double[]{a[0], a[3], a[6], a[1], a[4], a[7], a[2], a[5], a[8]};
+    }
+
+    @Test
+    public void recoversBiasAndSoftIronOfRotatedEllipsoid(){
+        //Soft iron distortion R * diag(1.25, 0.8, 1.0) * R', its determinant is 1, so it keeps field strength
+        double[] r = rotation();
+        double[] scaleAxes = {1.25, 0, 0, 0, 0.8, 0, 0, 0, 1.0};
+        double[] distortion = multiply(multiply(r, scaleAxes), transpose(r));
+        double[] inverseAxes = {1 / 1.25, 0, 0, 0, 1 / 0.8, 0, 0, 0, 1.0};
+        double[] expectedSoftIron = multiply(multiply(r, inverseAxes), transpose(r));
+        double[] bias = {150, -220, 75};
+
+        MagCalibrator calibrator = new MagCalibrator(200, 50, 1.0);
+        Random random = new Random(18);
+        for(int n = 0; n < 2000; ++n){
+            double ux = random.nextGaussian(), uy = random.nextGaussian(), uz = random.nextGaussian();
+            double norm = Math.sqrt(ux * ux + uy * uy + uz * uz);
+            double[] field = {FIELD * ux / norm, FIELD * uy / norm, FIELD * uz / norm};
+            double[] raw = new double[3];
+            for(int i = 0; i < 3; ++i){
+                raw[i] = bias[i] + random.nextGaussian() * 0.5;
+                for(int k = 0; k < 3; ++k){
+                    raw[i] += distortion[i * 3 + k] * field[k];
+                }
+            }
+            calibrator.add(raw[0], raw[1], raw[2]);
+        }
+        MagCalibration calibration = calibrator.getCalibration();
+        assertNotNull(calibration);
+        assertEquals(2000, calibration.getSampleCount());
+        for(int i = 0; i < 3; ++i){
+            assertEquals(bias[i], calibration.getBias()[i], 0.5);
+        }
+        for(int i = 0; i < 9; ++i){
+            assertEquals(expectedSoftIron[i], calibration.getSoftIron()[i], 2e-3);
+        }
+        assertEquals(FIELD, calibration.getFieldStrength(), 0.5);
+        assertTrue(calibration.getResidual() < 0.01);
+
+        //Distorted field is a sphere again
+        double[] corrected = new double[3];
+        double[] raw = {bias[0] + distortion[0] * FIELD, bias[1] + distortion[3] * FIELD, bias[2] + distortion[6] * FIELD};
+        calibration.apply(raw[0], raw[1], raw[2], corrected);
+        assertEquals(FIELD, corrected[0], 1);
+        assertEquals(0, corrected[1], 1);
+        assertEquals(0, corrected[2], 1);
+    }
+}
@@ -0,0 +1,104 @@
+package device;
+
+import device.bus.SimulatedMpu9250;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FIFO streaming mode of {@link Mpu9250} against the register map of {@link SimulatedMpu9250}.
+ */
+public class Mpu9250FifoTest {
+    private SimulatedMpu9250 sim;
+    private Mpu9250 mpu9250;
+    private final int[] frames = new int[64 * Mpu9250.FIFO_FRAME_VALUES];
+
+    @Before
+    public void setUp(){
+        sim = new SimulatedMpu9250();
+        sim.setStartupDelays(false);
+        sim.setMotionAmplitude(30);
+        mpu9250 = new Mpu9250(sim.getMpuBus());
+        sim.setAutoStep(false);
+        mpu9250.enableFifo();
+    }
+
+    /**
+     * Last drained frame should be the sample in data registers, FIFO frame and ACCEL_XOUT_H ~ GYRO_ZOUT_L
+     * have the same layout.
+     */
+    private void assertLastFrameIsCurrentSample(int frameCount){
+        int[] registers = mpu9250.read16Bit(Mpu9250.Registers.ACCEL_XOUT_H.getAddress(), Mpu9250.FIFO_FRAME_VALUES);
+        int[] last = new int[Mpu9250.FIFO_FRAME_VALUES];
+        System.arraycopy(frames, (frameCount - 1) * Mpu9250.FIFO_FRAME_VALUES, last, 0, last.length);
+        assertArrayEquals(registers, last);
+    }
+
+    @Test
+    public void drainsWholeBatchInOrder(){
+        sim.step(10);
+        assertEquals(10 * Mpu9250.FIFO_FRAME_SIZE, mpu9250.getFifoCount());
+
+        long transactions = sim.getTransactionCount();
+        assertEquals(10, mpu9250.readFifo(frames));
+        //INT_STATUS, FIFO_COUNT and one block read of all frames
+        assertEquals(3, sim.getTransactionCount() - transactions);
+        assertEquals(0, mpu9250.getFifoCount());
+        assertLastFrameIsCurrentSample(10);
+
+        //Stationary gravity on z of every frame (4 g scale), so every frame is aligned
+        for(int i = 0; i < 10; ++i){
+            int z = frames[i * Mpu9250.FIFO_FRAME_VALUES + 2];
+            assertTrue("accel z of frame " + i + ": " + z, Math.abs(z - 8192) < 8192 * 0.2);
+        }
+        assertEquals(0, mpu9250.readFifo(frames));
+    }
+
+    @Test
+    public void batchIsLimitedByDestination(){
+        int[] small = new int[4 * Mpu9250.FIFO_FRAME_VALUES];
+        sim.step(10);
+        assertEquals(4, mpu9250.readFifo(small));
+        assertEquals(4, mpu9250.readFifo(small));
+        assertEquals(2, mpu9250.readFifo(small));
+        assertEquals(0, mpu9250.readFifo(small));
+        assertEquals(0, mpu9250.getFifoOverflowCount());
+    }
+
+    @Test
+    public void overflowIsDetectedAndResynced(){
+        //40 frames are 560 bytes, oldest bytes are overwritten and FIFO isn't aligned to frames anymore
+        sim.step(40);
+        assertEquals(0, mpu9250.readFifo(frames));
+        assertEquals(1, mpu9250.getFifoOverflowCount());
+        assertEquals(0, mpu9250.getFifoCount());
+
+        sim.step(5);
+        assertEquals(5, mpu9250.readFifo(frames));
+        assertLastFrameIsCurrentSample(5);
+        assertEquals(1, mpu9250.getFifoOverflowCount());
+    }
+
+    @Test
+    public void fullFifoIsOverflowEvenIfStatusWasCleared(){
+        sim.step(40);
+        mpu9250.read(Mpu9250.Registers.INT_STATUS.getAddress()); //Someone else read and cleared FIFO_OFLOW_INT
+        assertEquals(0, mpu9250.readFifo(frames));
+        assertEquals(1, mpu9250.getFifoOverflowCount());
+
+        sim.step(3);
+        assertEquals(3, mpu9250.readFifo(frames));
+        assertLastFrameIsCurrentSample(3);
+    }
+
+    @Test
+    public void disabledFifoDrainsNothing(){
+        mpu9250.disableFifo();
+        sim.step(10);
+        assertEquals(0, mpu9250.getFifoCount());
+        assertEquals(0, mpu9250.readFifo(frames));
+    }
+}
@@ -0,0 +1,61 @@
+package device;
+
+import device.bus.SimulatedMpu9250;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * State machine of {@link PowerGovernor} stepped by hand against {@link SimulatedMpu9250}.
+ */
+public class PowerGovernorTest {
+    private SimulatedMpu9250 sim;
+    private Mpu9250 mpu9250;
+    private PowerGovernor governor;
+
+    @Before
+    public void setUp(){
+        sim = new SimulatedMpu9250();
+        sim.setStartupDelays(false);
+        sim.setMotionAmplitude(0);
+        mpu9250 = new Mpu9250(sim.getMpuBus());
+        sim.setAutoStep(false);
+        governor = new PowerGovernor(mpu9250, null, null);
+        governor.setIdleTime(1);
+        governor.setGyroStartupTime(0);
+    }
+
+    private void stepUntil(PowerGovernor.State state){
+        for(int i = 0; i < 100 && governor.getState() != state; ++i){
+            sim.step(1);
+            governor.step();
+        }
+        assertEquals(state, governor.getState());
+    }
+
+    @Test
+    public void transactionsAreTakenFromTheBus(){
+        long start = sim.getTransactionCount();
+        stepUntil(PowerGovernor.State.LOW_POWER);
+        for(int i = 0; i < 5; ++i){
+            sim.step(1);
+            governor.step();
+        }
+        assertEquals(PowerGovernor.State.LOW_POWER, governor.getState());
+        sim.setMotionAmplitude(30);
+        stepUntil(PowerGovernor.State.ACTIVE);
+        assertEquals(1, governor.getLowPowerCount());
+
+        long counted = 0;
+        for(PowerGovernor.State state : PowerGovernor.State.values()){
+            counted += governor.getTransactions(state);
+        }
+        assertEquals(sim.getTransactionCount() - start, counted);
+        //Every low power iteration polls INT_STATUS once, the last one also leaves wake-on-motion
+        assertTrue(governor.getTransactions(PowerGovernor.State.LOW_POWER)
+                > governor.getIterations(PowerGovernor.State.LOW_POWER));
+        assertTrue(governor.getLastWakeLatency() > 0);
+    }
+}
@@ -0,0 +1,109 @@
+package device;
+
+import device.record.FlightRecorder;
+import device.record.RecordHeader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ReplayNineDOF} against a record made by {@link FlightRecorder}.
+ */
+public class ReplayNineDOFTest {
+    private static final int FRAMES = 40;
+    /** 1 kHz */
+    private static final long PERIOD = 1000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    private static void fill(ImuSample sample, int i){
+        sample.timestamp = 5000000000L + PERIOD * i;
+        for(int k = 0; k < 3; ++k){
+            sample.accel[k] = i * 3 + k;
+            sample.gyro[k] = -(i * 3 + k);
+            sample.mag[k] = 100 + i + k;
+        }
+        sample.temperature = 2000 + i;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder();
+        RecordHeader header = new RecordHeader();
+        header.gyroResolution = 250.0 / 32768;
+        header.hasMag = true;
+        //Several segments, so playback crosses segment files
+        FlightRecorder recorder = new FlightRecorder(directory, "replay", 16, 8, header, 0);
+        ImuSample sample = new ImuSample();
+        for(int i = 0; i < FRAMES; ++i){
+            fill(sample, i);
+            recorder.record(sample);
+        }
+        recorder.close();
+    }
+
+    private static void assertFrame(int i, long timestampOffset, ReplayNineDOF replay){
+        ImuSample expected = new ImuSample();
+        fill(expected, i);
+        assertEquals(expected.timestamp + timestampOffset, replay.getSampleTimestamp());
+        assertArrayEquals(expected.accel, replay.getAccelData());
+        assertArrayEquals(expected.gyro, replay.getGyroData());
+        assertArrayEquals(expected.mag, replay.getMagData());
+        assertEquals(expected.temperature, replay.getTemperatureData());
+    }
+
+    @Test
+    public void asFastAsPossibleReproducesRecord() throws IOException {
+        ReplayNineDOF replay = new ReplayNineDOF(directory, "replay", ReplayNineDOF.AS_FAST_AS_POSSIBLE);
+        assertEquals(1000, replay.getGyroSampleRate());
+        assertTrue(replay.hasMagnetometer());
+        assertEquals(250.0 / 32768, replay.getGyroResolution(), 0);
+        for(int i = 0; i < FRAMES; ++i){
+            replay.updateMotion();
+            assertFalse(replay.isFinished());
+            assertFrame(i, 0, replay);
+        }
+        replay.updateMotion();
+        assertTrue(replay.isFinished());
+        assertEquals(FRAMES, replay.getFrameCount());
+    }
+
+    @Test
+    public void loopContinuesTimestamps() throws IOException {
+        ReplayNineDOF replay = new ReplayNineDOF(directory, "replay", ReplayNineDOF.AS_FAST_AS_POSSIBLE);
+        replay.setLoop(true);
+        for(int loop = 0; loop < 3; ++loop){
+            for(int i = 0; i < FRAMES; ++i){
+                replay.updateMotion();
+                //Next loop starts one sample period after the last frame
+                assertFrame(i, loop * FRAMES * PERIOD, replay);
+            }
+        }
+        assertFalse(replay.isFinished());
+        assertEquals(3 * FRAMES, replay.getFrameCount());
+    }
+
+    @Test
+    public void realTimeKeepsRecordedPace() throws IOException {
+        ReplayNineDOF replay = new ReplayNineDOF(directory, "replay", ReplayNineDOF.REAL_TIME);
+        replay.updateMotion();
+        long start = System.nanoTime();
+        for(int i = 1; i < FRAMES; ++i){
+            replay.updateMotion();
+            assertFrame(i, 0, replay);
+        }
+        assertTrue(System.nanoTime() - start >= (FRAMES - 1) * PERIOD);
+    }
+}
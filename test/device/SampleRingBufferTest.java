@@ -0,0 +1,119 @@
+package device;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Order and loss accounting of {@link SampleRingBuffer}, samples carry their sequence as time stamp.
+ */
+public class SampleRingBufferTest {
+    private static void publish(SampleRingBuffer ring, ImuSample sample, long count){
+        for(long i = 0; i < count; ++i){
+            sample.timestamp = ring.getHead();
+            sample.gyro[0] = (short)sample.timestamp;
+            ring.publish(sample);
+        }
+    }
+
+    @Test
+    public void slowConsumerLosesOldestSamples(){
+        SampleRingBuffer ring = new SampleRingBuffer(8);
+        SampleRingBuffer.Cursor cursor = ring.newCursor();
+        publish(ring, new ImuSample(), 13);
+
+        long[] timestamps = new long[16];
+        short[] values = new short[16 * SampleRingBuffer.VALUES];
+        assertEquals(8, cursor.read(timestamps, values, 16));
+        assertEquals(5, cursor.getLostCount());
+        for(int i = 0; i < 8; ++i){
+            assertEquals(5 + i, timestamps[i]);
+            assertEquals(5 + i, values[i * SampleRingBuffer.VALUES + 4]);
+        }
+        assertEquals(0, cursor.read(timestamps, values, 16));
+
+        ImuSample sample = new ImuSample();
+        publish(ring, sample, 10);
+        assertTrue(cursor.read(sample));
+        assertEquals(15, sample.timestamp);
+        assertEquals(7, cursor.getLostCount());
+    }
+
+    /**
+     * Producer laps consumers all the time: every sample read must be newer than the previous one,
+     * and every gap must be counted as lost.
+     */
+    private void lappedConsumersStayInOrder(final boolean batch) throws InterruptedException {
+        final SampleRingBuffer ring = new SampleRingBuffer(4);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] consumers = new Thread[3];
+        for(int c = 0; c < consumers.length; ++c){
+            final SampleRingBuffer.Cursor cursor = ring.newCursor();
+            consumers[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long[] timestamps = new long[3];
+                    short[] values = new short[3 * SampleRingBuffer.VALUES];
+                    ImuSample sample = new ImuSample();
+                    long start = cursor.getPosition();
+                    long expected = start;
+                    long read = 0;
+                    while(running.get() && failure.get() == null){
+                        int n;
+                        if(batch){
+                            n = cursor.read(timestamps, values, 3);
+                        }else{
+                            n = cursor.read(sample) ? 1 : 0;
+                            timestamps[0] = sample.timestamp;
+                            values[4] = (short)sample.gyro[0];
+                        }
+                        for(int i = 0; i < n; ++i){
+                            long sequence = timestamps[i];
+                            if(sequence < expected || (short)sequence != values[i * SampleRingBuffer.VALUES + 4]){
+                                failure.set("read " + sequence + " after " + (expected - 1));
+                            }
+                            expected = sequence + 1;
+                        }
+                        read += n;
+                        if(n > 0 && expected != cursor.getPosition()){
+                            failure.set("position " + cursor.getPosition() + " after reading " + (expected - 1));
+                        }
+                        if(read + cursor.getLostCount() != cursor.getPosition() - start){
+                            failure.set("read " + read + " and lost " + cursor.getLostCount() + " of "
+                                    + (cursor.getPosition() - start));
+                        }
+                    }
+                }
+            });
+            consumers[c].start();
+        }
+        ImuSample sample = new ImuSample();
+        long end = System.nanoTime() + 300000000L;
+        while(System.nanoTime() - end < 0 && failure.get() == null){
+            publish(ring, sample, 1000);
+        }
+        running.set(false);
+        for(Thread consumer : consumers){
+            consumer.join();
+        }
+        assertNull(failure.get(), failure.get());
+        assertFalse(ring.getHead() < 1000);
+    }
+
+    @Test
+    public void lappedBatchReadStaysInOrder() throws InterruptedException {
+        lappedConsumersStayInOrder(true);
+    }
+
+    @Test
+    public void lappedSingleReadStaysInOrder() throws InterruptedException {
+        lappedConsumersStayInOrder(false);
+    }
+}
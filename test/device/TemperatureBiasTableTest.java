@@ -0,0 +1,132 @@
+package device;
+
+import device.bus.SimulatedMpu9250;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lookup, anchoring and persistence of {@link TemperatureBiasTable}.
+ */
+public class TemperatureBiasTableTest {
+    private static final double GYRO_RESOLUTION = 250.0 / 32768;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Grid of 0, 10, 20, 30 and 40 degree C, measured at 10 and 30 only */
+    private static TemperatureBiasTable table(){
+        TemperatureBiasTable table = new TemperatureBiasTable(0, 10, 5, GYRO_RESOLUTION);
+        table.learn(10, 100, -50, 20);
+        table.learn(30, 300, 50, 60);
+        return table;
+    }
+
+    @Test
+    public void interpolatesBetweenAndHoldsBeyondMeasuredPoints(){
+        TemperatureBiasTable table = table();
+        assertEquals(2, table.getCoverage());
+        assertEquals(200, table.getBias(0, 20), 1e-9);
+        assertEquals(150, table.getBias(0, 15), 1e-9);
+        assertEquals(0, table.getBias(1, 20), 1e-9);
+        //Held at the nearest measured point, also outside the grid
+        assertEquals(100, table.getBias(0, 0), 1e-9);
+        assertEquals(100, table.getBias(0, -20), 1e-9);
+        assertEquals(300, table.getBias(0, 40), 1e-9);
+        assertEquals(60, table.getBias(2, 100), 1e-9);
+
+        int[] gyro = {1000, 1000, 1000};
+        table.correct(gyro, 20);
+        assertArrayEquals(new int[]{800, 1000, 960}, gyro);
+        gyro = new int[]{1000, 1000, 1000};
+        table.correct(gyro, 85);
+        assertArrayEquals(new int[]{700, 950, 940}, gyro);
+    }
+
+    @Test
+    public void learnsStillBlocksOnly(){
+        TemperatureBiasTable table = new TemperatureBiasTable(GYRO_RESOLUTION);
+        table.setBlockSize(10);
+        int[] gyro = {5, -6, 7};
+        for(int i = 0; i < 9; ++i){
+            assertFalse(table.add(gyro, 25.0));
+        }
+        assertTrue(table.add(gyro, 25.0));
+        assertEquals(5, table.getBias(0, 25.0), 1e-9);
+
+        //Rotation during a block
+        for(int i = 0; i < 10; ++i){
+            assertFalse(table.add(new int[]{i * 100, 0, 0}, 25.0));
+        }
+        assertEquals(1, table.getLearnedBlocks());
+    }
+
+    @Test
+    public void anchorMakesBiasZeroAtTemperature(){
+        TemperatureBiasTable table = table();
+        table.anchor(20);
+        assertEquals(0, table.getBias(0, 20), 1e-9);
+        assertEquals(-100, table.getBias(0, 10), 1e-9);
+        assertEquals(100, table.getBias(0, 30), 1e-9);
+        assertEquals(-20, table.getBias(2, 10), 1e-9);
+        assertEquals(20, table.getBias(2, 40), 1e-9);
+
+        //Nothing to anchor without a measured point
+        TemperatureBiasTable empty = new TemperatureBiasTable(GYRO_RESOLUTION);
+        empty.anchor(20);
+        assertEquals(0, empty.getBias(0, 20), 1e-9);
+    }
+
+    @Test
+    public void arrayRoundTrip(){
+        TemperatureBiasTable table = table();
+        double[] values = table.toArray();
+        assertEquals(3 + 2 * 5, values.length);
+        TemperatureBiasTable restored = TemperatureBiasTable.fromArray(values, GYRO_RESOLUTION);
+        assertNotNull(restored);
+        assertEquals(table.getCoverage(), restored.getCoverage());
+        for(int axis = 0; axis < 3; ++axis){
+            for(double t = -5; t <= 45; t += 2.5){
+                assertEquals(table.getBias(axis, t), restored.getBias(axis, t), 1e-9);
+            }
+        }
+        assertArrayEquals(values, restored.toArray(), 0);
+
+        assertNull(TemperatureBiasTable.fromArray(null, GYRO_RESOLUTION));
+        assertNull(TemperatureBiasTable.fromArray(new double[]{0, 10, 5, 1}, GYRO_RESOLUTION));
+        assertNull(TemperatureBiasTable.fromArray(new double[]{0, 10, 5, 7, 1, 0, 0, 0}, GYRO_RESOLUTION));
+    }
+
+    @Test
+    public void compensationIsOptIn() throws IOException {
+        CalibrationCache cache = new CalibrationCache(folder.newFile("calibration.properties"));
+        SimulatedMpu9250 sim = new SimulatedMpu9250();
+        sim.setStartupDelays(false);
+        sim.setMotionAmplitude(0);
+        Mpu9250 mpu9250 = new Mpu9250(sim.getMpuBus(), new Scale(Scale.AccScale.AFS_4G, Scale.GyroScale.GFS_250DPS),
+                cache, 1, 0x68);
+        assertNull(mpu9250.getTemperatureCompensation());
+
+        mpu9250.enableTemperatureCompensation();
+        TemperatureBiasTable table = mpu9250.getTemperatureCompensation();
+        assertNotNull(table);
+        table.learn(30, 12, 0, 0);
+        mpu9250.saveTemperatureCompensation();
+
+        //Next boot restores the learned table once it is enabled
+        Mpu9250 next = new Mpu9250(sim.getMpuBus(), new Scale(Scale.AccScale.AFS_4G, Scale.GyroScale.GFS_250DPS),
+                cache, 1, 0x68);
+        assertNull(next.getTemperatureCompensation());
+        next.enableTemperatureCompensation();
+        assertEquals(12, next.getTemperatureCompensation().getBias(0, 30), 1e-9);
+    }
+}
@@ -0,0 +1,143 @@
+package device.record;
+
+import device.ImuSample;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Frames of {@link FlightRecorder} read back by {@link FlightRecordReader}.
+ */
+public class FlightRecorderTest {
+    private static final int FRAMES_PER_SEGMENT = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void fill(ImuSample sample, int i){
+        sample.timestamp = 1000000L * i;
+        for(int k = 0; k < 3; ++k){
+            sample.accel[k] = i * 3 + k;
+            sample.gyro[k] = -(i * 3 + k);
+            sample.mag[k] = 100 + i + k;
+        }
+        sample.temperature = 2000 + i;
+    }
+
+    private static void assertFrame(int i, ImuSample sample){
+        ImuSample expected = new ImuSample();
+        fill(expected, i);
+        assertEquals(expected.timestamp, sample.timestamp);
+        assertArrayEquals(expected.accel, sample.accel);
+        assertArrayEquals(expected.gyro, sample.gyro);
+        assertArrayEquals(expected.mag, sample.mag);
+        assertEquals(expected.temperature, sample.temperature);
+    }
+
+    private FlightRecorder recorder(File directory, int maxSegments, RecordHeader header) throws IOException {
+        return new FlightRecorder(directory, "test", FRAMES_PER_SEGMENT, maxSegments, header, 0);
+    }
+
+    private static void record(FlightRecorder recorder, int from, int to){
+        ImuSample sample = new ImuSample();
+        for(int i = from; i < to; ++i){
+            fill(sample, i);
+            recorder.record(sample);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        File directory = folder.newFolder();
+        RecordHeader header = new RecordHeader();
+        header.gyroResolution = 250.0 / 32768;
+        header.gyroOffset[0] = 12;
+        FlightRecorder recorder = recorder(directory, 8, header);
+        record(recorder, 0, 40);
+        assertEquals(40, recorder.getFrameCount());
+        recorder.close();
+
+        FlightRecordReader reader = new FlightRecordReader(directory, "test");
+        ImuSample sample = new ImuSample();
+        for(int i = 0; i < 40; ++i){
+            assertTrue(reader.next(sample));
+            assertFrame(i, sample);
+            assertEquals(header.gyroResolution, reader.getHeader().gyroResolution, 0);
+            assertEquals(12, reader.getHeader().gyroOffset[0]);
+        }
+        assertFalse(reader.next(sample));
+    }
+
+    @Test
+    public void tornLastFrameIsNotRead() throws IOException {
+        File directory = folder.newFolder();
+        FlightRecorder recorder = recorder(directory, 8, new RecordHeader());
+        record(recorder, 0, 20);
+        recorder.close();
+        //Frame 19 is the fourth of segment 1, its marker was never written
+        File segment = FlightRecorder.segmentFile(directory, "test", 1);
+        try(RandomAccessFile raf = new RandomAccessFile(segment, "rw")){
+            raf.seek(RecordHeader.SIZE + 3 * FlightRecorder.FRAME_SIZE + 28);
+            raf.writeInt(0);
+        }
+
+        FlightRecordReader reader = new FlightRecordReader(directory, "test");
+        ImuSample sample = new ImuSample();
+        for(int i = 0; i < 19; ++i){
+            assertTrue(reader.next(sample));
+            assertFrame(i, sample);
+        }
+        assertFalse(reader.next(sample));
+    }
+
+    @Test
+    public void oldestSegmentsAreReused() throws IOException {
+        File directory = folder.newFolder();
+        FlightRecorder recorder = recorder(directory, 3, new RecordHeader());
+        record(recorder, 0, 5 * FRAMES_PER_SEGMENT + 4);
+        recorder.close();
+        //Segment 3 was renamed to 6, which was prepared and never used
+        assertFalse(FlightRecorder.segmentFile(directory, "test", 3).exists());
+        assertFalse(FlightRecorder.segmentFile(directory, "test", 6).exists());
+        assertTrue(FlightRecorder.segmentFile(directory, "test", 4).exists());
+
+        FlightRecordReader reader = new FlightRecordReader(directory, "test");
+        ImuSample sample = new ImuSample();
+        for(int i = 4 * FRAMES_PER_SEGMENT; i < 5 * FRAMES_PER_SEGMENT + 4; ++i){
+            assertTrue(reader.next(sample));
+            assertFrame(i, sample);
+        }
+        assertFalse(reader.next(sample));
+    }
+
+    @Test
+    public void gyroOffsetChangeStartsNewSegment() throws IOException {
+        File directory = folder.newFolder();
+        FlightRecorder recorder = recorder(directory, 8, new RecordHeader());
+        int[] offset = new int[]{10, 20, 30};
+        recorder.trackGyroOffset(offset);
+        record(recorder, 0, 5);
+        offset[1] = 24;
+        record(recorder, 5, 30);
+        recorder.close();
+        assertTrue(FlightRecorder.segmentFile(directory, "test", 2).exists());
+
+        FlightRecordReader reader = new FlightRecordReader(directory, "test");
+        ImuSample sample = new ImuSample();
+        for(int i = 0; i < 30; ++i){
+            assertTrue(reader.next(sample));
+            assertFrame(i, sample);
+            assertArrayEquals(i < 5 ? new int[]{10, 20, 30} : new int[]{10, 24, 30}, reader.getHeader().gyroOffset);
+        }
+        assertFalse(reader.next(sample));
+    }
+}
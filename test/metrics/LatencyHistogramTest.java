@@ -0,0 +1,84 @@
+package metrics;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Buckets and percentiles of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketBoundaries(){
+        //Values below SUB_BUCKETS have a bucket each
+        assertEquals(31, LatencyHistogram.indexOf(31));
+        assertEquals(31, LatencyHistogram.highestOf(31));
+        //First power of two above is still exact, a bucket per value
+        assertEquals(32, LatencyHistogram.indexOf(32));
+        assertEquals(32, LatencyHistogram.highestOf(32));
+        assertEquals(63, LatencyHistogram.indexOf(63));
+        assertEquals(63, LatencyHistogram.highestOf(63));
+        //Next one has buckets of two values
+        assertEquals(64, LatencyHistogram.indexOf(64));
+        assertEquals(64, LatencyHistogram.indexOf(65));
+        assertEquals(65, LatencyHistogram.highestOf(64));
+        assertEquals(65, LatencyHistogram.indexOf(66));
+
+        int last = LatencyHistogram.indexOf(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestOf(last));
+        assertEquals(last, LatencyHistogram.indexOf(LatencyHistogram.highestOf(last - 1) + 1));
+        assertEquals(last - 1, LatencyHistogram.indexOf(LatencyHistogram.highestOf(last - 1)));
+
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void relativeErrorIsWithinThreePercent(){
+        Random random = new Random(1);
+        for(int i = 0; i < 100000; ++i){
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            int index = LatencyHistogram.indexOf(value);
+            long highest = LatencyHistogram.highestOf(index);
+            assertTrue(highest >= value);
+            //Bucket width is at most 1/32 of its lowest value
+            assertTrue(value + " -> " + highest, (double)(highest - value) / Math.max(1, value) <= 1.0 / LatencyHistogram.SUB_BUCKETS);
+            if(index > 0){
+                assertTrue(LatencyHistogram.highestOf(index - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void percentilesOfUniformValues(){
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        for(long v = 1; v <= 10000; ++v){
+            histogram.record(v);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(5000.5, histogram.getMean(), 1e-9);
+        assertEquals(10000, histogram.getMax());
+        assertPercentile(5000, histogram.getP50());
+        assertPercentile(9900, histogram.getP99());
+        assertPercentile(9990, histogram.getP999());
+        assertEquals(10000, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getP99());
+    }
+
+    /** Percentile is the upper bound of its bucket, never below the exact value and at most ~3% above */
+    private static void assertPercentile(long exact, long value){
+        assertTrue(exact + " -> " + value, value >= exact && value <= exact + exact / LatencyHistogram.SUB_BUCKETS);
+    }
+}
@@ -0,0 +1,59 @@
+package module.filter;
+
+import device.Mpu9250;
+import device.NineDOF;
+import device.bus.SimulatedMpu9250;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Software path of {@link FilteredNineDOF#open(Mpu9250, int, double, double...)} against {@link SimulatedMpu9250}.
+ */
+public class FilteredNineDOFTest {
+    private SimulatedMpu9250 sim;
+    private Mpu9250 mpu9250;
+
+    @Before
+    public void setUp(){
+        sim = new SimulatedMpu9250();
+        sim.setStartupDelays(false);
+        sim.setMotionAmplitude(0);
+        mpu9250 = new Mpu9250(sim.getMpuBus());
+        sim.setAutoStep(false);
+    }
+
+    @Test
+    public void hardwareFilterIsUsedWithoutNotches(){
+        assertSame(mpu9250, FilteredNineDOF.open(mpu9250, 200, 50));
+        assertEquals(Mpu9250.Dlpf.DLPF_41HZ, mpu9250.getDigitalLowPass());
+        assertEquals(200, mpu9250.getGyroSampleRate());
+    }
+
+    @Test
+    public void softwarePathDrainsFifoAt1kHz(){
+        NineDOF stage = FilteredNineDOF.open(mpu9250, 200, 50, 120);
+        assertTrue(stage instanceof FilteredNineDOF);
+        assertEquals(Mpu9250.Dlpf.DLPF_184HZ, mpu9250.getDigitalLowPass());
+        assertEquals(1000, ((FilteredNineDOF)stage).getInputRate());
+        assertEquals(200, stage.getGyroSampleRate());
+        assertTrue(mpu9250.isFifoEnabled());
+
+        for(int i = 0; i < 100; ++i){
+            sim.step(5);
+            long transactions = sim.getTransactionCount();
+            stage.updateMotion();
+            //INT_STATUS, FIFO_COUNT and one block read of 5 frames
+            assertEquals(3, sim.getTransactionCount() - transactions);
+            assertEquals(0, mpu9250.getFifoCount());
+        }
+        assertEquals(0, mpu9250.getFifoOverflowCount());
+        //Stationary, gravity on z
+        double z = stage.getAccelData()[2] * stage.getAccelResolution();
+        assertEquals(1.0, z, 0.05);
+        assertEquals(0, stage.getGyroData()[0] * stage.getGyroResolution(), 1.0);
+    }
+}